@@ -0,0 +1,154 @@
+import java.lang.management.ManagementFactory;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The {@code Bench} class is a small benchmark harness for the classes in {@code bench/}.
+ * Each benchmark runs for a warm-up period and then a measurement period on the calling thread;
+ * the harness reports throughput, time per operation and heap bytes allocated per operation.
+ */
+final class Bench {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final long warmupMillis;
+    private final long measureMillis;
+    private final List<Result> results = new ArrayList<>();
+
+    /**
+     * The outcome of one benchmark.
+     */
+    static final class Result {
+        final String name;
+        final long operations;
+        final double nanosPerOp;
+        final double bytesPerOp;
+
+        Result(String name, long operations, double nanosPerOp, double bytesPerOp) {
+            this.name = name;
+            this.operations = operations;
+            this.nanosPerOp = nanosPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        double opsPerSecond() {
+            return 1e9 / nanosPerOp;
+        }
+    }
+
+    /**
+     * Creates a harness.
+     *
+     * @param warmupMillis  How long to run each benchmark before measuring.
+     * @param measureMillis How long to measure each benchmark.
+     */
+    Bench(long warmupMillis, long measureMillis) {
+        this.warmupMillis = warmupMillis;
+        this.measureMillis = measureMillis;
+    }
+
+    /**
+     * Runs one benchmark and prints its result.
+     *
+     * @param name      A unique name for the benchmark.
+     * @param operation The operation to measure.
+     * @return The measured result.
+     */
+    Result run(String name, Runnable operation) {
+        loop(operation, warmupMillis);
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = THREADS.getThreadAllocatedBytes(threadId);
+        long started = System.nanoTime();
+        long operations = loop(operation, measureMillis);
+        long elapsed = System.nanoTime() - started;
+        long allocated = THREADS.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        Result result = new Result(name, operations, (double) elapsed / operations, (double) allocated / operations);
+        results.add(result);
+        System.out.printf(Locale.ROOT, "%-48s %14.1f ops/s %12.1f ns/op %12.1f B/op%n",
+                name, result.opsPerSecond(), result.nanosPerOp, result.bytesPerOp);
+        return result;
+    }
+
+    private static long loop(Runnable operation, long millis) {
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        long operations = 0;
+        do {
+            for (int i = 0; i < 16; i++) {
+                operation.run();
+            }
+            operations += 16;
+        } while (System.nanoTime() < deadline);
+        return operations;
+    }
+
+    private static final Pattern JSON_RESULT =
+            Pattern.compile("\\{\"benchmark\": \"([^\"]*)\",.*?\"opsPerSecond\": ([0-9.]+)");
+
+    /**
+     * Returns the results recorded so far.
+     *
+     * @return The results, in the order they were measured.
+     */
+    List<Result> results() {
+        return results;
+    }
+
+    /**
+     * Writes the results as a JSON report together with the JVM they were measured on.
+     *
+     * @param file The file to write.
+     * @throws IOException if writing fails.
+     */
+    void writeJson(Path file) throws IOException {
+        String report = String.format(Locale.ROOT,
+                "{\n\"timestamp\": \"%s\",\n\"java\": \"%s\",\n\"processors\": %d,\n\"results\": %s\n}\n",
+                Instant.now(), System.getProperty("java.vm.version"),
+                Runtime.getRuntime().availableProcessors(), toJson());
+        Files.write(file, report.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads the throughput of each benchmark from a report written by {@link #writeJson(Path)}.
+     *
+     * @param file The report.
+     * @return Operations per second by benchmark name.
+     * @throws IOException if reading fails.
+     */
+    static Map<String, Double> readThroughput(Path file) throws IOException {
+        Map<String, Double> throughput = new LinkedHashMap<>();
+        Matcher matcher = JSON_RESULT.matcher(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        while (matcher.find()) {
+            throughput.put(matcher.group(1), Double.parseDouble(matcher.group(2)));
+        }
+        return throughput;
+    }
+
+    /**
+     * Returns all results recorded so far as a JSON array.
+     *
+     * @return The results as JSON.
+     */
+    String toJson() {
+        StringBuilder json = new StringBuilder("[\n");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            json.append(String.format(Locale.ROOT,
+                    "  {\"benchmark\": \"%s\", \"operations\": %d, \"opsPerSecond\": %.1f, \"nanosPerOp\": %.1f, \"bytesPerOp\": %.1f}",
+                    r.name, r.operations, r.opsPerSecond(), r.nanosPerOp, r.bytesPerOp));
+            json.append(i + 1 < results.size() ? ",\n" : "\n");
+        }
+        return json.append("]").toString();
+    }
+}
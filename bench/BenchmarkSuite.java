@@ -0,0 +1,75 @@
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The {@code BenchmarkSuite} class runs every benchmark in {@code bench/} that is tracked between
+ * releases and writes one JSON report: broadcast fan-out to 10, 1k and 10k recipients, parsing of each
+ * client command, encryption, user list building, and history search. Given the report of an earlier run, it also lists
+ * the benchmarks whose throughput dropped by more than the tolerance and exits with status 1 if any did.
+ *
+ * <p>Usage: {@code java BenchmarkSuite [--out=results.json] [--baseline=previous.json] [--tolerance=0.10] [--quick]}.
+ * {@code bench/run-benchmarks.sh} compiles the sources and runs the suite.
+ */
+public class BenchmarkSuite {
+
+    public static void main(String[] args) throws Exception {
+        Path out = Paths.get("benchmark-results.json");
+        Path baseline = null;
+        double tolerance = 0.10;
+        boolean quick = false;
+        for (String arg : args) {
+            if (arg.startsWith("--out=")) {
+                out = Paths.get(arg.substring(6));
+            } else if (arg.startsWith("--baseline=")) {
+                baseline = Paths.get(arg.substring(11));
+            } else if (arg.startsWith("--tolerance=")) {
+                tolerance = Double.parseDouble(arg.substring(12));
+            } else if (arg.equals("--quick")) {
+                quick = true;
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+
+        Bench bench = quick ? new Bench(200, 500) : new Bench(1000, 3000);
+        for (int recipients : new int[] {10, 1000, 10000}) {
+            FanoutBenchmark.run(bench, recipients, 128, false);
+        }
+        ParseBenchmark.run(bench);
+        CipherBenchmark.run(bench, 64, 1024, 64 * 1024);
+        for (int users : new int[] {10, 1000, 10000}) {
+            RosterBenchmark.run(bench, users);
+        }
+        SearchBenchmark.run(bench, 1_000_000);
+        bench.writeJson(out);
+        System.out.println("Results written to " + out);
+
+        if (baseline != null && compare(bench, Bench.readThroughput(baseline), tolerance) > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Prints how each benchmark changed against a baseline.
+     *
+     * @return The number of benchmarks that regressed beyond the tolerance.
+     */
+    private static int compare(Bench bench, Map<String, Double> baseline, double tolerance) {
+        int regressions = 0;
+        System.out.println();
+        for (Bench.Result result : bench.results()) {
+            Double before = baseline.get(result.name);
+            if (before == null) {
+                continue; // New benchmark
+            }
+            double change = result.opsPerSecond() / before - 1;
+            boolean regressed = change < -tolerance;
+            if (regressed) regressions++;
+            System.out.printf(Locale.ROOT, "%-48s %+8.1f%%%s%n", result.name, change * 100, regressed ? "  REGRESSION" : "");
+        }
+        System.out.println(regressions + " regression(s) beyond " + Math.round(tolerance * 100) + "%");
+        return regressions;
+    }
+}
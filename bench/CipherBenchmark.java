@@ -0,0 +1,86 @@
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.Locale;
+
+/**
+ * The {@code CipherBenchmark} class measures the throughput of each {@link MessageCipher} at 64 B, 1 KB
+ * and 64 KB messages, next to the shift implementation that {@code EncryptionUtil} used to have, which
+ * built every result through a {@code StringBuilder} and a modulo per character.
+ *
+ * <p>Usage: {@code java CipherBenchmark [warmupMillis] [measureMillis]}.
+ */
+public class CipherBenchmark {
+
+    private static final int[] SIZES = {64, 1024, 64 * 1024};
+
+    public static void main(String[] args) throws GeneralSecurityException {
+        long warmup = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        long measure = args.length > 1 ? Long.parseLong(args[1]) : 3000;
+
+        Bench bench = new Bench(warmup, measure);
+        run(bench, SIZES);
+        System.out.println(bench.toJson());
+    }
+
+    /**
+     * Measures every cipher at the given message sizes.
+     *
+     * @param bench The harness to record results in.
+     * @param sizes The message sizes, in bytes.
+     * @throws GeneralSecurityException if AES-GCM or X25519 is not available.
+     */
+    static void run(Bench bench, int... sizes) throws GeneralSecurityException {
+        // A connected pair: the client encrypts what the server decrypts, as for MSG: lines
+        KeyPair clientKeys = AesGcmCipher.newKeyPair();
+        KeyPair serverKeys = AesGcmCipher.newKeyPair();
+        AesGcmCipher client = AesGcmCipher.agree(clientKeys, AesGcmCipher.encodePublicKey(serverKeys), false);
+        AesGcmCipher server = AesGcmCipher.agree(serverKeys, AesGcmCipher.encodePublicKey(clientKeys), true);
+
+        for (int size : sizes) {
+            String message = sampleText(size);
+            String suffix = "[" + size + " B]";
+            report(bench.run("cipher.shift.legacy.encrypt" + suffix, () -> legacyShift(message, 4)), size);
+            report(bench.run("cipher.shift.encrypt" + suffix, () -> EncryptionUtil.encrypt(message)), size);
+            report(bench.run("cipher.shift.decrypt" + suffix, () -> EncryptionUtil.decrypt(message)), size);
+            report(bench.run("cipher.aes-gcm.encrypt" + suffix, () -> client.encrypt(message)), size);
+            // Each message carries a fresh counter, so decryption is measured together with encryption
+            report(bench.run("cipher.aes-gcm.roundTrip" + suffix, () -> {
+                try {
+                    server.decrypt(client.encrypt(message));
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            }), size);
+        }
+    }
+
+    private static void report(Bench.Result result, int size) {
+        System.out.printf(Locale.ROOT, "%-48s %14.1f MB/s%n", "", result.opsPerSecond() * size / 1e6);
+    }
+
+    private static String sampleText(int size) {
+        StringBuilder text = new StringBuilder(size);
+        String words = "The quick brown fox jumps over the lazy dog, 1234567890! ";
+        while (text.length() < size) {
+            text.append(words.charAt(text.length() % words.length()));
+        }
+        return text.toString();
+    }
+
+    /**
+     * The shift cipher as {@code EncryptionUtil} implemented it before {@link ShiftCipher}.
+     */
+    private static String legacyShift(String text, int shift) {
+        StringBuilder result = new StringBuilder();
+        for (char character : text.toCharArray()) {
+            if (character >= 'a' && character <= 'z') {
+                result.append((char) (((character - 'a' + shift + 26) % 26) + 'a'));
+            } else if (character >= 'A' && character <= 'Z') {
+                result.append((char) (((character - 'A' + shift + 26) % 26) + 'A'));
+            } else {
+                result.append(character);
+            }
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,120 @@
+import java.awt.GraphicsEnvironment;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.swing.JFrame;
+import javax.swing.JList;
+import javax.swing.JScrollPane;
+import javax.swing.SwingUtilities;
+
+/**
+ * The {@code EdtBurstProbe} class measures how responsive the Swing event dispatch thread stays while a
+ * burst of incoming messages is appended to the chat list, once with one {@code invokeLater} per message,
+ * as {@code ChatController} used to do, and once through an {@link EdtBatcher}. While the burst is delivered
+ * a probe posts a no-op task to the EDT every millisecond; the time each probe waits is what a click or a
+ * repaint would wait, and is recorded in a histogram.
+ *
+ * <p>With a display the list is shown in a window, so painting is included; on a headless JVM only the
+ * model and layout work is measured.
+ *
+ * <p>Usage: {@code java EdtBurstProbe [messages] [historyLimit]}.
+ */
+public class EdtBurstProbe {
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int limit = args.length > 1 ? Integer.parseInt(args[1]) : ChatHistoryModel.DEFAULT_LIMIT;
+
+        for (int round = 0; round < 2; round++) { // The first round warms up both paths
+            boolean report = round == 1;
+            run("invokeLater per message", messages, limit, false, report);
+            run("EdtBatcher, " + EdtBatcher.FRAME_MILLIS + " ms frames", messages, limit, true, report);
+        }
+        System.exit(0);
+    }
+
+    private static void run(String name, int messages, int limit, boolean batched, boolean report) throws Exception {
+        ChatHistoryModel history = new ChatHistoryModel(limit);
+        AtomicReference<JList<String>> list = new AtomicReference<>();
+        AtomicReference<JFrame> frame = new AtomicReference<>();
+        SwingUtilities.invokeAndWait(() -> {
+            JList<String> chatList = new JList<>(history);
+            chatList.setFixedCellHeight(chatList.getFontMetrics(chatList.getFont()).getHeight() + 2);
+            chatList.setFixedCellWidth(1);
+            list.set(chatList);
+            JScrollPane scrollPane = new JScrollPane(chatList);
+            if (GraphicsEnvironment.isHeadless()) {
+                scrollPane.setSize(800, 500);
+                scrollPane.doLayout();
+            } else {
+                JFrame window = new JFrame("EDT burst probe: " + name);
+                window.add(scrollPane);
+                window.setSize(800, 500);
+                window.setVisible(true);
+                frame.set(window);
+            }
+        });
+
+        AtomicInteger shown = new AtomicInteger();
+        AtomicLong edtTasks = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(1);
+        EdtBatcher<String> batcher = new EdtBatcher<>(EdtBatcher.FRAME_MILLIS, batch -> {
+            edtTasks.incrementAndGet();
+            append(list.get(), history, batch);
+            if (shown.addAndGet(batch.size()) == messages) done.countDown();
+        });
+
+        LatencyHistogram edtLatency = new LatencyHistogram();
+        Thread probe = new Thread(() -> {
+            while (done.getCount() > 0) {
+                long posted = System.nanoTime();
+                SwingUtilities.invokeLater(() -> edtLatency.record(System.nanoTime() - posted));
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "edt-probe");
+
+        long started = System.nanoTime();
+        probe.start();
+        for (int i = 0; i < messages; i++) {
+            String line = "user" + (i % 50) + ": burst message number " + i + " with some text to render";
+            if (batched) {
+                batcher.add(line);
+            } else {
+                SwingUtilities.invokeLater(() -> {
+                    edtTasks.incrementAndGet();
+                    append(list.get(), history, List.of(line));
+                    if (shown.incrementAndGet() == messages) done.countDown();
+                });
+            }
+        }
+        done.await();
+        long elapsed = System.nanoTime() - started;
+        probe.join();
+        SwingUtilities.invokeAndWait(() -> {
+            if (frame.get() != null) frame.get().dispose();
+        });
+
+        if (report) {
+            System.out.printf("%-32s %6d messages shown in %7.1f ms with %5d EDT tasks; EDT wait %s%n",
+                    name, messages, elapsed / 1e6, edtTasks.get(), edtLatency.summary());
+        }
+    }
+
+    /**
+     * Appends lines the way {@code ChatClientView} does, following the newest line.
+     */
+    private static void append(JList<String> list, ChatHistoryModel history, List<String> lines) {
+        if (lines.size() == 1) {
+            history.add(lines.get(0));
+        } else {
+            history.addAll(lines);
+        }
+        list.ensureIndexIsVisible(history.getSize() - 1);
+    }
+}
@@ -0,0 +1,47 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The {@code FanoutBenchmark} class measures the cost of broadcasting one message to a room of
+ * in-memory clients. It compares the server's encode-once broadcast with encoding the message again
+ * for every recipient, which is what the per-client {@code PrintWriter}s used to do.
+ *
+ * <p>Usage: {@code java FanoutBenchmark [recipients] [messageBytes]}.
+ */
+public class FanoutBenchmark {
+
+    public static void main(String[] args) {
+        int recipients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int messageBytes = args.length > 1 ? Integer.parseInt(args[1]) : 128;
+
+        Bench bench = new Bench(1000, 3000);
+        run(bench, recipients, messageBytes, true);
+        System.out.println(bench.toJson());
+    }
+
+    /**
+     * Measures {@code ChatServer.broadcastMessage} to the given number of registered clients.
+     *
+     * @param bench        The harness to record results in.
+     * @param recipients   How many clients receive each message.
+     * @param messageBytes The message length.
+     * @param compare      Whether to also measure encoding per recipient, for comparison.
+     */
+    static void run(Bench bench, int recipients, int messageBytes, boolean compare) {
+        ChatServer server = new ChatServer();
+        List<MemoryConnection> connections = MemoryConnection.connect(server, recipients);
+        char[] text = new char[messageBytes];
+        Arrays.fill(text, 'x');
+        String message = "alice: " + new String(text);
+
+        String suffix = "[" + recipients + " recipients, " + messageBytes + " B]";
+        if (compare) {
+            bench.run("broadcast.encodePerRecipient" + suffix, () -> {
+                for (MemoryConnection connection : connections) {
+                    connection.write(Frame.of(message));
+                }
+            });
+        }
+        bench.run("broadcast.encodeOnce" + suffix, () -> server.broadcastMessage(message, null));
+    }
+}
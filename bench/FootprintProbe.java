@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The {@code FootprintProbe} class measures the memory and thread cost of idle connections.
+ * It starts a {@code ChatServer} in this JVM with the given options, opens the requested number of
+ * idle client connections against it and reports heap, resident set size and thread count per connection.
+ *
+ * <p>Usage: {@code java FootprintProbe <connections> [server options...]}, for example
+ * {@code java -Xss256k FootprintProbe 20000 --executor=thread} versus {@code --executor=virtual} or {@code --mode=nio}.
+ * Large runs need a raised open-file limit ({@code ulimit -n}).
+ */
+public class FootprintProbe {
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        String[] serverArgs = new String[args.length > 0 ? args.length - 1 : 0];
+        System.arraycopy(args, args.length - serverArgs.length, serverArgs, 0, serverArgs.length);
+        ServerConfig config = ServerConfig.fromArgs(serverArgs);
+        if (config.port == 10100) {
+            config.port = 10190; // Keep clear of a server that may already run on the default port
+        }
+
+        Thread serverThread = new Thread(() -> new ChatServer().start(config), "probe-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        waitForServer(config.port);
+
+        Snapshot before = Snapshot.take();
+        List<SocketChannel> clients = new ArrayList<>(connections);
+        long started = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            clients.add(SocketChannel.open(new InetSocketAddress("localhost", config.port)));
+        }
+        long connectMillis = (System.nanoTime() - started) / 1_000_000;
+        Thread.sleep(2000); // Let the server accept and start a handler for every connection
+        Snapshot after = Snapshot.take();
+
+        System.out.printf("mode=%s executor=%s connections=%d connect=%dms%n",
+                config.mode, config.executor, connections, connectMillis);
+        System.out.printf("heap:    %,d -> %,d bytes (%,d bytes/connection)%n",
+                before.heap, after.heap, (after.heap - before.heap) / Math.max(1, connections));
+        System.out.printf("rss:     %,d -> %,d bytes (%,d bytes/connection)%n",
+                before.rss, after.rss, (after.rss - before.rss) / Math.max(1, connections));
+        System.out.printf("threads: %d -> %d%n", before.threads, after.threads);
+        System.out.println("(figures include the client side of each connection, which lives in the same JVM)");
+
+        for (SocketChannel client : clients) {
+            client.close();
+        }
+        System.exit(0);
+    }
+
+    private static void waitForServer(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                SocketChannel.open(new InetSocketAddress("localhost", port)).close();
+                Thread.sleep(200); // Let the server finish handling the probe connection
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+
+    /**
+     * A point-in-time reading of the JVM's footprint.
+     */
+    private static final class Snapshot {
+        long heap;
+        long rss;
+        int threads;
+
+        static Snapshot take() throws InterruptedException {
+            System.gc();
+            Thread.sleep(200);
+            Snapshot snapshot = new Snapshot();
+            Runtime runtime = Runtime.getRuntime();
+            snapshot.heap = runtime.totalMemory() - runtime.freeMemory();
+            snapshot.rss = residentSetSize();
+            snapshot.threads = ManagementFactory.getThreadMXBean().getThreadCount();
+            return snapshot;
+        }
+
+        private static long residentSetSize() {
+            try {
+                for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                    if (line.startsWith("VmRSS:")) {
+                        return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                // Not on Linux; report heap and threads only
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code LatencyHistogram} class records durations in nanoseconds into log-linear buckets, the way
+ * HdrHistogram does: every power of two is split into 128 equal buckets, so any recorded value is known
+ * to within 1% across the whole range from nanoseconds to hours, in a fixed 57 KB of counters. Recording
+ * is a single atomic increment and may happen from any number of threads.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // Buckets per power of two
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records one duration.
+     *
+     * @param nanos The duration in nanoseconds; negative values count as 0.
+     */
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(indexOf(value));
+        total.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Forgets everything recorded so far, for instance at the end of a warm-up period.
+     * Values recorded concurrently with the reset may or may not survive it.
+     */
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    private static int indexOf(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift); // value >>> shift is in [SUB_BUCKETS, 2 * SUB_BUCKETS)
+    }
+
+    private static long highestValueAt(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long mantissa = index - (long) shift * SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return The count.
+     */
+    long count() {
+        return total.sum();
+    }
+
+    /**
+     * Returns the largest recorded value.
+     *
+     * @return The maximum in nanoseconds, or 0 if nothing was recorded.
+     */
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * Returns the mean of the recorded values.
+     *
+     * @return The mean in nanoseconds, or 0 if nothing was recorded.
+     */
+    double mean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * Returns the value below which the given share of recorded values fall.
+     *
+     * @param percentile The percentile, e.g. {@code 99.9}.
+     * @return The value in nanoseconds, accurate to the bucket width, or 0 if nothing was recorded.
+     */
+    long percentile(double percentile) {
+        long count = total.sum();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueAt(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Summarizes the histogram in milliseconds on one line.
+     *
+     * @return The count, mean, p50, p99, p99.9 and max.
+     */
+    String summary() {
+        return String.format(Locale.ROOT, "n=%d mean=%.3f p50=%.3f p99=%.3f p99.9=%.3f max=%.3f ms",
+                count(), mean() / 1e6, percentile(50) / 1e6, percentile(99) / 1e6, percentile(99.9) / 1e6, max() / 1e6);
+    }
+
+    /**
+     * Returns the same figures as {@link #summary()} as a JSON object, in microseconds.
+     *
+     * @return The histogram as JSON.
+     */
+    String toJson() {
+        return String.format(Locale.ROOT,
+                "{\"count\": %d, \"meanMicros\": %.1f, \"p50Micros\": %.1f, \"p99Micros\": %.1f, \"p999Micros\": %.1f, \"maxMicros\": %.1f}",
+                count(), mean() / 1e3, percentile(50) / 1e3, percentile(99) / 1e3, percentile(99.9) / 1e3, max() / 1e3);
+    }
+}
@@ -0,0 +1,302 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code LoadGenerator} class drives simulated clients against a chat server, end to end over TCP.
+ * Each client is a headless {@link ChatModel}. Messages are sent open-loop at a fixed total rate, so a slow
+ * server shows up as latency instead of silently lowering the load, and each carries the time it was due to be
+ * sent, so every receiving client records the send-to-receive latency including any delay in sending it. Optional churn disconnects a random client and
+ * connects a new one in its place. The report gives latency histograms for public and private messages and
+ * for connection setup, plus throughput.
+ *
+ * <p>Usage: {@code java LoadGenerator [--option=value...]}, with the options
+ * <ul>
+ *   <li>{@code host}, {@code port}: the server, {@code localhost:10100} by default;</li>
+ *   <li>{@code embedded}: start a server in this JVM first, with {@code server-args} (comma separated);</li>
+ *   <li>{@code clients}: simulated clients, default 100;</li>
+ *   <li>{@code rate}: messages per second across all clients, default 1000;</li>
+ *   <li>{@code size}: message length in bytes, default 128;</li>
+ *   <li>{@code private-ratio}: share of messages sent privately to a random client, default 0.1;</li>
+ *   <li>{@code churn}: clients replaced per second, default 0;</li>
+ *   <li>{@code encrypt}: send public messages as {@code MSG:} with the negotiated cipher;</li>
+ *   <li>{@code text}: use text frames instead of binary ones;</li>
+ *   <li>{@code no-deflate}: do not ask for compression of large binary frames;</li>
+ *   <li>{@code warmup}, {@code duration}: seconds to warm up and to measure, default 5 and 30;</li>
+ *   <li>{@code out}: a file to write the report to as JSON.</li>
+ * </ul>
+ */
+public class LoadGenerator {
+
+    private static final String MARKER = "#lg"; // Precedes the send time in every generated message
+
+    private final String host;
+    private final int port;
+    private final int clientCount;
+    private final int rate;
+    private final int size;
+    private final double privateRatio;
+    private final double churn;
+    private final boolean encrypt;
+    private final boolean binary;
+    private final boolean deflate;
+
+    private final AtomicReferenceArray<ChatModel> clients;
+    private final AtomicReferenceArray<String> names;
+    private final AtomicInteger generation = new AtomicInteger();
+
+    private final LatencyHistogram publicLatency = new LatencyHistogram();
+    private final LatencyHistogram privateLatency = new LatencyHistogram();
+    private final LatencyHistogram connectTime = new LatencyHistogram();
+    private final LongAdder sentPublic = new LongAdder();
+    private final LongAdder sentPrivate = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder failedConnects = new LongAdder();
+    private final LongAdder replaced = new LongAdder();
+
+    private LoadGenerator(Options options) {
+        this.host = options.get("host", "localhost");
+        this.port = Integer.parseInt(options.get("port", "10100"));
+        this.clientCount = Integer.parseInt(options.get("clients", "100"));
+        this.rate = Integer.parseInt(options.get("rate", "1000"));
+        this.size = Integer.parseInt(options.get("size", "128"));
+        this.privateRatio = Double.parseDouble(options.get("private-ratio", "0.1"));
+        this.churn = Double.parseDouble(options.get("churn", "0"));
+        this.encrypt = options.has("encrypt");
+        this.binary = !options.has("text");
+        this.deflate = !options.has("no-deflate");
+        this.clients = new AtomicReferenceArray<>(clientCount);
+        this.names = new AtomicReferenceArray<>(clientCount);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options(args);
+        if (options.has("embedded")) {
+            ServerConfig config = ServerConfig.fromArgs(options.get("server-args", "").isEmpty()
+                    ? new String[0] : options.get("server-args", "").split(","));
+            config.port = Integer.parseInt(options.get("port", "10100"));
+            Thread server = new Thread(() -> new ChatServer().start(config), "load-server");
+            server.setDaemon(true);
+            server.start();
+            Thread.sleep(500);
+        }
+        LoadGenerator generator = new LoadGenerator(options);
+        long warmupSeconds = Long.parseLong(options.get("warmup", "5"));
+        long durationSeconds = Long.parseLong(options.get("duration", "30"));
+
+        generator.connectAll();
+        generator.drive(warmupSeconds);
+        generator.resetStatistics();
+        generator.drive(durationSeconds);
+        generator.disconnectAll();
+
+        String report = generator.report(durationSeconds);
+        System.out.print(report);
+        if (options.has("out")) {
+            Files.write(Paths.get(options.get("out", "")), generator.toJson(durationSeconds).getBytes(StandardCharsets.UTF_8));
+        }
+        System.exit(0);
+    }
+
+    private void connectAll() {
+        long started = System.nanoTime();
+        for (int i = 0; i < clientCount; i++) {
+            connect(i);
+        }
+        System.out.printf(Locale.ROOT, "Connected %d clients in %.1f s (%d failed)%n",
+                clientCount, (System.nanoTime() - started) / 1e9, failedConnects.sum());
+    }
+
+    /**
+     * Connects a new client in the given slot under a fresh nickname, recording how long it took.
+     */
+    private void connect(int slot) {
+        String name = "lg" + slot + "_" + generation.incrementAndGet();
+        ChatModel model = new ChatModel(new Receiver());
+        model.setBinaryFramesEnabled(binary);
+        model.setCompressionEnabled(deflate);
+        model.setHistoryOnConnect(0); // Replayed messages would count as late deliveries
+        model.setAutoReconnect(false); // A lost client is counted, not replaced
+        long started = System.nanoTime();
+        try {
+            model.connect(host, port, name);
+            connectTime.record(System.nanoTime() - started);
+            names.set(slot, name);
+            clients.set(slot, model);
+        } catch (IOException e) {
+            failedConnects.increment();
+        }
+    }
+
+    /**
+     * Sends messages at the configured rate, and replaces clients at the churn rate, for the given time.
+     * Sends that fall behind schedule are made up immediately rather than dropped.
+     */
+    private void drive(long seconds) throws InterruptedException {
+        char[] padding = new char[Math.max(0, size - 24)];
+        Arrays.fill(padding, 'x');
+        String filler = new String(padding);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        long started = System.nanoTime();
+        long end = started + seconds * 1_000_000_000L;
+        long sent = 0;
+        long churned = 0;
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            double elapsed = (now - started) / 1e9;
+            for (long due = (long) (elapsed * rate); sent < due; sent++) {
+                int slot = random.nextInt(clientCount);
+                ChatModel sender = clients.get(slot);
+                if (sender == null || !sender.isConnected()) {
+                    continue;
+                }
+                long scheduled = started + (long) (sent * 1e9 / rate); // When this send was due, not when it happened
+                String message = MARKER + scheduled + "#" + filler;
+                if (random.nextDouble() < privateRatio) {
+                    String recipient = names.get(random.nextInt(clientCount));
+                    if (recipient != null) {
+                        sender.sendPrivateMessage(message, recipient);
+                        sentPrivate.increment();
+                    }
+                } else if (encrypt) {
+                    sender.sendEncryptedMessage(message);
+                    sentPublic.increment();
+                } else {
+                    sender.sendMessage(message);
+                    sentPublic.increment();
+                }
+            }
+            for (long due = (long) (elapsed * churn); churned < due; churned++) {
+                int slot = random.nextInt(clientCount);
+                ChatModel leaving = clients.getAndSet(slot, null);
+                if (leaving != null) {
+                    leaving.disconnect();
+                }
+                connect(slot);
+                replaced.increment();
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private void resetStatistics() {
+        publicLatency.reset();
+        privateLatency.reset(); // Connection setup times are kept, since most connections are made before warm-up
+        sentPublic.reset();
+        sentPrivate.reset();
+        received.reset();
+        failedConnects.reset();
+        replaced.reset();
+    }
+
+    private void disconnectAll() throws InterruptedException {
+        Thread.sleep(1000); // Let messages in flight arrive
+        for (int i = 0; i < clientCount; i++) {
+            ChatModel model = clients.getAndSet(i, null);
+            if (model != null) {
+                model.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Records the latency of every generated message a client receives.
+     */
+    private class Receiver implements ChatModel.ChatListener {
+        @Override
+        public void onMessageReceived(String message) {
+            int start = message.indexOf(MARKER);
+            if (start < 0) {
+                return; // Presence announcements and server notices
+            }
+            int end = message.indexOf('#', start + MARKER.length());
+            long sentAt;
+            try {
+                sentAt = Long.parseLong(message.substring(start + MARKER.length(), end));
+            } catch (RuntimeException e) {
+                return;
+            }
+            long latency = System.nanoTime() - sentAt;
+            received.increment();
+            (message.startsWith("PRIVATE:") ? privateLatency : publicLatency).record(latency);
+        }
+
+        @Override
+        public void onConnectionStatusChanged(boolean isConnected) {
+        }
+
+        @Override
+        public void onUserListReceived(String userList) {
+        }
+
+        @Override
+        public void onUserJoined(String user) {
+        }
+
+        @Override
+        public void onUserLeft(String user) {
+        }
+    }
+
+    private String report(long seconds) {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "%n%d clients, %d msg/s offered, %d B, %.0f%% private, %.1f churn/s, %s frames%s%n",
+                clientCount, rate, size, privateRatio * 100, churn, !binary ? "text" : deflate ? "compressed binary" : "binary", encrypt ? ", encrypted" : ""));
+        report.append(String.format(Locale.ROOT, "sent        %.1f msg/s (%d public, %d private)%n",
+                (double) (sentPublic.sum() + sentPrivate.sum()) / seconds, sentPublic.sum(), sentPrivate.sum()));
+        report.append(String.format(Locale.ROOT, "delivered   %.1f msg/s%n", (double) received.sum() / seconds));
+        report.append("public      ").append(publicLatency.summary()).append('\n');
+        report.append("private     ").append(privateLatency.summary()).append('\n');
+        report.append("connect     ").append(connectTime.summary()).append('\n');
+        report.append(String.format(Locale.ROOT, "churn       %d replaced, %d failed connects%n", replaced.sum(), failedConnects.sum()));
+        return report.toString();
+    }
+
+    private String toJson(long seconds) {
+        return String.format(Locale.ROOT, "{%n\"clients\": %d,%n\"offeredRate\": %d,%n\"messageBytes\": %d,%n"
+                        + "\"privateRatio\": %.3f,%n\"churnPerSecond\": %.3f,%n\"binaryFrames\": %b,%n\"encrypted\": %b,%n"
+                        + "\"durationSeconds\": %d,%n\"sentPerSecond\": %.1f,%n\"deliveredPerSecond\": %.1f,%n"
+                        + "\"replaced\": %d,%n\"failedConnects\": %d,%n"
+                        + "\"publicLatency\": %s,%n\"privateLatency\": %s,%n\"connectTime\": %s%n}%n",
+                clientCount, rate, size, privateRatio, churn, binary, encrypt, seconds,
+                (double) (sentPublic.sum() + sentPrivate.sum()) / seconds, (double) received.sum() / seconds,
+                replaced.sum(), failedConnects.sum(),
+                publicLatency.toJson(), privateLatency.toJson(), connectTime.toJson());
+    }
+
+    /**
+     * Command line options of the form {@code --name=value}, or {@code --name} for flags.
+     */
+    private static final class Options {
+        private final Map<String, String> values = new HashMap<>();
+
+        Options(String[] args) {
+            for (String arg : args) {
+                if (!arg.startsWith("--")) {
+                    throw new IllegalArgumentException("Expected --name=value but got " + arg);
+                }
+                int separator = arg.indexOf('=');
+                values.put(separator < 0 ? arg.substring(2) : arg.substring(2, separator),
+                        separator < 0 ? "" : arg.substring(separator + 1));
+            }
+        }
+
+        boolean has(String name) {
+            return values.containsKey(name);
+        }
+
+        String get(String name, String fallback) {
+            return values.getOrDefault(name, fallback);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The {@code MemoryConnection} class is an in-memory stand-in for a client socket. Frames pass through
+ * a real {@code OutboundQueue} and are then consumed on the spot, so benchmarks measure the server's
+ * fan-out work without any network I/O.
+ */
+class MemoryConnection implements ClientConnection {
+
+    private final OutboundQueue outbound;
+    long frames; // Frames delivered so far
+    long bytes; // Bytes delivered so far
+
+    /**
+     * Creates a connection whose queue follows the server's configuration.
+     *
+     * @param server The server the connection will be registered with.
+     */
+    MemoryConnection(ChatServer server) {
+        this.outbound = server.newOutboundQueue();
+    }
+
+    /**
+     * Registers the given number of clients with a server and greets each with a nickname, then waits
+     * for the server to announce them, so the presence flush does not run during a measurement.
+     *
+     * @param server The server.
+     * @param count  How many clients to connect.
+     * @return The clients' connections.
+     */
+    static List<MemoryConnection> connect(ChatServer server, int count) {
+        List<MemoryConnection> connections = new ArrayList<>(count);
+        long announced = server.getPresenceBatcher().getEventCount();
+        for (int i = 0; i < count; i++) {
+            MemoryConnection connection = new MemoryConnection(server);
+            server.register(connection).handleFrame(Frame.of(Opcode.NICKNAME, "user" + i));
+            connections.add(connection);
+        }
+        while (server.getPresenceBatcher().getEventCount() < announced + count) {
+            LockSupport.parkNanos(1_000_000);
+        }
+        return connections;
+    }
+
+    @Override
+    public boolean write(Frame frame) {
+        if (!outbound.offer(frame)) return false;
+        Frame next;
+        while ((next = outbound.poll()) != null) {
+            frames++;
+            bytes += next.length();
+        }
+        return true;
+    }
+
+    @Override
+    public void useBinaryFrames() {
+        // Frames are counted, not decoded, so the format does not matter here
+    }
+
+    @Override
+    public void useCompression() {
+    }
+
+    @Override
+    public int queuedFrames() {
+        return outbound.size();
+    }
+
+    @Override
+    public String getHostAddress() {
+        return "127.0.0.1";
+    }
+
+    @Override
+    public void close() {
+        outbound.close();
+    }
+
+    @Override
+    public void abort() {
+        outbound.close();
+    }
+}
@@ -0,0 +1,52 @@
+import java.net.ProtocolException;
+
+/**
+ * The {@code ParseBenchmark} class measures how long the server takes to turn one incoming message
+ * into a {@link Frame} for each client command, in text format ({@code Frame.of}, as the read loops do
+ * for legacy clients) and in binary format ({@code Frame.decode}).
+ *
+ * <p>Usage: {@code java ParseBenchmark}.
+ */
+public class ParseBenchmark {
+
+    private static final String[] COMMANDS = {
+            "CAPS:roster-delta,binary",
+            "NICKNAME:alice",
+            "MSG:Lipps, ASVPH! Xlmw mw e wigvix qiwweki.",
+            "PRIVATE:bob:are you coming to the standup?",
+            "JOIN:engineering",
+            "PART:engineering",
+            "USERSYNC",
+            "DISCONNECT",
+            "just a plain chat line that matches no command prefix at all",
+    };
+
+    public static void main(String[] args) {
+        Bench bench = new Bench(1000, 3000);
+        run(bench);
+        System.out.println(bench.toJson());
+    }
+
+    /**
+     * Measures parsing of every command in both wire formats.
+     *
+     * @param bench The harness to record results in.
+     */
+    static void run(Bench bench) {
+        for (String line : COMMANDS) {
+            Frame parsed = Frame.of(line);
+            String name = parsed.opcode().name().toLowerCase();
+            bench.run("parse.text[" + name + "]", () -> Frame.of(line));
+
+            byte[] encoded = new byte[parsed.binary().length()];
+            parsed.binary().buffer().get(encoded);
+            bench.run("parse.binary[" + name + "]", () -> {
+                try {
+                    Frame.decode(encoded, 4, encoded.length - 4);
+                } catch (ProtocolException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * The {@code RosterBenchmark} class measures building the user list string sent in {@code USERLIST:}
+ * and {@code USERSNAPSHOT:}. Every join or leave invalidates the cached list, so each operation is one
+ * roster change followed by a rebuild, as happens once per presence flush.
+ *
+ * <p>Usage: {@code java RosterBenchmark [users]}.
+ */
+public class RosterBenchmark {
+
+    public static void main(String[] args) {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        Bench bench = new Bench(1000, 3000);
+        run(bench, users);
+        System.out.println(bench.toJson());
+    }
+
+    /**
+     * Measures a roster change plus rebuild, and a cached read, for a roster of the given size.
+     *
+     * @param bench The harness to record results in.
+     * @param users How many users are on the roster.
+     */
+    static void run(Bench bench, int users) {
+        Roster roster = new Roster();
+        for (int i = 0; i < users; i++) {
+            roster.add("user" + i, "192.168." + (i / 256 % 256) + "." + (i % 256));
+        }
+        roster.add("probe", "10.0.0.1");
+        bench.run("roster.rebuild[" + users + " users]", () -> {
+            roster.add("probe", "10.0.0.1"); // Replaces the entry but still bumps the version
+            roster.snapshot();
+        });
+        bench.run("roster.cached[" + users + " users]", roster::snapshot);
+    }
+}
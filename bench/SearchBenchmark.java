@@ -0,0 +1,42 @@
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The {@code SearchBenchmark} class measures {@link SearchIndex} queries over a million messages whose words
+ * follow a skewed distribution, as in real chat: a rare word, a rare and a common word together, and a common
+ * word alone, which has to walk the longest posting lists. Each query returns the newest page of 20.
+ *
+ * <p>Usage: {@code java SearchBenchmark [messages]}.
+ */
+public class SearchBenchmark {
+
+    public static void main(String[] args) {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Bench bench = new Bench(1000, 3000);
+        run(bench, messages);
+        System.out.println(bench.toJson());
+    }
+
+    /**
+     * Builds an index of the given size and measures queries against it.
+     *
+     * @param bench    The harness to record results in.
+     * @param messages How many messages to index.
+     */
+    static void run(Bench bench, int messages) {
+        Random random = new Random(42);
+        SearchIndex index = new SearchIndex();
+        StringBuilder text = new StringBuilder();
+        for (int seq = 1; seq <= messages; seq++) {
+            text.setLength(0);
+            for (int word = 0; word < 8; word++) {
+                text.append("w").append((int) Math.min(9999, Math.abs(random.nextGaussian()) * 600)).append(' ');
+            }
+            index.add(new MessageLog.Entry(seq, 0, MessageLog.PUBLIC, seq % 4 == 0 ? "dev" : "general", "user", text.toString()));
+        }
+        List<String> rooms = List.of("general");
+        bench.run("search.rare[" + messages + " messages]", () -> index.search("w2000", rooms, "me", 0, 20));
+        bench.run("search.rare+common[" + messages + " messages]", () -> index.search("w2000 w1", rooms, "me", 0, 20));
+        bench.run("search.common[" + messages + " messages]", () -> index.search("w1", rooms, "me", 0, 20));
+    }
+}
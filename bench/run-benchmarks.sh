@@ -0,0 +1,9 @@
+#!/bin/sh
+# Compiles the server and the benchmarks and runs the benchmark suite.
+# Reports go to bench/results/<date>.json; pass --baseline=<report> to compare against an earlier run.
+set -e
+root=$(cd "$(dirname "$0")/.." && pwd)
+classes="$root/bench/build"
+mkdir -p "$classes" "$root/bench/results"
+javac -d "$classes" "$root"/src/*.java "$root"/bench/*.java
+exec java -cp "$classes" BenchmarkSuite --out="$root/bench/results/$(date +%Y%m%d-%H%M%S).json" "$@"
@@ -0,0 +1,136 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The {@code AesGcmCipher} class encrypts messages with AES-GCM under a key agreed per connection.
+ * Both sides send an X25519 public key in the {@code CAPS:} handshake as {@code aes-gcm=<key>}; the
+ * shared secret, hashed with SHA-256, becomes the AES key, so the key itself never crosses the wire.
+ *
+ * <p>An encrypted message is the Base64 of a 12-byte nonce followed by the ciphertext and tag. The nonce is
+ * a direction byte and a message counter rather than random bytes, which makes it unique per key without
+ * a call to {@code SecureRandom}, and lets the receiver reject replayed or reordered messages.
+ */
+final class AesGcmCipher implements MessageCipher {
+
+    static final String NAME = "aes-gcm";
+
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+
+    private final SecretKeySpec key;
+    private final byte direction; // 0 for messages the client encrypts, 1 for the server's
+    private final Cipher encryptor; // Reused for every message; guarded by this
+    private final Cipher decryptor;
+    private final byte[] nonce = new byte[NONCE_LENGTH];
+    private long sent; // Counter of the last message encrypted
+    private long received; // Counter of the last message decrypted
+
+    private AesGcmCipher(byte[] keyBytes, boolean server) throws GeneralSecurityException {
+        this.key = new SecretKeySpec(keyBytes, "AES");
+        this.direction = (byte) (server ? 1 : 0);
+        this.encryptor = Cipher.getInstance("AES/GCM/NoPadding");
+        this.decryptor = Cipher.getInstance("AES/GCM/NoPadding");
+    }
+
+    /**
+     * Generates the key pair one side of a connection offers in the handshake.
+     *
+     * @return A new X25519 key pair.
+     * @throws GeneralSecurityException if the JVM does not support X25519.
+     */
+    static KeyPair newKeyPair() throws GeneralSecurityException {
+        return KeyPairGenerator.getInstance("X25519").generateKeyPair();
+    }
+
+    /**
+     * Encodes a public key the way it is sent in the handshake.
+     *
+     * @param keyPair The key pair whose public half to encode.
+     * @return The public key as unpadded Base64, free of the {@code ,} and {@code :} separators.
+     */
+    static String encodePublicKey(KeyPair keyPair) {
+        return Base64.getEncoder().withoutPadding().encodeToString(keyPair.getPublic().getEncoded());
+    }
+
+    /**
+     * Creates the cipher for one side of a connection from its own key pair and the peer's public key.
+     *
+     * @param own           This side's key pair.
+     * @param peerPublicKey The peer's public key as sent in the handshake.
+     * @param server        Whether this side is the server.
+     * @return The cipher.
+     * @throws GeneralSecurityException if the peer's key is invalid.
+     */
+    static AesGcmCipher agree(KeyPair own, String peerPublicKey, boolean server) throws GeneralSecurityException {
+        PublicKey peer;
+        try {
+            peer = KeyFactory.getInstance("X25519").generatePublic(
+                    new X509EncodedKeySpec(Base64.getDecoder().decode(peerPublicKey)));
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("Malformed public key", e);
+        }
+        KeyAgreement agreement = KeyAgreement.getInstance("X25519");
+        agreement.init(own.getPrivate());
+        agreement.doPhase(peer, true);
+        byte[] secret = agreement.generateSecret();
+        byte[] keyBytes = MessageDigest.getInstance("SHA-256").digest(secret);
+        Arrays.fill(secret, (byte) 0);
+        return new AesGcmCipher(keyBytes, server);
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public synchronized String encrypt(String text) {
+        byte[] plain = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer.wrap(nonce).put(direction).put((byte) 0).put((byte) 0).put((byte) 0).putLong(++sent);
+        byte[] message = new byte[NONCE_LENGTH + plain.length + TAG_BITS / 8];
+        System.arraycopy(nonce, 0, message, 0, NONCE_LENGTH);
+        try {
+            encryptor.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce));
+            encryptor.doFinal(plain, 0, plain.length, message, NONCE_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-GCM encryption failed", e); // Only possible with a broken provider
+        }
+        return Base64.getEncoder().encodeToString(message);
+    }
+
+    @Override
+    public synchronized String decrypt(String text) throws GeneralSecurityException {
+        byte[] message;
+        try {
+            message = Base64.getDecoder().decode(text);
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("Malformed ciphertext", e);
+        }
+        if (message.length < NONCE_LENGTH + TAG_BITS / 8) {
+            throw new GeneralSecurityException("Ciphertext too short");
+        }
+        ByteBuffer header = ByteBuffer.wrap(message, 0, NONCE_LENGTH);
+        byte peerDirection = header.get();
+        long counter = header.getLong(4);
+        if (peerDirection == direction || counter <= received) {
+            throw new GeneralSecurityException("Replayed or reflected message");
+        }
+        decryptor.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, message, 0, NONCE_LENGTH));
+        byte[] plain = decryptor.doFinal(message, NONCE_LENGTH, message.length - NONCE_LENGTH);
+        received = counter; // Only authenticated messages move the counter
+        return new String(plain, StandardCharsets.UTF_8);
+    }
+}
@@ -1,5 +1,6 @@
 import javax.swing.*;
 import java.awt.*;
+import java.util.List;
 /**
  * The {@code ChatClientView} class is responsible for initializing and managing
  * the Graphical User Interface (GUI) components of the chat client.
@@ -14,13 +15,20 @@ public class ChatClientView {
      */
 
     private JFrame frame;
-    private JTextArea publicChatArea;
+    private JList<String> publicChatList;
+    private ChatHistoryModel chatHistory;
     private JList<String> userList;
     private DefaultListModel<String> userListModel;
     private JTextField messageField, nicknameField, serverIPField, serverPortField, privateRecipientField, encryptedMessageField;
     private JButton sendButton, connectButton, disconnectButton, decryptButton, clearDecryptButton;
     private JLabel statusLabel, decryptedMessageLabel;
     private JCheckBox encryptCheckBox;
+    private JComboBox<String> roomSelector;
+    private JButton leaveRoomButton;
+    private JTextField searchField;
+    private JButton searchButton, newerResultsButton, olderResultsButton;
+    private DefaultListModel<String> searchResultsModel;
+    private JLabel searchStatusLabel;
 
     public ChatClientView() {
         initializeGUI();
@@ -35,19 +43,27 @@ public class ChatClientView {
         frame.setLayout(new BorderLayout());
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 
-        // Public Chat Area
-        publicChatArea = new JTextArea();
-        publicChatArea.setEditable(false);
-        JScrollPane publicChatScrollPane = new JScrollPane(publicChatArea);
+        // Public Chat Area: a list only lays out and paints the rows in view, and with a fixed
+        // row height it never measures the others, however long the history gets
+        chatHistory = new ChatHistoryModel();
+        publicChatList = new JList<>(chatHistory);
+        publicChatList.setFixedCellHeight(publicChatList.getFontMetrics(publicChatList.getFont()).getHeight() + 2);
+        publicChatList.setFixedCellWidth(1); // Let the scroll pane size the list, not its longest line
+        JScrollPane publicChatScrollPane = new JScrollPane(publicChatList);
 
         // User List Area
         userListModel = new DefaultListModel<>();
         userList = new JList<>(userListModel);
         JScrollPane userListScrollPane = new JScrollPane(userList);
-        userListScrollPane.setPreferredSize(new Dimension(200, 0));
+
+        // The user list and the search panel share the right-hand side
+        JTabbedPane sideTabs = new JTabbedPane();
+        sideTabs.addTab("Users", userListScrollPane);
+        sideTabs.addTab("Search", createSearchPanel());
+        sideTabs.setPreferredSize(new Dimension(300, 0));
 
         // Setup the main chat and user list panels
-        JSplitPane chatSplitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, publicChatScrollPane, userListScrollPane);
+        JSplitPane chatSplitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, publicChatScrollPane, sideTabs);
         chatSplitPane.setResizeWeight(0.75);
         frame.add(chatSplitPane, BorderLayout.CENTER);
 
@@ -93,6 +109,40 @@ public class ChatClientView {
 
         return topPanel;
     }
+
+    /**
+     * Creates the search panel: a query field, the list of results and buttons to page through them.
+     *
+     * @return A {@code JPanel} that contains the search components.
+     */
+    private JPanel createSearchPanel() {
+        JPanel searchPanel = new JPanel(new BorderLayout());
+        searchField = new JTextField(15);
+        searchButton = new JButton("Search");
+        JPanel queryPanel = new JPanel(new BorderLayout());
+        queryPanel.add(searchField, BorderLayout.CENTER);
+        queryPanel.add(searchButton, BorderLayout.EAST);
+
+        searchResultsModel = new DefaultListModel<>();
+        JList<String> searchResultsList = new JList<>(searchResultsModel);
+
+        newerResultsButton = new JButton("Newer");
+        olderResultsButton = new JButton("Older");
+        newerResultsButton.setEnabled(false);
+        olderResultsButton.setEnabled(false);
+        searchStatusLabel = new JLabel(" ");
+        JPanel pagingPanel = new JPanel(new BorderLayout());
+        pagingPanel.add(newerResultsButton, BorderLayout.WEST);
+        pagingPanel.add(searchStatusLabel, BorderLayout.CENTER);
+        pagingPanel.add(olderResultsButton, BorderLayout.EAST);
+        searchStatusLabel.setHorizontalAlignment(SwingConstants.CENTER);
+
+        searchPanel.add(queryPanel, BorderLayout.NORTH);
+        searchPanel.add(new JScrollPane(searchResultsList), BorderLayout.CENTER);
+        searchPanel.add(pagingPanel, BorderLayout.SOUTH);
+        return searchPanel;
+    }
+
 /**
      * Creates the bottom panel with message input fields, send button, encryption checkbox,
      * and fields for encrypted messages and decryption.
@@ -101,6 +151,9 @@ public class ChatClientView {
      */
     private JPanel createBottomPanel() {
         JPanel bottomPanel = new JPanel();
+        roomSelector = new JComboBox<>(new String[] {"general"});
+        roomSelector.setEditable(true); // Type a new room name to join it
+        leaveRoomButton = new JButton("Leave Room");
         messageField = new JTextField(30);
         privateRecipientField = new JTextField(6); // Initialize this field
         sendButton = new JButton("Send");
@@ -110,6 +163,9 @@ public class ChatClientView {
         decryptButton = new JButton("Decrypt");
         clearDecryptButton = new JButton("Clear Decrypt");
         decryptedMessageLabel = new JLabel();
+        bottomPanel.add(new JLabel("Room:"));
+        bottomPanel.add(roomSelector);
+        bottomPanel.add(leaveRoomButton);
         bottomPanel.add(new JLabel("Message:"));
         bottomPanel.add(messageField);
         bottomPanel.add(sendButton);
@@ -131,17 +187,88 @@ public class ChatClientView {
     public void updateUserList(String[] users) {
         userListModel.removeAllElements();
         for (String user : users) {
-            userListModel.addElement(user);
+            if (!user.isEmpty()) {
+                userListModel.addElement(user);
+            }
         }
     }
 
+    /**
+     * Appends a line to the chat history, dropping the oldest line once the history limit is reached.
+     * The list follows new lines only while it is scrolled to the bottom, so reading older lines is
+     * not interrupted.
+     *
+     * @param message The line to display.
+     */
+    public void appendMessage(String message) {
+        int last = chatHistory.getSize() - 1;
+        boolean following = last < 0 || publicChatList.getLastVisibleIndex() >= last;
+        chatHistory.add(message);
+        if (following) {
+            publicChatList.ensureIndexIsVisible(chatHistory.getSize() - 1);
+        }
+    }
+
+    /**
+     * Appends several lines to the chat history at once, with one model update and at most one scroll.
+     *
+     * @param messages The lines to display, oldest first.
+     * @see #appendMessage(String)
+     */
+    public void appendMessages(List<String> messages) {
+        int last = chatHistory.getSize() - 1;
+        boolean following = last < 0 || publicChatList.getLastVisibleIndex() >= last;
+        chatHistory.addAll(messages);
+        if (following) {
+            publicChatList.ensureIndexIsVisible(chatHistory.getSize() - 1);
+        }
+    }
+
+    /**
+     * Shows one page of search results, replacing the previous page.
+     *
+     * @param total    How many messages match in all.
+     * @param offset   How many newer matches precede this page.
+     * @param results  The matching lines, newest first.
+     * @param pageSize The number of results asked for per page.
+     */
+    public void showSearchResults(long total, int offset, List<String> results, int pageSize) {
+        searchResultsModel.removeAllElements();
+        for (String result : results) {
+            searchResultsModel.addElement(result);
+        }
+        searchStatusLabel.setText(total == 0 ? "No matches"
+                : (offset + 1) + "-" + (offset + results.size()) + " of " + total);
+        newerResultsButton.setEnabled(offset > 0);
+        olderResultsButton.setEnabled(offset + pageSize < total && results.size() == pageSize);
+    }
+
+    /**
+     * Adds a single user to the user list display without rebuilding it.
+     *
+     * @param user The user entry, in the same {@code name:ip} form as the full list.
+     */
+    public void addUser(String user) {
+        userListModel.addElement(user);
+    }
+
+    /**
+     * Removes a single user from the user list display without rebuilding it.
+     *
+     * @param user The user entry, in the same {@code name:ip} form as the full list.
+     */
+    public void removeUser(String user) {
+        userListModel.removeElement(user);
+    }
+
     // Inside ChatClientView class, add this getter for the privateRecipientField
 public JTextField getPrivateRecipientField() {
     return privateRecipientField;
 }
 
     // Getters for the controller to use
-    public JTextArea getPublicChatArea() { return publicChatArea; }
+    public JList<String> getPublicChatList() { return publicChatList; }
+    public ChatHistoryModel getChatHistory() { return chatHistory; }
     public JTextField getMessageField() { return messageField; }
     public JTextField getNicknameField() { return nicknameField; }
     public JTextField getServerIPField() { return serverIPField; }
@@ -159,4 +286,12 @@ public JTextField getPrivateRecipientField() {
     public AbstractButton getEncryptCheckBox() {
         return encryptCheckBox;
     }
+
+    public JComboBox<String> getRoomSelector() { return roomSelector; }
+    public JButton getLeaveRoomButton() { return leaveRoomButton; }
+    public JTextField getSearchField() { return searchField; }
+    public JButton getSearchButton() { return searchButton; }
+    public JButton getNewerResultsButton() { return newerResultsButton; }
+    public JButton getOlderResultsButton() { return olderResultsButton; }
+    public JLabel getSearchStatusLabel() { return searchStatusLabel; }
 }
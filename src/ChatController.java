@@ -1,4 +1,5 @@
 import javax.swing.*;
+import java.util.List;
 
 /**
  * The {@code ChatController} class handles the interaction logic between the {@code ChatClientView} 
@@ -17,6 +18,11 @@ public class ChatController {
 
     private final ChatClientView view;
     private final ChatModel model;
+    // Incoming lines reach the chat list in batches, at most once per frame, however fast they arrive
+    private final EdtBatcher<String> incoming;
+    private static final int SEARCH_PAGE_SIZE = 20;
+    private String searchQuery = ""; // The query whose results are shown
+    private int searchOffset; // How many newer results precede the page shown
 
     public ChatController(ChatClientView view) {
 
@@ -24,6 +30,7 @@ public class ChatController {
      * Initializes the action listeners for the various buttons and fields in the view.
      */
         this.view = view;
+        this.incoming = new EdtBatcher<>(EdtBatcher.FRAME_MILLIS, view::appendMessages);
         this.model = new ChatModel(new ChatModel.ChatListener() {
             @Override
             public void onMessageReceived(String message) {
@@ -35,8 +42,7 @@ public class ChatController {
                 } else {
                     displayMessage = message;
                 }
-                SwingUtilities.invokeLater(() ->
-                        view.getPublicChatArea().append(displayMessage + "\n"));
+                incoming.add(displayMessage);
             }
             
 
@@ -50,6 +56,15 @@ public class ChatController {
                 });
             }
 
+            @Override
+            public void onReconnecting(int attempt, long delayMillis) {
+                SwingUtilities.invokeLater(() -> {
+                    view.getStatusLabel().setText("Reconnecting (attempt " + attempt + ")...");
+                    view.getConnectButton().setEnabled(false);
+                    view.getDisconnectButton().setEnabled(true); // Stops trying
+                });
+            }
+
             @Override
             public void onUserListReceived(String userList) {
                 SwingUtilities.invokeLater(() -> {
@@ -57,6 +72,21 @@ public class ChatController {
                     view.updateUserList(usersArray);
                 });
             }
+
+            @Override
+            public void onUserJoined(String user) {
+                SwingUtilities.invokeLater(() -> view.addUser(user));
+            }
+
+            @Override
+            public void onUserLeft(String user) {
+                SwingUtilities.invokeLater(() -> view.removeUser(user));
+            }
+
+            @Override
+            public void onSearchResults(long total, int offset, List<String> results) {
+                SwingUtilities.invokeLater(() -> view.showSearchResults(total, offset, results, SEARCH_PAGE_SIZE));
+            }
         });
         initializeController();
     }
@@ -67,6 +97,56 @@ public class ChatController {
         view.getDisconnectButton().addActionListener(e -> disconnect());
         view.getDecryptButton().addActionListener(e -> decryptMessage());
         view.getClearDecryptButton().addActionListener(e -> clearDecryptedMessage());
+        view.getRoomSelector().addActionListener(e -> joinSelectedRoom());
+        view.getLeaveRoomButton().addActionListener(e -> leaveSelectedRoom());
+        view.getSearchButton().addActionListener(e -> search(view.getSearchField().getText().trim(), 0));
+        view.getSearchField().addActionListener(e -> search(view.getSearchField().getText().trim(), 0));
+        view.getNewerResultsButton().addActionListener(e -> search(searchQuery, Math.max(0, searchOffset - SEARCH_PAGE_SIZE)));
+        view.getOlderResultsButton().addActionListener(e -> search(searchQuery, searchOffset + SEARCH_PAGE_SIZE));
+    }
+/**
+     * Asks the server for one page of messages containing the query's words.
+     */
+    private void search(String query, int offset) {
+        if (query.isEmpty()) {
+            return;
+        }
+        if (!model.isConnected() || !model.isSearchAvailable()) {
+            view.getSearchStatusLabel().setText("Search is not available");
+            return;
+        }
+        searchQuery = query;
+        searchOffset = offset;
+        view.getSearchStatusLabel().setText("Searching...");
+        model.search(query, offset, SEARCH_PAGE_SIZE);
+    }
+/**
+     * Joins the room chosen or typed in the room selector and adds it to the selector's list.
+     */
+    private void joinSelectedRoom() {
+        JComboBox<String> selector = view.getRoomSelector();
+        Object selected = selector.getSelectedItem();
+        String room = selected == null ? "" : selected.toString().trim();
+        if (room.isEmpty() || !model.isConnected()) {
+            return;
+        }
+        if (((DefaultComboBoxModel<String>) selector.getModel()).getIndexOf(room) < 0) {
+            selector.addItem(room);
+        }
+        model.joinRoom(room);
+    }
+/**
+     * Leaves the room shown in the room selector and switches the selector back to the default room.
+     */
+    private void leaveSelectedRoom() {
+        JComboBox<String> selector = view.getRoomSelector();
+        Object selected = selector.getSelectedItem();
+        if (selected == null || "general".equals(selected) || !model.isConnected()) {
+            return;
+        }
+        model.partRoom(selected.toString());
+        selector.removeItem(selected);
+        selector.setSelectedItem("general");
     }
 /**
      * Sends a message typed by the user to other clients. It checks if the message should be private 
@@ -90,13 +170,12 @@ public class ChatController {
             // Send the private message through the model
             model.sendPrivateMessage(message, recipient);
         } else {
-            // For public messages, prepend with "MSG:"
+            // Encrypted public messages are sent as "MSG:" with the cipher agreed with the server
             if (shouldEncrypt) {
-                message = EncryptionUtil.encrypt(message);
-                message = "" + message;
+                model.sendEncryptedMessage(message);
+            } else {
+                model.sendMessage(message);
             }
-            
-            model.sendMessage(message);
         }
         
         view.getMessageField().setText(""); // Clear the message field
@@ -0,0 +1,117 @@
+import java.util.Arrays;
+import java.util.List;
+import javax.swing.AbstractListModel;
+
+/**
+ * The {@code ChatHistoryModel} class holds the most recent chat lines for the chat list of
+ * {@code ChatClientView}. Lines live in a ring buffer of fixed capacity: once it is full, every new line
+ * overwrites the oldest one, so memory stays constant and an append costs the same after an hour as after
+ * a minute. Like all Swing models it must only be used on the event dispatch thread.
+ */
+public class ChatHistoryModel extends AbstractListModel<String> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The number of lines kept when no other limit is given, overridable with the
+     * {@code chat.historyLimit} system property.
+     */
+    static final int DEFAULT_LIMIT = Integer.getInteger("chat.historyLimit", 10_000);
+
+    private final String[] lines;
+    private int head; // Index of the oldest line
+    private int size;
+
+    /**
+     * Creates an empty history keeping up to {@link #DEFAULT_LIMIT} lines.
+     */
+    public ChatHistoryModel() {
+        this(DEFAULT_LIMIT);
+    }
+
+    /**
+     * Creates an empty history.
+     *
+     * @param limit The number of lines to keep; older lines are discarded.
+     */
+    public ChatHistoryModel(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("History limit must be positive: " + limit);
+        }
+        this.lines = new String[limit];
+    }
+
+    /**
+     * Appends a line, discarding the oldest one if the history is full.
+     *
+     * @param line The line to append.
+     */
+    public void add(String line) {
+        if (size == lines.length) {
+            lines[head] = line; // The slot of the oldest line becomes the newest
+            head = (head + 1) % lines.length;
+            fireIntervalRemoved(this, 0, 0);
+        } else {
+            lines[(head + size) % lines.length] = line;
+            size++;
+        }
+        fireIntervalAdded(this, size - 1, size - 1);
+    }
+
+    /**
+     * Appends several lines with a single pair of list events, discarding the oldest lines as needed.
+     * If there are more lines than the history holds, only the newest ones are kept.
+     *
+     * @param batch The lines to append, oldest first.
+     */
+    public void addAll(List<String> batch) {
+        int count = batch.size();
+        if (count == 0) return;
+        int skipped = Math.max(0, count - lines.length); // Lines that would be overwritten within the batch itself
+        int added = count - skipped;
+        int removed = Math.max(0, size + added - lines.length);
+        for (int i = skipped; i < count; i++) {
+            lines[(head + size) % lines.length] = batch.get(i);
+            if (size == lines.length) {
+                head = (head + 1) % lines.length;
+            } else {
+                size++;
+            }
+        }
+        if (removed > 0) {
+            fireIntervalRemoved(this, 0, removed - 1);
+        }
+        fireIntervalAdded(this, size - added, size - 1);
+    }
+
+    /**
+     * Removes every line.
+     */
+    public void clear() {
+        if (size == 0) return;
+        int last = size - 1;
+        Arrays.fill(lines, null);
+        head = 0;
+        size = 0;
+        fireIntervalRemoved(this, 0, last);
+    }
+
+    /**
+     * Returns the maximum number of lines kept.
+     *
+     * @return The history limit.
+     */
+    public int getLimit() {
+        return lines.length;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return lines[(head + index) % lines.length];
+    }
+}
@@ -1,5 +1,16 @@
 import java.io.*;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * The {@code ChatModel} class manages the client-side network communication logic for the chat application.
@@ -8,11 +19,44 @@ import java.net.Socket;
 
 public class ChatModel {
 
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000; // How long to wait for the server to confirm capabilities
+    private static final long RECONNECT_BASE_MILLIS = 500; // Ceiling of the first reconnect delay, doubled per failed attempt
+    private static final long RECONNECT_MAX_MILLIS = 30_000; // Highest reconnect delay ceiling
+    private static final int RESUME_OVERLAP = 256; // Sequence numbers replayed again on resume, in case messages arrived out of order
+
     private Socket socket; // The socket for communicating with the server
-    private PrintWriter writer; // To write messages to the server
-    private BufferedReader reader; // To read messages from the server
+    private OutputStream writer; // To write messages to the server
+    private boolean batching; // Whether send() leaves frames in the buffer for one later flush
+    private int heartbeatMillis; // The server's heartbeat interval, or 0 if heartbeats were not agreed on
+    private FrameReader reader; // To read messages from the server
     private final ChatListener listener; // The listener for various events
     private boolean isConnected; // To keep track of the connection status
+    private boolean binaryFrames; // Whether the server agreed to binary frames on this connection
+    private boolean binaryFramesEnabled = true; // Whether to ask for binary frames when connecting
+    private boolean compression; // Whether the server agreed to compressed frames on this connection
+    private boolean compressionEnabled = true; // Whether to ask for compressed frames along with binary ones
+    private String preferredCipher = AesGcmCipher.NAME; // The cipher to ask for when connecting
+    private MessageCipher cipher = EncryptionUtil.CIPHER; // The cipher agreed with the server for MSG: payloads
+    private long rosterVersion = -1; // Version of the user list last applied, -1 until the first snapshot
+    private int historyOnConnect = 50; // Logged messages to replay after connecting; 0 for none
+    private boolean historyAvailable; // Whether the server keeps a message log this client may replay
+    private volatile long lastLoggedSeq; // Sequence number of the newest logged message replayed so far
+    private volatile boolean searchAvailable; // Whether the server indexes its message log for SEARCH:
+    private final long[] recentSeqs = new long[RESUME_OVERLAP]; // Logged messages shown, by sequence number modulo the overlap
+    private List<String> searchResults; // The page of results being received, listener thread only
+    private long searchTotal;
+    private int searchOffset;
+    private int searchExpected;
+    private String hostname; // Where the last connect went, for reconnecting
+    private int port;
+    private String nickname;
+    private boolean autoReconnect = true; // Whether a lost connection is re-established automatically
+    private volatile boolean disconnectRequested; // Set by disconnect(), so a closed socket is not mistaken for a lost one
+    private volatile Thread listenerThread; // Reads from the server, and reconnects when the connection is lost
+    private int reconnectAttempts; // Failed attempts since the server last confirmed our registration
+    private long redirectMillis = -1; // From a draining server's RECONNECT: the most the next reconnect may wait, or -1
+    private final Set<String> joinedRooms = Collections.synchronizedSet(new LinkedHashSet<>()); // Rejoined on reconnect
+    private volatile String activeRoom = "general"; // The room public messages go to
 
     /**
      * Defines the listener interface for chat-related events.
@@ -22,6 +66,27 @@ public class ChatModel {
         void onMessageReceived(String message);
         void onConnectionStatusChanged(boolean isConnected);
         void onUserListReceived(String userList);
+        void onUserJoined(String user);
+        void onUserLeft(String user);
+
+        /**
+         * Learns that the connection was lost and is about to be re-established.
+         *
+         * @param attempt     The number of the attempt, starting at 1.
+         * @param delayMillis How long the model waits before trying.
+         */
+        default void onReconnecting(int attempt, long delayMillis) {
+        }
+
+        /**
+         * Receives one page of search results.
+         *
+         * @param total   How many logged messages match in all.
+         * @param offset  How many newer matches precede this page.
+         * @param results The matching lines, newest first.
+         */
+        default void onSearchResults(long total, int offset, List<String> results) {
+        }
     }
 
     /**
@@ -43,18 +108,266 @@ public class ChatModel {
      */
     public void connect(String hostname, int port, String nickname) throws IOException {
         if (isConnected) return;
+        this.hostname = hostname;
+        this.port = port;
+        this.nickname = nickname;
+        disconnectRequested = false;
+        reconnectAttempts = 0;
+        lastLoggedSeq = 0;
+        Arrays.fill(recentSeqs, 0);
+        joinedRooms.clear();
+        activeRoom = "general";
+        open(false);
+    }
 
+    /**
+     * Opens a connection, negotiates capabilities and registers the nickname. When resuming after a lost
+     * connection, the rooms joined before are joined again and only the logged messages after the last
+     * one seen are replayed.
+     *
+     * @param resume Whether this re-establishes a lost connection.
+     * @throws IOException if the connection cannot be opened.
+     */
+    private void open(boolean resume) throws IOException {
         socket = new Socket(hostname, port);
-        writer = new PrintWriter(socket.getOutputStream(), true);
-        reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        socket.setTcpNoDelay(true); // Frames are flushed deliberately, so Nagle would only add latency
+        writer = new BufferedOutputStream(socket.getOutputStream());
+        reader = new FrameReader(socket.getInputStream());
 
-        // Send the nickname as a separate message prefixed with "NICKNAME:"
-        writer.println("NICKNAME:" + nickname);
+        // Ask for user list deltas, binary frames and a cipher, wait for the server to say which it accepted, then register
+        rosterVersion = -1;
+        binaryFrames = false;
+        compression = false;
+        heartbeatMillis = 0;
+        cipher = EncryptionUtil.CIPHER;
+        KeyPair keyPair = null;
+        historyAvailable = false;
+        searchAvailable = false;
+        StringBuilder requested = new StringBuilder("roster-delta,history,search,heartbeat,reconnect");
+        if (binaryFramesEnabled) {
+            requested.append(",binary");
+            if (compressionEnabled) {
+                requested.append(",deflate");
+            }
+        }
+        if (preferredCipher.equals(AesGcmCipher.NAME)) {
+            try {
+                keyPair = AesGcmCipher.newKeyPair();
+                requested.append(',').append(AesGcmCipher.NAME).append('=').append(AesGcmCipher.encodePublicKey(keyPair));
+            } catch (GeneralSecurityException e) {
+                System.err.println("AES-GCM is not available, using the shift cipher: " + e.getMessage());
+            }
+        }
+        send(Frame.of(Opcode.CAPS, requested.toString()));
+        Frame reply = readHandshakeReply();
+        if (reply != null && reply.opcode() == Opcode.CAPS) {
+            for (String capability : reply.field(0).split(",")) {
+                if (capability.equals("binary")) {
+                    reader.useBinaryFrames();
+                    binaryFrames = true;
+                } else if (capability.equals("deflate")) {
+                    compression = true; // Compressed frames from the server are inflated by the reader
+                } else if (capability.startsWith("heartbeat=")) {
+                    heartbeatMillis = (int) Math.min(Integer.MAX_VALUE, Long.parseLong(capability.substring(10)) * 1000);
+                } else if (capability.equals("history")) {
+                    historyAvailable = true;
+                } else if (capability.equals("search")) {
+                    searchAvailable = true;
+                } else if (keyPair != null && capability.startsWith(AesGcmCipher.NAME + "=")) {
+                    try {
+                        cipher = AesGcmCipher.agree(keyPair, capability.substring(AesGcmCipher.NAME.length() + 1), false);
+                    } catch (GeneralSecurityException e) {
+                        closeResources();
+                        throw new IOException("Server sent an invalid key", e);
+                    }
+                }
+            }
+            reply = null;
+        }
+        startBatch(); // The registration, rejoins and history request leave in one write
+        send(Frame.of(Opcode.NICKNAME, nickname));
+        if (resume) {
+            rejoinRooms();
+        }
+        if (historyAvailable && resume && lastLoggedSeq > 0) {
+            // Only the gap, plus a small overlap whose messages already shown are skipped
+            send(Frame.of(Opcode.HISTORY, "since", Long.toString(Math.max(0, lastLoggedSeq - RESUME_OVERLAP))));
+        } else if (historyAvailable && historyOnConnect > 0) {
+            send(Frame.of(Opcode.HISTORY, "last", Integer.toString(historyOnConnect))); // Catch up on what was said before we came
+        }
+        endBatch();
+        socket.setSoTimeout(heartbeatMillis); // A silent server is pinged, and given up on if it stays silent
 
         isConnected = true;
         listener.onConnectionStatusChanged(isConnected);
 
-        new Thread(this::listenForMessages).start();
+        if (reply != null) {
+            handleFrame(reply); // The server ignored CAPS and already sent something else
+        }
+        Thread thread = new Thread(this::listenForMessages, "chat-listener");
+        listenerThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Joins the rooms this client was in before its connection was lost, ending with the room its
+     * public messages went to.
+     */
+    private void rejoinRooms() {
+        String active = activeRoom;
+        List<String> rooms;
+        synchronized (joinedRooms) {
+            rooms = new ArrayList<>(joinedRooms);
+        }
+        for (String room : rooms) {
+            if (!room.equals(active)) {
+                send(Frame.of(Opcode.JOIN, room));
+            }
+        }
+        if (!rooms.isEmpty() || !active.equals("general")) {
+            send(Frame.of(Opcode.JOIN, active));
+        }
+    }
+
+    /**
+     * Sets whether a lost connection is re-established automatically. On by default.
+     *
+     * @param enabled {@code true} to reconnect automatically.
+     */
+    public void setAutoReconnect(boolean enabled) {
+        autoReconnect = enabled;
+    }
+
+    /**
+     * Reads the server's answer to the capabilities request, giving up after a while so a server
+     * that never answers still gets the nickname.
+     *
+     * @return The first frame from the server, or {@code null} if none arrived in time.
+     * @throws IOException if reading fails.
+     */
+    private Frame readHandshakeReply() throws IOException {
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        try {
+            Frame reply = reader.readFrame();
+            if (reply == null) {
+                throw new EOFException("Server closed the connection during the handshake");
+            }
+            return reply;
+        } catch (SocketTimeoutException e) {
+            return null;
+        } finally {
+            socket.setSoTimeout(0);
+        }
+    }
+
+    /**
+     * Sets whether the next connection asks the server for binary frames. Text frames are used
+     * when this is off or the server does not support them.
+     *
+     * @param enabled {@code true} to ask for binary frames.
+     */
+    public void setBinaryFramesEnabled(boolean enabled) {
+        binaryFramesEnabled = enabled;
+    }
+
+    /**
+     * Sets whether the next connection asks the server to compress large binary frames, such as long
+     * messages and user lists. Has no effect without binary frames.
+     *
+     * @param enabled {@code true} to ask for compression.
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        compressionEnabled = enabled;
+    }
+
+    /**
+     * Sets the cipher the next connection asks the server for. The shift cipher is used when the
+     * server does not agree to it.
+     *
+     * @param name {@code aes-gcm} or {@code shift}.
+     */
+    public void setPreferredCipher(String name) {
+        preferredCipher = name;
+    }
+
+    /**
+     * Returns the cipher agreed with the server for encrypted public messages.
+     *
+     * @return The current connection's cipher.
+     */
+    MessageCipher getCipher() {
+        return cipher;
+    }
+
+    /**
+     * Sets how many logged messages the next connection asks the server to replay.
+     *
+     * @param count The number of messages, or 0 for none.
+     */
+    public void setHistoryOnConnect(int count) {
+        historyOnConnect = Math.max(0, count);
+    }
+
+    /**
+     * Asks the server to replay the logged messages after a sequence number, for instance those
+     * missed while disconnected. They arrive like any other message.
+     *
+     * @param sequence The sequence number of the last message already seen.
+     */
+    public void requestHistorySince(long sequence) {
+        if (isConnected && historyAvailable) {
+            send(Frame.of(Opcode.HISTORY, "since", Long.toString(sequence)));
+        }
+    }
+
+    /**
+     * Searches the server's message log for messages containing all the given words. The results are
+     * passed to {@link ChatListener#onSearchResults}.
+     *
+     * @param query  The words to look for.
+     * @param offset How many of the newest matches to skip, for paging.
+     * @param limit  The most results wanted.
+     */
+    public void search(String query, int offset, int limit) {
+        if (isConnected && searchAvailable) {
+            send(Frame.of(Opcode.SEARCH, Integer.toString(offset), Integer.toString(limit), query));
+        }
+    }
+
+    /**
+     * Checks whether the connected server supports searching its message log.
+     *
+     * @return {@code true} if {@link #search} can be used.
+     */
+    public boolean isSearchAvailable() {
+        return searchAvailable;
+    }
+
+    /**
+     * Returns the sequence number of the newest logged message replayed on this model.
+     *
+     * @return The sequence number, or 0 if none has been replayed.
+     */
+    public long getLastLoggedSequence() {
+        return lastLoggedSeq;
+    }
+
+    /**
+     * Checks whether the current connection uses binary frames.
+     *
+     * @return {@code true} if the server agreed to binary frames.
+     */
+    public boolean isUsingBinaryFrames() {
+        return binaryFrames;
+    }
+
+    /**
+     * Checks whether the current connection compresses large frames.
+     *
+     * @return {@code true} if the server agreed to compressed frames.
+     */
+    public boolean isUsingCompression() {
+        return compression;
     }
 
     /**
@@ -65,27 +378,277 @@ public class ChatModel {
      */
     public void sendPrivateMessage(String message, String recipient) {
         if (isConnected && writer != null) {
-            writer.println("PRIVATE:" + recipient + ":" + message);
+            send(Frame.of(Opcode.PRIVATE, recipient, message));
         }
     }    
 
     /**
-     * Listens for incoming messages from the server and handles them accordingly.
+     * Encrypts a public message with the connection's cipher and sends it as {@code MSG:}; the server
+     * decrypts it before delivering it to the room.
+     *
+     * @param message The plain text message.
+     */
+    public void sendEncryptedMessage(String message) {
+        if (isConnected && writer != null) {
+            send(Frame.of(Opcode.MSG, cipher.encrypt(message)));
+        }
+    }
+
+    /**
+     * Joins a chat room, creating it if needed. Public messages are sent to the room joined last.
+     *
+     * @param room The room name.
+     */
+    public void joinRoom(String room) {
+        if (isConnected && writer != null) {
+            if (!room.equals("general")) {
+                joinedRooms.add(room);
+            }
+            activeRoom = room;
+            send(Frame.of(Opcode.JOIN, room));
+        }
+    }
+
+    /**
+     * Leaves a chat room. Leaving the room messages go to switches back to the default room.
+     *
+     * @param room The room name.
+     */
+    public void partRoom(String room) {
+        if (isConnected && writer != null) {
+            joinedRooms.remove(room);
+            if (room.equals(activeRoom)) {
+                activeRoom = "general";
+            }
+            send(Frame.of(Opcode.PART, room));
+        }
+    }
+
+    /**
+     * Listens for incoming messages from the server and handles them accordingly. If the connection is
+     * lost rather than closed by {@link #disconnect()}, this thread goes on to reconnect.
      */
     private void listenForMessages() {
+        FrameReader in = reader;
+        boolean pinged = false; // Whether a PING: went unanswered since the server was last heard from
         try {
-            String incomingMessage;
-            while ((incomingMessage = reader.readLine()) != null) {
-                if (incomingMessage.startsWith("USERLIST:")) {
-                    listener.onUserListReceived(incomingMessage.substring(9));
-                } else {
-                    listener.onMessageReceived(incomingMessage);
+            while (true) {
+                Frame frame;
+                try {
+                    frame = in.readFrame();
+                } catch (SocketTimeoutException e) {
+                    // Only with heartbeats: the server, which pings us when we are quiet, has been silent too long
+                    if (pinged) {
+                        throw new SocketTimeoutException("No heartbeat from the server");
+                    }
+                    pinged = true;
+                    send(Frame.of(Opcode.PING, Long.toString(System.currentTimeMillis())));
+                    continue;
+                }
+                if (frame == null) {
+                    break;
+                }
+                pinged = false;
+                handleFrame(frame);
+                if (redirectMillis >= 0) {
+                    break; // The server is draining; what it sent before asking us to go has all been read
                 }
             }
         } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
+            if (!disconnectRequested) {
+                System.err.println("Connection lost: " + e.getMessage());
+            }
+        }
+        if (disconnectRequested || !autoReconnect) {
             disconnect();
+        } else {
+            reconnect();
+        }
+    }
+
+    /**
+     * Re-establishes a lost connection. Before each attempt it waits a random time below a ceiling that
+     * doubles with every failed attempt, up to {@link #RECONNECT_MAX_MILLIS}, so clients that lost the same
+     * server come back spread out rather than all at once. Gives up only when {@link #disconnect()} is called.
+     */
+    private void reconnect() {
+        closeResources();
+        isConnected = false;
+        listener.onConnectionStatusChanged(false);
+        while (!disconnectRequested) {
+            long ceiling = redirectMillis >= 0 ? redirectMillis // Spread over the window the draining server asked for
+                    : Math.min(RECONNECT_MAX_MILLIS, RECONNECT_BASE_MILLIS << Math.min(reconnectAttempts, 16));
+            redirectMillis = -1;
+            long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+            reconnectAttempts++;
+            listener.onReconnecting(reconnectAttempts, delay);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return; // disconnect() was called
+            }
+            if (disconnectRequested) {
+                return;
+            }
+            try {
+                open(true); // Starts a new listener thread; this one ends
+                return;
+            } catch (IOException e) {
+                closeResources();
+            }
+        }
+    }
+
+    /**
+     * Dispatches one message from the server on its opcode. A message with missing or malformed fields
+     * changes nothing: its fields are all parsed before any state is touched.
+     *
+     * @param frame The message received.
+     * @throws ProtocolException if the message is malformed; the connection is then dropped and re-established.
+     */
+    private void handleFrame(Frame frame) throws ProtocolException {
+        if (frame.fieldCount() < frame.opcode().arity) {
+            throw new ProtocolException(frame.opcode() + " takes " + frame.opcode().arity + " fields, got " + frame.fieldCount());
+        }
+        try {
+            dispatch(frame);
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Malformed " + frame.opcode() + " from the server: " + e.getMessage());
+        }
+    }
+
+    private void dispatch(Frame frame) {
+        switch (frame.opcode()) {
+            case PING:
+                send(Frame.of(Opcode.PONG, frame.field(0)));
+                break;
+            case PONG:
+                break; // Hearing anything at all was the point
+            case RECONNECT:
+                long withinMillis = Math.max(0, Long.parseLong(frame.field(0)));
+                String target = frame.field(1);
+                int colon = target.lastIndexOf(':');
+                if (!target.isEmpty() && colon <= 0) {
+                    throw new NumberFormatException("no port in " + target);
+                }
+                if (colon > 0) {
+                    int targetPort = Integer.parseInt(target.substring(colon + 1));
+                    hostname = target.substring(0, colon);
+                    port = targetPort;
+                }
+                redirectMillis = withinMillis;
+                break;
+
+            case USERLIST:
+                reconnectAttempts = 0; // The server has accepted our nickname
+                listener.onUserListReceived(frame.field(0));
+                break;
+            case USERSNAPSHOT:
+                long version = Long.parseLong(frame.field(0));
+                reconnectAttempts = 0;
+                rosterVersion = version;
+                listener.onUserListReceived(frame.field(1));
+                break;
+            case USERJOIN:
+            case USERLEAVE:
+                applyUserDelta(frame.opcode() == Opcode.USERJOIN, Long.parseLong(frame.field(0)), frame.field(1));
+                break;
+            case USERBATCH:
+                applyUserBatch(Long.parseLong(frame.field(0)), Long.parseLong(frame.field(1)), frame.field(2));
+                break;
+            case LOGGED:
+                long seq = Long.parseLong(frame.field(0));
+                if (seq <= 0) {
+                    throw new NumberFormatException("sequence number " + seq);
+                }
+                int slot = (int) (seq % RESUME_OVERLAP);
+                if (recentSeqs[slot] == seq) {
+                    break; // Already shown; replayed again as part of the overlap after a reconnect
+                }
+                recentSeqs[slot] = seq;
+                lastLoggedSeq = Math.max(lastLoggedSeq, seq);
+                listener.onMessageReceived(frame.field(1)); // Shown as it was when first delivered
+                break;
+            case RESULTS:
+                long total = Long.parseLong(frame.field(0));
+                int offset = Integer.parseInt(frame.field(1));
+                int expected = Integer.parseInt(frame.field(2));
+                if (offset < 0 || expected < 0) {
+                    throw new NumberFormatException("negative page " + offset + ":" + expected);
+                }
+                searchTotal = total;
+                searchOffset = offset;
+                searchExpected = expected;
+                searchResults = new ArrayList<>(searchExpected);
+                if (searchExpected == 0) {
+                    listener.onSearchResults(searchTotal, searchOffset, searchResults);
+                    searchResults = null;
+                }
+                break;
+            case RESULT:
+                if (searchResults != null) {
+                    searchResults.add(frame.field(1));
+                    if (searchResults.size() == searchExpected) {
+                        listener.onSearchResults(searchTotal, searchOffset, searchResults);
+                        searchResults = null;
+                    }
+                }
+                break;
+            case CAPS:
+                break;
+            default:
+                listener.onMessageReceived(frame.text());
+        }
+    }
+
+    /**
+     * Applies a {@code USERJOIN:}/{@code USERLEAVE:} delta of the form {@code KIND:version:name:ip}.
+     * Deltas older than the current list are ignored; a skipped version means an update was missed,
+     * so a fresh snapshot is requested instead.
+     *
+     * @param joined  Whether the user joined rather than left.
+     * @param version The roster version after the change.
+     * @param user    The user as {@code name:ip}.
+     */
+    private void applyUserDelta(boolean joined, long version, String user) {
+        if (rosterVersion < 0 || version <= rosterVersion) {
+            return; // No snapshot yet, or already included in the one we have
+        }
+        if (version != rosterVersion + 1) {
+            send(Frame.of(Opcode.USERSYNC));
+            return;
+        }
+        rosterVersion = version;
+        if (joined) {
+            listener.onUserJoined(user);
+        } else {
+            listener.onUserLeft(user);
+        }
+    }
+
+    /**
+     * Applies a {@code USERBATCH:from:to:+name:ip,-name:ip,...} delta, which the server sends when several
+     * users joined or left within one presence window. The batch only applies on top of version {@code from}.
+     *
+     * @param fromVersion The roster version the batch applies to.
+     * @param toVersion   The roster version after the batch.
+     * @param changes     The changes, each a {@code +} or {@code -} followed by {@code name:ip}.
+     */
+    private void applyUserBatch(long fromVersion, long toVersion, String changes) {
+        if (rosterVersion < 0 || toVersion <= rosterVersion) {
+            return;
+        }
+        if (fromVersion != rosterVersion) {
+            send(Frame.of(Opcode.USERSYNC));
+            return;
+        }
+        rosterVersion = toVersion;
+        for (String change : changes.split(",")) {
+            if (change.charAt(0) == '+') {
+                listener.onUserJoined(change.substring(1));
+            } else {
+                listener.onUserLeft(change.substring(1));
+            }
         }
     }
 
@@ -96,7 +659,40 @@ public class ChatModel {
      */
     public void sendMessage(String message) {
         if (isConnected && writer != null) {
-            writer.println(message);
+            send(Frame.of(message));
+        }
+    }
+
+    /**
+     * Writes one frame in the format agreed with the server. Called from the UI and the listener thread.
+     *
+     * @param frame The frame to send.
+     */
+    private synchronized void send(Frame frame) {
+        try {
+            (!binaryFrames ? frame : compression ? frame.compressed(null) : frame.binary()).writeTo(writer);
+            if (!batching) writer.flush();
+        } catch (IOException e) {
+            // The listener thread sees the broken connection and disconnects
+        }
+    }
+
+    /**
+     * Keeps the frames sent from now on in the buffer until {@link #endBatch()}, so they share one write.
+     */
+    private synchronized void startBatch() {
+        batching = true;
+    }
+
+    /**
+     * Flushes the frames buffered since {@link #startBatch()} and goes back to flushing every frame.
+     */
+    private synchronized void endBatch() {
+        batching = false;
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            // The listener thread sees the broken connection and disconnects
         }
     }
 
@@ -104,6 +700,11 @@ public class ChatModel {
      * Disconnects from the server and cleans up resources.
      */
     public void disconnect() {
+        disconnectRequested = true;
+        Thread thread = listenerThread;
+        if (thread != null && thread != Thread.currentThread()) {
+            thread.interrupt(); // Stops a reconnect in progress
+        }
         try {
             if (isConnected && writer != null) {
                 sendMessage("DISCONNECT");
@@ -122,9 +723,7 @@ public class ChatModel {
      */
     private void closeResources() {
         try {
-            if (socket != null) socket.close();
-            if (writer != null) writer.close();
-            if (reader != null) reader.close();
+            if (socket != null) socket.close(); // Also closes both streams
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -1,10 +1,34 @@
-import java.io.*;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Collections;
+import java.net.StandardSocketOptions;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
 
 /**
  * The {@code ChatServer} class is responsible for setting up and managing the server-side 
@@ -14,51 +38,829 @@ import java.util.stream.Collectors;
 
 public class ChatServer {
 
-    private ServerSocket serverSocket;
-    private final Set<ClientHandler> clientHandlers = Collections.synchronizedSet(new HashSet<>());
+    private volatile ServerSocket serverSocket; // The blocking-mode listener
+    private volatile ServerSocketChannel serverChannel; // The NIO listener
+    private volatile NioEventLoop[] eventLoops; // The NIO event loops, once started
+    private final AtomicBoolean draining = new AtomicBoolean(); // Set once the server stops accepting for good
+    private final AtomicBoolean stopping = new AtomicBoolean();
+    private ServerConfig config = new ServerConfig();
+    private ExecutorService handlerExecutor; // Runs blocking-mode readers and writers
+    private final OutboundQueue.Counters outboundCounters = new OutboundQueue.Counters();
+    private final ServerMetrics metrics = new ServerMetrics(this);
+    // A concurrent set: iterating it for a broadcast takes no lock, so no monitor is held during socket writes
+    private final Set<ClientHandler> clientHandlers = ConcurrentHashMap.newKeySet();
+    // Registered nicknames, so private messages are routed with one lock-free lookup
+    private final ConcurrentHashMap<String, ClientHandler> clientsByName = new ConcurrentHashMap<>();
+    private final Roster roster = new Roster();
+    // Held while the roster changes and its update is queued, so every client sees the versions in order
+    private final ReentrantLock rosterLock = new ReentrantLock();
+    private Frame snapshotFrame; // The last roster snapshot sent, shared while the version stays the same
+    private PresenceBatcher<PresenceEvent> presence; // Coalesces joins and leaves
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private ExecutorService[] roomShards; // Single-threaded executors that deliver room messages
+    private volatile MessageLog messageLog; // Persistent history of messages, or null if disabled
+    private ExecutorService historyReaders; // Answers HISTORY: requests, which read from disk
+    private volatile SearchIndex searchIndex; // Terms of the logged messages, or null if search is disabled
+    private OfflineInbox offlineInbox; // Private messages for nicknames that are not connected, or null if disabled
+    private RateLimiter globalLimiter; // Frames from all clients together, or null if unlimited
+    private volatile Cluster cluster; // The other nodes this server shares its chat with, or null if it runs alone
+    private volatile HashedWheelTimer idleTimer; // Pings silent heartbeat clients and reaps idle connections, or null if disabled
+
+    /**
+     * The room every client joins on registration; it behaves like the original single chat room.
+     */
+    static final String DEFAULT_ROOM = "general";
+
+    /**
+     * Optional protocol features a client may request with a {@code CAPS:} line before {@code NICKNAME:}.
+     */
+    static final Set<String> SUPPORTED_CAPABILITIES = Set.of("roster-delta", "binary", "deflate", AesGcmCipher.NAME, "history", "search", "heartbeat", "reconnect");
+
+    /**
+     * The most logged messages returned for one {@code HISTORY:} request.
+     */
+    static final int MAX_HISTORY = 1000;
+
+    /**
+     * The most results returned for one {@code SEARCH:} request, and the deepest page that can be asked for.
+     */
+    static final int MAX_SEARCH_RESULTS = 100;
+    static final int MAX_SEARCH_OFFSET = 10_000;
+
+    /**
+     * The longest nickname or room name, in UTF-8 bytes. Names are stored with a two-byte length in the
+     * message log, and are part of every line a client sends or receives.
+     */
+    static final int MAX_NAME_BYTES = 255;
+
+    /**
+     * What {@link ClientHandler#throttle(Frame, int)} returns for a frame that must not be handled.
+     */
+    static final long REJECTED = -1;
+
+    /**
+     * Connections the operating system holds for the server while it is busy, such as the clients of a
+     * replaced server all reconnecting at once. Beyond this, new connections wait for TCP to retry them.
+     */
+    static final int ACCEPT_BACKLOG = 1024;
+
+    /**
+     * The longest time a draining server gives its clients to spread their reconnects over.
+     */
+    static final long RECONNECT_SPREAD_MILLIS = 1000;
+
+    /**
+     * Creates a server with the default configuration.
+     */
+    public ChatServer() {
+        this(new ServerConfig());
+    }
+
+    /**
+     * Creates a server with the given configuration.
+     *
+     * @param config The server configuration.
+     */
+    public ChatServer(ServerConfig config) {
+        configure(config);
+    }
+
+    /**
+     * Applies a configuration and creates the helpers that depend on it.
+     */
+    private void configure(ServerConfig config) {
+        this.config = config;
+        if (presence != null) {
+            try {
+                presence.close(0); // Replaced before the server started, so nothing is pending
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.presence = new PresenceBatcher<>(config.presenceWindowMillis, this::flushPresence);
+        if (roomShards != null) {
+            for (ExecutorService shard : roomShards) shard.shutdown();
+        }
+        roomShards = new ExecutorService[config.roomShards];
+        for (int i = 0; i < roomShards.length; i++) {
+            String threadName = "room-shard-" + i;
+            roomShards[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        rooms.clear();
+        rooms.put(DEFAULT_ROOM, newRoom(DEFAULT_ROOM));
+        globalLimiter = config.globalRateMessages > 0 ? new RateLimiter(config.globalRateMessages, config.globalRateMessages) : null;
+    }
 /**
      * Starts the server to listen for incoming client connections on the specified port.
-     * Accepts new client connections, creates a handler for each, and starts a new thread for them.
+     * Accepts new client connections, creates a handler for each, and runs it on its own thread.
+     *
+     * @param port The port number on which the server will listen for connections.
+     */
+    public void start(int port) {
+        ServerConfig config = new ServerConfig();
+        config.port = port;
+        start(config);
+    }
+
+    /**
+     * Starts the server with the given configuration, using the I/O model selected by
+     * {@link ServerConfig#mode}. The port is bound before anything else is opened, so clients that connect
+     * while the message log loads wait in the backlog rather than being refused. This method does not return
+     * until the server stops accepting, see {@link #drain} and {@link #stop}.
+     *
+     * @param config The server configuration.
+     */
+    public void start(ServerConfig config) {
+        if (config != this.config) {
+            configure(config);
+        }
+        long started = System.nanoTime();
+        try {
+            bind(config);
+        } catch (IOException e) {
+            System.err.println("Could not start server on port " + config.port + ": " + e.getMessage());
+            return;
+        }
+        metrics.registerMBean(config.port);
+        if (!config.logDir.isEmpty()) {
+            openMessageLog(config);
+        }
+        if (!config.inboxDir.isEmpty()) {
+            try {
+                offlineInbox = new OfflineInbox(Paths.get(config.inboxDir), config, this);
+            } catch (IOException e) {
+                System.err.println("Could not open offline inboxes in " + config.inboxDir + ": " + e.getMessage());
+            }
+        }
+        if (config.clusterPort > 0) {
+            startCluster(config);
+        }
+        if (config.heartbeatSeconds > 0) {
+            idleTimer = new HashedWheelTimer("idle-reaper", 100, TimeUnit.MILLISECONDS, 512);
+        }
+        if (config.metricsPort > 0) {
+            try {
+                metrics.startHttp(config.metricsPort);
+            } catch (IOException e) {
+                System.err.println("Could not serve metrics on port " + config.metricsPort + ": " + e.getMessage());
+            }
+        }
+        if (config.mode == ServerConfig.Mode.NIO) {
+            startNio(config, started);
+        } else {
+            startBlocking(config, started);
+        }
+    }
+
+    /**
+     * Opens the listener for the configured I/O model.
+     */
+    private void bind(ServerConfig config) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(config.port);
+        if (config.mode == ServerConfig.Mode.NIO) {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true); // Rebinds at once after a restart
+            channel.bind(address, ACCEPT_BACKLOG);
+            serverChannel = channel;
+        } else {
+            ServerSocket socket = new ServerSocket();
+            socket.setReuseAddress(true); // Rebinds at once after a restart
+            socket.bind(address, ACCEPT_BACKLOG);
+            serverSocket = socket;
+        }
+    }
+
+    /**
+     * Runs the blocking server: every client gets a handler task on the executor selected by
+     * {@link ServerConfig#executor}.
+     */
+    private void startBlocking(ServerConfig config, long startedNanos) {
+        ServerConfig.Executor kind = ClientExecutors.effectiveKind(config);
+        if (kind != config.executor) {
+            System.err.println("Virtual threads are not available on this JVM; using a platform thread per client instead");
+        }
+        ExecutorService executor = ClientExecutors.create(config);
+        handlerExecutor = executor;
+        String threads = kind == ServerConfig.Executor.THREAD ? "a thread per client" : kind.name().toLowerCase() + " threads";
+        System.out.println("Server started on port " + config.port + " (" + threads + ") in "
+                + (System.nanoTime() - startedNanos) / 1_000_000 + " ms");
+
+        while (!draining.get()) { // Listen for new client connections until the server drains
+            try {
+                Socket clientSocket = serverSocket.accept(); // Accept a new client connection
+                ClientHandler clientHandler = new ClientHandler(clientSocket, this);
+                clientHandlers.add(clientHandler);
+                metrics.connectionAccepted();
+                watchIdle(clientHandler);
+                try {
+                    executor.execute(clientHandler); // Run each client on its own (possibly virtual) thread
+                } catch (RejectedExecutionException e) {
+                    System.err.println("Too many clients, refusing connection from " + clientSocket.getInetAddress());
+                    clientHandlers.remove(clientHandler);
+                    clientSocket.close();
+                }
+            } catch (IOException e) {
+                if (!draining.get()) { // Otherwise the listener was closed on purpose
+                    System.err.println("Error handling client connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the non-blocking server: this thread accepts channels and hands them round-robin
+     * to a fixed set of {@code NioEventLoop}s, which do all reading and writing.
+     */
+    private void startNio(ServerConfig config, long startedNanos) {
+        NioEventLoop[] loops = new NioEventLoop[config.eventLoops];
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new NioEventLoop(this);
+                loops[i].start("chat-event-loop-" + i);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not start server on port " + config.port + ": " + e.getMessage());
+            return;
+        }
+        eventLoops = loops;
+        System.out.println("Server started on port " + config.port + " (NIO, " + loops.length + " event loops) in "
+                + (System.nanoTime() - startedNanos) / 1_000_000 + " ms");
+
+        int next = 0;
+        while (!draining.get()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            } catch (IOException e) {
+                if (!draining.get()) { // Otherwise the listener was closed on purpose
+                    System.err.println("Error handling client connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves every client off this server without losing what was sent to it. The server stops accepting
+     * at once, so a replacement can bind the port, and tells each client to reconnect, to
+     * {@link ServerConfig#redirect} if set: clients that negotiated {@code reconnect} get a {@code RECONNECT:}
+     * frame and leave by themselves, others get a notice. Half the time is theirs to leave; then the rest are
+     * closed once their queued frames are written, and any still open at the deadline are cut off. Rooms,
+     * the message log and the cluster links stay open until {@link #stop}. Calling this again has no effect.
+     *
+     * @param timeout How long draining may take.
+     * @param unit    The unit of {@code timeout}.
+     */
+    public void drain(long timeout, TimeUnit unit) {
+        if (!draining.compareAndSet(false, true)) return;
+        long started = System.nanoTime();
+        long deadline = started + unit.toNanos(timeout);
+        try {
+            if (serverSocket != null) serverSocket.close();
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+            System.err.println("Could not close the listener: " + e.getMessage());
+        }
+
+        List<ClientHandler> clients = new ArrayList<>(clientHandlers);
+        long spreadMillis = Math.min(RECONNECT_SPREAD_MILLIS, unit.toMillis(timeout) / 4); // Not all at once to the replacement
+        for (ClientHandler client : clients) {
+            client.sendReconnect(config.redirect, spreadMillis);
+        }
+        awaitUntil(clientHandlers::isEmpty, started + (deadline - started) / 2);
+        int left = clients.size() - clientHandlers.size();
+        for (ClientHandler client : clientHandlers) {
+            client.closeConnections(); // Written out first, then closed
+        }
+        awaitUntil(() -> clients.stream().allMatch(client -> client.queuedFrames() == 0), deadline);
+        int cutOff = 0;
+        for (ClientHandler client : clients) {
+            if (client.queuedFrames() > 0) {
+                client.abort();
+                cutOff++;
+            }
+        }
+        System.out.printf("Drained %d clients in %d ms: %d left when asked, %d closed by the server, %d cut off%n",
+                clients.size(), (System.nanoTime() - started) / 1_000_000, left, clients.size() - left - cutOff, cutOff);
+    }
+
+    /**
+     * Shuts the server down within a deadline: drains the clients in three quarters of the time, then
+     * delivers the room messages still in flight, writes out the message log, the offline inboxes and the
+     * cluster links, and stops every thread. {@link #start} returns once draining begins. Calling this again
+     * has no effect.
+     *
+     * @param timeout How long the whole shutdown may take.
+     * @param unit    The unit of {@code timeout}.
+     */
+    public void stop(long timeout, TimeUnit unit) {
+        if (!stopping.compareAndSet(false, true)) return;
+        long started = System.nanoTime();
+        long deadline = started + unit.toNanos(timeout);
+        drain(unit.toNanos(timeout) * 3 / 4, TimeUnit.NANOSECONDS);
+        try {
+            presence.close(millisUntil(deadline));
+            for (ExecutorService shard : roomShards) {
+                shard.shutdown();
+            }
+            for (ExecutorService shard : roomShards) {
+                shard.awaitTermination(millisUntil(deadline), TimeUnit.MILLISECONDS);
+            }
+            if (cluster != null) cluster.close(millisUntil(deadline));
+            if (offlineInbox != null) offlineInbox.close(millisUntil(deadline));
+            if (messageLog != null) messageLog.close(millisUntil(deadline)); // Last, after everything that logs
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (historyReaders != null) historyReaders.shutdownNow();
+        if (handlerExecutor != null) handlerExecutor.shutdown();
+        if (idleTimer != null) idleTimer.stop();
+        NioEventLoop[] loops = eventLoops;
+        if (loops != null) {
+            for (NioEventLoop loop : loops) loop.stop();
+        }
+        metrics.close();
+        System.out.println("Server stopped in " + (System.nanoTime() - started) / 1_000_000 + " ms");
+    }
+
+    private static long millisUntil(long deadline) {
+        return Math.max(1, (deadline - System.nanoTime()) / 1_000_000);
+    }
+
+    /**
+     * Waits until a condition holds or a deadline passes, checking it every few milliseconds.
+     */
+    private static void awaitUntil(BooleanSupplier condition, long deadline) {
+        while (!condition.getAsBoolean() && deadline - System.nanoTime() > 0) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Opens the message log and starts the threads that answer history requests. The server runs
+     * without history if the log cannot be opened.
+     */
+    private void openMessageLog(ServerConfig config) {
+        try {
+            SearchIndex index = config.searchIndex ? new SearchIndex() : null;
+            long started = System.nanoTime();
+            messageLog = MessageLog.open(Paths.get(config.logDir), config, index); // Reads the whole log into the index
+            searchIndex = index;
+            if (index != null) {
+                System.out.printf("Indexed %d logged messages in %d ms%n", index.getIndexedCount(), (System.nanoTime() - started) / 1_000_000);
+            }
+            historyReaders = Executors.newFixedThreadPool(2, runnable -> {
+                Thread thread = new Thread(runnable, "history-reader");
+                thread.setDaemon(true);
+                return thread;
+            });
+            System.out.println("Logging messages to " + Paths.get(config.logDir).toAbsolutePath());
+        } catch (IOException e) {
+            System.err.println("Could not open message log in " + config.logDir + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Joins the cluster. The server runs alone if no cluster secret is configured or the cluster port cannot
+     * be bound.
+     */
+    private void startCluster(ServerConfig config) {
+        if (config.clusterSecret.isEmpty()) {
+            System.err.println("Not joining a cluster: the nodes need a shared secret, see --cluster-secret-file");
+            return;
+        }
+        if (config.nodeId.isEmpty()) {
+            String host;
+            try {
+                host = InetAddress.getLocalHost().getHostName();
+            } catch (IOException e) {
+                host = "localhost";
+            }
+            config.nodeId = host + ":" + config.port;
+        }
+        Cluster joining = new Cluster(config, this);
+        try {
+            joining.start();
+            cluster = joining;
+        } catch (IOException e) {
+            System.err.println("Could not listen for cluster nodes on port " + config.clusterPort + ": " + e.getMessage());
+        }
+    }
+
+    private Room newRoom(String name) {
+        return new Room(name, roomShards[Math.floorMod(name.hashCode(), roomShards.length)], metrics.broadcasts());
+    }
+
+    /**
+     * Adds a client to a room, creating the room if it does not exist yet.
+     *
+     * @param name   The room name.
+     * @param member The joining client.
+     * @return The room joined.
+     */
+    Room joinRoom(String name, ClientHandler member) {
+        return rooms.compute(name, (key, room) -> {
+            Room joined = room;
+            if (joined == null) {
+                joined = newRoom(key);
+                if (cluster != null) cluster.roomOpened(key); // Other nodes forward this room's messages from now on
+            }
+            joined.getMembers().add(member);
+            return joined;
+        });
+    }
+
+    /**
+     * Removes a client from a room. Rooms other than the default room are discarded once empty.
+     *
+     * @param room   The room to leave.
+     * @param member The departing client.
+     */
+    void partRoom(Room room, ClientHandler member) {
+        rooms.computeIfPresent(room.getName(), (key, current) -> {
+            current.getMembers().remove(member);
+            if (!current.getMembers().isEmpty() || key.equals(DEFAULT_ROOM)) {
+                return current;
+            }
+            if (cluster != null) cluster.roomClosed(key);
+            return null;
+        });
+    }
+
+    /**
+     * Returns a room by name.
+     *
+     * @param name The room name.
+     * @return The room, or {@code null} if nobody is in it.
+     */
+    Room getRoom(String name) {
+        return rooms.get(name);
+    }
+
+    /**
+     * Creates the outbound queue for a new client according to the configured capacity and policy.
+     *
+     * @return An empty queue sharing the server's slow-consumer counters.
+     */
+    OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(config.outboundCapacity, config.slowConsumerPolicy, outboundCounters);
+    }
+
+    /**
+     * Returns the counters of lines dropped or coalesced and of clients disconnected as slow consumers.
+     *
+     * @return The shared slow-consumer counters.
+     */
+    OutboundQueue.Counters getOutboundCounters() {
+        return outboundCounters;
+    }
+
+    /**
+     * Returns the server's counters, gauges and timers.
+     *
+     * @return The metrics.
+     */
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the configuration the server runs with.
+     *
+     * @return The configuration.
+     */
+    ServerConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Returns the persistent message log.
+     *
+     * @return The log, or {@code null} if messages are not logged.
+     */
+    MessageLog getMessageLog() {
+        return messageLog;
+    }
+
+    /**
+     * Returns the search index over the message log.
+     *
+     * @return The index, or {@code null} if search is disabled.
+     */
+    SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    /**
+     * Formats a logged message the way it was delivered: a room line, or a {@code PRIVATE:} line for
+     * its recipient.
+     *
+     * @param entry The logged message.
+     * @return The line.
+     */
+    static String deliveredLine(MessageLog.Entry entry) {
+        if (entry.kind == MessageLog.PRIVATE) {
+            return Opcode.PRIVATE.prefix + entry.sender + ":" + entry.text;
+        }
+        return roomPrefix(entry.target) + entry.sender + ": " + entry.text;
+    }
+
+    /**
+     * Returns the cluster this server is a node of.
+     *
+     * @return The cluster, or {@code null} if the server runs alone.
+     */
+    Cluster getCluster() {
+        return cluster;
+    }
+
+    /**
+     * Returns the nicknames registered on this node and their clients' addresses, for other nodes.
+     *
+     * @return A new map of nickname to host address.
+     */
+    Map<String, String> getLocalUsers() {
+        Map<String, String> users = new HashMap<>();
+        for (Map.Entry<String, ClientHandler> client : clientsByName.entrySet()) {
+            users.put(client.getKey(), client.getValue().getHostAddress());
+        }
+        return users;
+    }
+
+    /**
+     * Returns the rooms other than the default room that have members on this node.
+     *
+     * @return A new list of room names.
+     */
+    List<String> getRoomNames() {
+        List<String> names = new ArrayList<>(rooms.keySet());
+        names.remove(DEFAULT_ROOM);
+        return names;
+    }
+
+    /**
+     * Returns the offline inboxes.
+     *
+     * @return The inboxes, or {@code null} if private messages to offline nicknames are not kept.
+     */
+    OfflineInbox getOfflineInbox() {
+        return offlineInbox;
+    }
+
+    /**
+     * Looks up a registered client.
+     *
+     * @param nickname The nickname.
+     * @return The client holding the nickname, or {@code null} if nobody does.
+     */
+    ClientHandler getClient(String nickname) {
+        return clientsByName.get(nickname);
+    }
+
+    /**
+     * Returns the handlers of all open connections, registered or not.
+     *
+     * @return A live view of the handlers.
+     */
+    Set<ClientHandler> getClientHandlers() {
+        return clientHandlers;
+    }
+
+    /**
+     * Returns the number of clients that have claimed a nickname.
+     *
+     * @return The registered client count.
+     */
+    int getRegisteredClientCount() {
+        return clientsByName.size();
+    }
+
+    /**
+     * Returns the number of rooms, including the default room.
+     *
+     * @return The room count.
+     */
+    int getRoomCount() {
+        return rooms.size();
+    }
+
+    /**
+     * Creates and registers a handler for a connection accepted outside the blocking accept loop.
+     *
+     * @param connection The client's transport.
+     * @return The handler that processes the client's lines.
+     */
+    ClientHandler register(ClientConnection connection) {
+        ClientHandler clientHandler = new ClientHandler(connection, this);
+        clientHandlers.add(clientHandler);
+        metrics.connectionAccepted();
+        watchIdle(clientHandler);
+        return clientHandler;
+    }
+
+    /**
+     * Starts checking a new connection for silence, if the idle reaper is enabled. One timer thread checks
+     * every connection, each at most once per heartbeat interval, rather than each connection having a timer.
+     *
+     * @param handler The newly accepted client.
+     */
+    private void watchIdle(ClientHandler handler) {
+        if (idleTimer != null) {
+            handler.scheduleIdleCheck(TimeUnit.SECONDS.toNanos(config.heartbeatSeconds));
+        }
+    }
+    
+
+    /**
+     * Queues the arrival of a newly registered client for the next presence update.
+     *
+     * @param handler The client that has just claimed its nickname.
+     */
+    private void userJoined(ClientHandler handler) {
+        presence.add(new PresenceEvent(handler.getClientName(), handler));
+        Cluster nodes = cluster;
+        if (nodes != null) nodes.userJoined(handler.getClientName(), handler.getHostAddress());
+    }
+
+    /**
+     * Queues the departure of a client for the next presence update.
+     *
+     * @param name The nickname of the client that has left.
+     */
+    private void userLeft(String name) {
+        presence.add(new PresenceEvent(name, null));
+        Cluster nodes = cluster;
+        if (nodes != null) nodes.userLeft(name);
+    }
+
+    /**
+     * Queues a user joining or leaving another node of the cluster for the next presence update.
      *
-     * @param port The port number on which the server will listen for connections.
+     * @param name The nickname whose node changed.
      */
-    public void start(int port) {
+    void remoteUserChanged(String name) {
+        presence.add(new PresenceEvent(name, null));
+    }
+
+    /**
+     * Applies one window of joins and leaves to the roster and tells everyone, with a single roster
+     * update and a single announcement line for the whole window. Each nickname that changed is compared
+     * with where it is now, on this node or another, so a client that leaves and rejoins within the window
+     * from the same address does not change the roster at all.
+     *
+     * @param events The joins and leaves collected during the window, in order.
+     */
+    private void flushPresence(List<PresenceEvent> events) {
+        Set<String> names = new LinkedHashSet<>();
+        Set<ClientHandler> joiners = new HashSet<>(); // Need a snapshot, even if the roster is unchanged
+        for (PresenceEvent event : events) {
+            names.add(event.name);
+            if (event.joined != null) {
+                joiners.add(event.joined);
+            }
+        }
+        joiners.removeIf(handler -> clientsByName.get(handler.getClientName()) != handler); // Disconnected again before the window closed
+        Cluster nodes = cluster;
+        rosterLock.lock();
         try {
-            serverSocket = new ServerSocket(port);
-            System.out.println("Server started on port " + port);
-    
-            while (true) { // Continuously listen for new client connections
-                try {
-                    Socket clientSocket = serverSocket.accept(); // Accept a new client connection
-                    ClientHandler clientHandler = new ClientHandler(clientSocket, this);
-                    clientHandlers.add(clientHandler);
-                    new Thread(clientHandler).start(); // Start a new thread for each client
-                } catch (IOException e) {
-                    System.err.println("Error handling client connection: " + e.getMessage());
-                    // Optionally, break or continue based on the nature of the error
+            long fromVersion = roster.version();
+            List<String> changes = new ArrayList<>(); // "+name:ip" or "-name:ip"
+            List<String> joined = new ArrayList<>();
+            List<String> left = new ArrayList<>();
+            for (String name : names) {
+                ClientHandler handler = clientsByName.get(name);
+                String before = roster.hostAddressOf(name);
+                String after = handler != null ? handler.getHostAddress() : nodes != null ? nodes.hostAddressOf(name) : null;
+                if (before != null && !before.equals(after)) {
+                    roster.remove(name);
+                    changes.add("-" + name + ":" + before);
+                    left.add(name);
+                }
+                if (after != null && !after.equals(before)) {
+                    roster.add(name, after);
+                    changes.add("+" + name + ":" + after);
+                    joined.add(name);
                 }
             }
-        } catch (IOException e) {
-            System.err.println("Could not start server on port " + port + ": " + e.getMessage());
+
+            if (!joined.isEmpty() || !left.isEmpty()) {
+                broadcastMessage(presenceAnnouncement(joined, left), null);
+            }
+            if (!changes.isEmpty() || !joiners.isEmpty()) {
+                sendUserListUpdate(deltaFrame(changes, fromVersion, roster.version()), joiners);
+            }
+        } finally {
+            rosterLock.unlock();
         }
     }
-    
 
-    // Call this method after a client has connected or disconnected
-    private String getUserListAsString() {
-        return clientHandlers.stream()
-                .map(handler -> handler.getClientName() + ":" + handler.getSocket().getInetAddress().getHostAddress())
-                .collect(Collectors.joining(","));
+    /**
+     * Builds the delta frame for a set of roster changes: a plain {@code USERJOIN:}/{@code USERLEAVE:}
+     * for a single change, or {@code USERBATCH:from:to:+name:ip,-name:ip,...} for several.
+     */
+    private static Frame deltaFrame(List<String> changes, long fromVersion, long toVersion) {
+        if (changes.isEmpty()) {
+            return null;
+        }
+        if (changes.size() == 1) {
+            String change = changes.get(0);
+            return Frame.of(change.charAt(0) == '+' ? Opcode.USERJOIN : Opcode.USERLEAVE, Long.toString(toVersion), change.substring(1));
+        }
+        return Frame.of(Opcode.USERBATCH, Long.toString(fromVersion), Long.toString(toVersion), String.join(",", changes));
+    }
+
+    /**
+     * Builds one announcement line such as {@code "alice, bob have joined; carol has left"}.
+     * A single join or leave keeps the original {@code "alice has joined"} wording.
+     */
+    private static String presenceAnnouncement(List<String> joined, List<String> left) {
+        StringJoiner line = new StringJoiner("; ");
+        if (!joined.isEmpty()) {
+            line.add(String.join(", ", joined) + (joined.size() == 1 ? " has joined" : " have joined"));
+        }
+        if (!left.isEmpty()) {
+            line.add(String.join(", ", left) + (left.size() == 1 ? " has left" : " have left"));
+        }
+        return line.toString();
+    }
+
+    /**
+     * Sends a roster change to all registered clients. Clients that negotiated {@code roster-delta}
+     * receive only the delta line, joining clients receive a versioned snapshot, and older clients
+     * receive the full {@code USERLIST:}, which is only built if at least one of them is connected.
+     * Must be called with the roster lock held.
+     *
+     * @param deltaFrame The frame describing the change, or {@code null} if the roster did not change.
+     * @param joiners    The clients that have just joined.
+     */
+    private void sendUserListUpdate(Frame deltaFrame, Set<ClientHandler> joiners) {
+        Frame userListMessage = null; // Encoded once for every legacy client
+        for (ClientHandler handler : clientsByName.values()) {
+            boolean joiner = joiners.contains(handler);
+            if (deltaFrame == null && !joiner) {
+                continue;
+            }
+            if (!handler.hasCapability("roster-delta")) {
+                if (userListMessage == null) {
+                    userListMessage = Frame.of(Opcode.USERLIST, roster.snapshot());
+                }
+                handler.sendFrame(userListMessage);
+            } else if (joiner) {
+                sendUserSnapshot(handler);
+            } else {
+                handler.sendFrame(deltaFrame);
+            }
+        }
+    }
+
+    /**
+     * Returns the batcher that coalesces presence updates, for its counters.
+     *
+     * @return The presence batcher.
+     */
+    PresenceBatcher<PresenceEvent> getPresenceBatcher() {
+        return presence;
+    }
+
+    /**
+     * A join or leave waiting for the next presence update.
+     */
+    static final class PresenceEvent {
+        final String name;
+        final ClientHandler joined; // The joining local client, or null for a departure or a change on another node
+
+        PresenceEvent(String name, ClientHandler joined) {
+            this.name = name;
+            this.joined = joined;
+        }
     }
 
     /**
-     * Sends the updated list of users to all connected clients.
+     * Sends the full roster with its version to a client, on connect or after it reported a missed delta.
+     *
+     * @param handler The client to resynchronize.
      */
-    // This method sends the updated user list
-    private void sendUserListUpdate() {
-        String userListMessage = "USERLIST:" + getUserListAsString();
-        for (ClientHandler handler : clientHandlers) {
-            handler.sendMessage(userListMessage);
+    private void sendUserSnapshot(ClientHandler handler) {
+        rosterLock.lock();
+        try {
+            String version = Long.toString(roster.version());
+            Frame frame = snapshotFrame;
+            if (frame == null || !frame.field(0).equals(version)) {
+                frame = Frame.of(Opcode.USERSNAPSHOT, version, roster.snapshot());
+                snapshotFrame = frame; // Clients joining together share its encodings, compressed or not
+            }
+            handler.sendFrame(frame);
+        } finally {
+            rosterLock.unlock();
         }
     }
 
@@ -70,11 +872,25 @@ public class ChatServer {
      */
 
     public void broadcastMessage(String message, ClientHandler sender) {
-        for (ClientHandler handler : clientHandlers) {
+        broadcastFrame(Frame.of(Opcode.TEXT, message), sender);
+    }
+
+    /**
+     * Hands one already encoded frame to every registered client except the sender. All recipients share
+     * the frame's bytes, so the cost of encoding does not grow with the number of clients. Clients still
+     * negotiating their wire format are skipped until they have a nickname.
+     *
+     * @param frame  The frame to be broadcasted.
+     * @param sender The sender of the message to avoid echoing the message back.
+     */
+    void broadcastFrame(Frame frame, ClientHandler sender) {
+        long started = System.nanoTime();
+        for (ClientHandler handler : clientsByName.values()) {
             if (handler != sender) {
-                handler.sendMessage(message);
+                handler.sendFrame(frame);
             }
         }
+        metrics.broadcasts().stop(started);
     }
     
     /**
@@ -84,12 +900,18 @@ public class ChatServer {
      */
 
     void removeClient(ClientHandler clientHandler) {
-        clientHandlers.remove(clientHandler);
-        sendUserListUpdate(); // Update user list when a client disconnects
+        if (clientHandlers.remove(clientHandler)) {
+            metrics.connectionClosed();
+        }
+        String name = clientHandler.getClientName();
+        if (name != null && clientsByName.remove(name, clientHandler)) {
+            userLeft(name); // Announce the departure and update the user list when a registered client disconnects
+        }
     }
 
     /**
-     * Sends a private message to a specific user.
+     * Sends a private message to a specific user. A message to a nickname that is not connected is
+     * kept in its offline inbox, if inboxes are enabled and the nickname has registered here before.
      *
      * @param message       The message to be sent.
      * @param recipientNick The nickname of the recipient user.
@@ -97,34 +919,192 @@ public class ChatServer {
      */
 
     public void sendPrivateMessage(String message, String recipientNick, ClientHandler sender) {
-        boolean messageSent = false;
-        for (ClientHandler handler : clientHandlers) {
-            if (handler.getClientName().equals(recipientNick)) {
-                // Prepare the private message
-                String formattedMessage = "PRIVATE:" + sender.getClientName() + ":" + message;
-                handler.sendMessage(formattedMessage);
-                messageSent = true;
-                break;
-            }
-        }
-        // Optionally, you can send a confirmation or error back to the sender
-        if (messageSent) {
+        ClientHandler recipient = clientsByName.get(recipientNick);
+        Cluster nodes = cluster;
+        if (recipient != null) {
+            deliverPrivate(recipient, sender.getClientName(), message);
             sender.sendMessage("Message sent to " + recipientNick);
+        } else if (nodes != null && nodes.privateMessage(recipientNick, sender.getClientName(), message)) {
+            sender.sendMessage("Message sent to " + recipientNick); // Delivered by the node holding the recipient
+        } else if (offlineInbox != null && offlineInbox.knows(recipientNick)) {
+            offlineInbox.store(recipientNick, sender, message); // Written and confirmed on the inbox thread
         } else {
+            metrics.privateMessageMissed();
             sender.sendMessage("User " + recipientNick + " not found.");
         }
     }
+
+    /**
+     * Logs a private message if private messages are logged and hands it to its recipient on this node.
+     */
+    private void deliverPrivate(ClientHandler recipient, String senderName, String message) {
+        Frame frame = Frame.of(Opcode.PRIVATE, senderName, message);
+        MessageLog log = messageLog;
+        long seq = log != null && config.logPrivate ? log.append(MessageLog.PRIVATE, recipient.getClientName(), senderName, message) : -1;
+        if (seq > 0 && recipient.hasCapability("history")) {
+            frame = Frame.of(Opcode.LOGGED, Long.toString(seq), frame.text()); // Lets the recipient resume after it
+        }
+        recipient.sendFrame(frame);
+    }
+
+    /**
+     * Delivers a private message forwarded by another node of the cluster.
+     *
+     * @param recipientNick The recipient, who was on this node when the message was sent.
+     * @param senderName    The sender's nickname.
+     * @param message       The message.
+     */
+    void deliverRemotePrivate(String recipientNick, String senderName, String message) {
+        ClientHandler recipient = clientsByName.get(recipientNick);
+        if (recipient != null) {
+            deliverPrivate(recipient, senderName, message);
+        } else {
+            metrics.privateMessageMissed(); // Left while the message was on its way
+        }
+    }
+
+    /**
+     * Logs a message to a room and delivers it to the room's members on this node. Members that
+     * negotiated {@code history} receive it with its sequence number.
+     */
+    private void publish(Room room, String sender, String text) {
+        Frame line = Frame.of(Opcode.TEXT, roomPrefix(room.getName()) + sender + ": " + text);
+        MessageLog log = messageLog;
+        long seq = log == null ? -1 : log.append(MessageLog.PUBLIC, room.getName(), sender, text); // Queued; written by the log's own thread
+        room.broadcast(line, seq > 0 ? Frame.of(Opcode.LOGGED, Long.toString(seq), line.text()) : null, null);
+    }
+
+    /**
+     * Sends a client's message to everyone in a room, on this node and the others.
+     *
+     * @param room   The room.
+     * @param sender The sender's nickname.
+     * @param text   The message.
+     */
+    void sendRoomMessage(Room room, String sender, String text) {
+        publish(room, sender, text);
+        Cluster nodes = cluster;
+        if (nodes != null) nodes.roomMessage(room.getName(), sender, text);
+    }
+
+    /**
+     * Delivers a room message forwarded by another node of the cluster, if the room has members here.
+     *
+     * @param roomName The room.
+     * @param sender   The sender's nickname.
+     * @param text     The message.
+     */
+    void deliverRemoteMessage(String roomName, String sender, String text) {
+        Room room = rooms.get(roomName);
+        if (room != null) {
+            publish(room, sender, text);
+        }
+    }
+
+    /**
+     * Sends a notice line, such as a member joining, to everyone in a room, on this node and the others.
+     *
+     * @param room The room.
+     * @param line The notice.
+     */
+    void sendRoomLine(Room room, String line) {
+        room.broadcast(Frame.of(Opcode.TEXT, line), null);
+        Cluster nodes = cluster;
+        if (nodes != null) nodes.roomLine(room.getName(), line);
+    }
+
+    /**
+     * Delivers a room notice forwarded by another node of the cluster, if the room has members here.
+     *
+     * @param roomName The room.
+     * @param line     The notice.
+     */
+    void deliverRemoteLine(String roomName, String line) {
+        Room room = rooms.get(roomName);
+        if (room != null) {
+            room.broadcast(Frame.of(Opcode.TEXT, line), null);
+        }
+    }
+
+    /**
+     * Checks a requested nickname. Names may not contain the protocol's separators, and may not be an opcode
+     * such as {@code RECONNECT}: a chat line starts with its sender's name followed by a colon, so a text client
+     * would read the line as that control message.
+     *
+     * @param nickname The requested nickname.
+     * @return {@code true} if the nickname may be registered.
+     */
+    static boolean isValidNickname(String nickname) {
+        if (!isValidName(nickname)) {
+            return false;
+        }
+        for (Opcode opcode : Opcode.values()) {
+            if (opcode.prefix != null && nickname.equalsIgnoreCase(opcode.prefix.replace(":", ""))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks a nickname or room name: it may not be empty, contain the protocol's separators or be longer
+     * than {@link #MAX_NAME_BYTES}.
+     */
+    static boolean isValidName(String name) {
+        return !name.isEmpty() && !name.contains(":") && !name.contains(",")
+                && name.getBytes(StandardCharsets.UTF_8).length <= MAX_NAME_BYTES;
+    }
+
+    /**
+     * Messages from rooms other than the default room are tagged with the room name.
+     */
+    static String roomPrefix(String room) {
+        return room.equals(DEFAULT_ROOM) ? "" : "[" + room + "] ";
+    }
+
+    /**
+     * Claims a nickname for a client. Nicknames are unique across the cluster: the first client to claim
+     * one keeps it until it disconnects. Two nodes may still hand out the same nickname if it is claimed
+     * on both before either has heard from the other.
+     *
+     * @param nickname The requested nickname.
+     * @param handler  The client claiming it.
+     * @return {@code true} if the nickname was free and is now registered to the client.
+     */
+    private boolean registerNickname(String nickname, ClientHandler handler) {
+        Cluster nodes = cluster;
+        if (nodes != null && nodes.hostAddressOf(nickname) != null) {
+            return false; // Held by a client of another node
+        }
+        return clientsByName.putIfAbsent(nickname, handler) == null;
+    }
     
     /**
      * The {@code ClientHandler} class handles interaction with an individual client, 
-     * including sending and receiving messages.
+     * including sending and receiving messages. In blocking mode it runs its own read loop;
+     * in NIO mode an event loop feeds it frames through {@link #handleFrame(Frame)}.
      */
 
-    private class ClientHandler implements Runnable {
+    class ClientHandler implements Runnable {
         private Socket clientSocket;
-        private PrintWriter out;
-        private BufferedReader in;
-        private String clientName;
+        private ClientConnection connection;
+        private volatile String clientName; // Set once the nickname is registered; read by the idle timer
+        private volatile long lastActivity = System.nanoTime(); // When the client last sent a frame
+        private volatile boolean heartbeats; // Whether the client answers PING: and may be reaped when it stops
+        private volatile boolean reconnectHints; // Whether the client understands RECONNECT: when the server drains
+        private volatile HashedWheelTimer.Timeout idleCheck; // The next silence check, if the reaper is enabled
+        private final Set<String> capabilities = new HashSet<>(); // Protocol features agreed with the client
+        private final Set<Room> joinedRooms = ConcurrentHashMap.newKeySet();
+        private volatile Room activeRoom; // Where MSG: and plain lines are delivered
+        private MessageCipher cipher = EncryptionUtil.CIPHER; // Decrypts MSG: payloads; replaced if another cipher is negotiated
+        private final AtomicBoolean closed = new AtomicBoolean();
+        // History and search requests, answered one at a time; only changed by the thread handling frames
+        private CompletableFuture<Void> pendingReads = CompletableFuture.completedFuture(null);
+        // This client's own limits; only used by the thread handling its frames
+        private final RateLimiter messageLimiter = config.rateMessages > 0 ? new RateLimiter(config.rateMessages, config.rateBurst) : null;
+        private final RateLimiter byteLimiter = config.rateBytes > 0
+                ? new RateLimiter(config.rateBytes, Math.max(config.rateBytes, config.maxLineBytes)) : null;
+        private boolean warnedOfDrops; // Whether the client was told its frames are dropped since it last kept to its limits
         private final ChatServer server;
     /**
          * Constructs a handler for an individual client.
@@ -136,74 +1116,417 @@ public class ChatServer {
             this.clientSocket = socket;
             this.server = server;
         }
+
+        /**
+         * Constructs a handler for a client whose transport is already established.
+         *
+         * @param connection The client's transport.
+         * @param server     The instance of {@code ChatServer}.
+         */
+        ClientHandler(ClientConnection connection, ChatServer server) {
+            this.connection = connection;
+            this.server = server;
+        }
     
     /**
          * Listens for messages from the client and processes them.
          */
         public void run() {
-           // String inputMessage = " has joined";
             try {
-                out = new PrintWriter(clientSocket.getOutputStream(), true);
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                SocketConnection socketConnection = new SocketConnection(clientSocket, server.newOutboundQueue(), server.metrics,
+                        server.config.maxLineBytes);
+                connection = socketConnection;
+                server.handlerExecutor.execute(socketConnection::drain); // This client's own writer
     
-                // Handle the nickname message
-                String nicknameMsg = in.readLine();
-                if (nicknameMsg != null && nicknameMsg.startsWith("NICKNAME:")) {
-                    clientName = nicknameMsg.substring(9);
-                    server.broadcastMessage(clientName + " has joined", null);
-                    sendUserListUpdate(); // Send updated user list when a new client connects
+                Frame frame;
+                while ((frame = socketConnection.readFrame()) != null) {
+                    long wait = throttle(frame, socketConnection.lastFrameBytes());
+                    if (wait == REJECTED) {
+                        if (closed.get()) break; // Disconnected for flooding
+                        continue;
+                    }
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait); // Not reading lets TCP push back on the client
+                    }
+                    if (!handleFrame(frame)) {
+                        break; // Exit the loop and proceed to closing connections
+                    }
                 }
-    
-                String inputLine;
-    while ((inputLine = in.readLine()) != null) {
-        if ("DISCONNECT".equalsIgnoreCase(inputLine)) {
-            break; // Exit the loop and proceed to closing connections
-        }
-        
-        // Handling private messages
-        if (inputLine.startsWith("PRIVATE:")) {
-            String[] parts = inputLine.split(":", 3); // Split into "PRIVATE", recipient, and message
-            if (parts.length == 3) {
-                String recipient = parts[1];
-                String privateMessage = parts[2];
-                server.sendPrivateMessage(privateMessage, recipient, this);
-            }
-            // Do not broadcast this message, go to the next iteration of the loop
-            continue;
-        }
-        
-        // Handling public messages
-        // Decrypt and broadcast the message to all clients including the sender
-        if (inputLine.startsWith("MSG:")) {
-            String encryptedMessage = inputLine.substring(4); // Remove the "MSG:" prefix
-            inputLine = EncryptionUtil.decrypt(encryptedMessage);
-        }
-        
-        server.broadcastMessage(clientName + ": " + inputLine, null); // Broadcast to all, including sender
-    }
 
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ProtocolException e) {
+                server.metrics.protocolError();
+                System.err.println("Closing " + clientSocket.getInetAddress() + ": " + e.getMessage());
             } catch (IOException e) {
-                e.printStackTrace();
+                if (!server.draining.get()) { // While draining, the server closes sockets under their readers
+                    server.metrics.ioError();
+                    System.err.println("Connection to " + clientSocket.getInetAddress() + " failed: " + e.getMessage());
+                }
+            } catch (RejectedExecutionException e) {
+                System.err.println("No thread available for the writer of " + clientSocket.getInetAddress());
+                connection.abort();
             } finally {
                 closeConnections(); // Ensure this is called when the client disconnects
             }
         }
 
-        // Add this method to the ChatServer class
+        /**
+         * Charges a frame received from the client to the client's rate limits and the server's, and applies
+         * {@link ServerConfig#floodAction} once they are exceeded. The transport calls this before
+         * {@link #handleFrame(Frame)}. Frames over the server-wide limit are delayed or dropped but never
+         * disconnect the client, which need not be the one sending too much.
+         *
+         * @param frame The frame received.
+         * @param bytes Its size on the wire.
+         * @return 0 to handle the frame now, the nanoseconds to stop reading from the client before handling
+         *         it, or {@link #REJECTED} to skip it.
+         */
+        long throttle(Frame frame, int bytes) {
+            RateLimiter global = server.globalLimiter;
+            if (messageLimiter == null && byteLimiter == null && global == null) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            if (server.config.floodAction == ServerConfig.FloodAction.DELAY) {
+                long wait = 0;
+                if (messageLimiter != null) wait = messageLimiter.reserve(1, now);
+                if (byteLimiter != null) wait = Math.max(wait, byteLimiter.reserve(bytes, now));
+                if (global != null) wait = Math.max(wait, global.reserve(1, now));
+                if (wait > 0) server.metrics.frameDelayed();
+                return wait;
+            }
+            boolean withinMessages = messageLimiter == null || messageLimiter.tryAcquire(1, now);
+            boolean withinOwn = withinMessages && (byteLimiter == null || byteLimiter.tryAcquire(bytes, now));
+            if (withinOwn && (global == null || global.tryAcquire(1, now))) {
+                warnedOfDrops = false;
+                return 0;
+            }
+            // Not handled, so not charged: give back what the limits that did pass took
+            if (withinMessages && messageLimiter != null) messageLimiter.refund(1);
+            if (withinOwn && byteLimiter != null) byteLimiter.refund(bytes);
+            if (!withinOwn && server.config.floodAction == ServerConfig.FloodAction.DISCONNECT) {
+                server.metrics.floodDisconnect();
+                sendMessage("You are sending too fast; disconnecting.");
+                closeConnections();
+                return REJECTED;
+            }
+            server.metrics.frameRejected();
+            if (!warnedOfDrops) {
+                warnedOfDrops = true;
+                sendMessage(withinOwn ? "The server is busy; some of your messages were dropped."
+                        : "You are sending too fast; some of your messages were dropped.");
+            }
+            return REJECTED;
+        }
+
+        /**
+         * Processes a single message received from the client, in either wire format.
+         * Messages are dispatched on their opcode, so no prefix matching or splitting happens here.
+         *
+         * @param frame The message received.
+         * @return {@code false} if the client asked to disconnect, {@code true} otherwise.
+         */
+        boolean handleFrame(Frame frame) {
+            Opcode opcode = frame.opcode();
+            server.metrics.frameReceived(frame);
+            lastActivity = System.nanoTime();
+
+            // Heartbeats may come at any time and need no answer beyond the echo
+            if (opcode == Opcode.PING) {
+                sendFrame(Frame.of(Opcode.PONG, frame.field(0)));
+                return true;
+            }
+            if (opcode == Opcode.PONG) {
+                return true;
+            }
+
+            // Until the client has a nickname, it may only negotiate features, register or leave
+            if (clientName == null) {
+                switch (opcode) {
+                    case CAPS:
+                        negotiate(frame.field(0)); // The reply lists the features accepted
+                        return true;
+                    case NICKNAME:
+                        return claimNickname(frame.field(0));
+                    case DISCONNECT:
+                        return false;
+                    default:
+                        sendMessage("Send a nickname first.");
+                        return true;
+                }
+            }
+
+            String inputLine;
+            switch (opcode) {
+                case DISCONNECT:
+                    return false;
+                case USERSYNC:
+                    // A delta client that missed a roster version asks for a fresh snapshot
+                    server.sendUserSnapshot(this);
+                    return true;
+                case JOIN:
+                    // Joining a room also makes it the room that MSG: lines go to
+                    joinRoom(frame.field(0).trim());
+                    return true;
+                case PART:
+                    partRoom(frame.field(0).trim());
+                    return true;
+                case HISTORY:
+                    sendHistory(frame.field(0), frame.fieldCount() == 2 ? frame.field(1) : "");
+                    return true;
+                case SEARCH:
+                    if (frame.fieldCount() == 3) {
+                        search(frame.field(0), frame.field(1), frame.field(2));
+                    }
+                    return true;
+                case PRIVATE:
+                    // Handling private messages; they are never broadcast
+                    if (frame.fieldCount() == 2) {
+                        server.sendPrivateMessage(frame.field(1), frame.field(0), this);
+                    }
+                    return true;
+                case MSG:
+                    // Decrypt public messages before broadcasting them
+                    try {
+                        inputLine = cipher.decrypt(frame.field(0));
+                    } catch (GeneralSecurityException e) {
+                        sendMessage("Could not decrypt message: " + e.getMessage());
+                        return true;
+                    }
+                    break;
+                default:
+                    inputLine = frame.text();
+            }
+
+            Room room = activeRoom;
+            if (room != null) {
+                server.sendRoomMessage(room, clientName, inputLine); // To everyone in the room, including the sender
+            }
+            return true;
+        }
+
+        /**
+         * Registers the client under a nickname and puts it in the default room.
+         *
+         * @return {@code false} if the nickname was refused, which closes the connection.
+         */
+        private boolean claimNickname(String nickname) {
+            if (!isValidNickname(nickname)) {
+                sendMessage("Invalid nickname: " + nickname);
+                return false;
+            }
+            if (!server.registerNickname(nickname, this)) {
+                sendMessage("Nickname " + nickname + " is already in use.");
+                return false;
+            }
+            clientName = nickname;
+            activeRoom = server.joinRoom(DEFAULT_ROOM, this);
+            joinedRooms.add(activeRoom);
+            server.userJoined(this); // Announce the client and update the user list with the next presence flush
+            if (server.offlineInbox != null) {
+                server.offlineInbox.deliver(this); // Read and sent on the inbox thread, not here
+            }
+            return true;
+        }
+
+        /**
+         * Replays logged messages to this client, either the last {@code N} or those after a sequence
+         * number, limited to {@link #MAX_HISTORY}. Only messages in rooms the client is in now, and private
+         * messages addressed to it, are replayed. The log is read on a history thread, never on the
+         * thread that reads this client's frames.
+         */
+        private void sendHistory(String mode, String argument) {
+            MessageLog log = server.messageLog;
+            if (log == null) {
+                sendMessage("History is not available on this server.");
+                return;
+            }
+            long value;
+            try {
+                value = Long.parseLong(argument.trim());
+            } catch (NumberFormatException e) {
+                sendMessage("Invalid history request: " + mode + ":" + argument);
+                return;
+            }
+            if (!mode.equals("last") && !mode.equals("since")) {
+                sendMessage("Invalid history request: " + mode + ":" + argument);
+                return;
+            }
+            Set<String> rooms = new HashSet<>();
+            for (Room room : joinedRooms) {
+                rooms.add(room.getName());
+            }
+            String name = clientName;
+            Predicate<MessageLog.Entry> visible = entry -> entry.kind == MessageLog.PUBLIC
+                    ? rooms.contains(entry.target) : entry.target.equals(name);
+            readLater(() -> {
+                try {
+                    List<MessageLog.Entry> entries = mode.equals("last")
+                            ? log.last((int) Math.min(Math.max(value, 0), MAX_HISTORY), visible)
+                            : log.since(value, MAX_HISTORY, visible);
+                    for (MessageLog.Entry entry : entries) {
+                        sendFrame(Frame.of(Opcode.LOGGED, Long.toString(entry.seq), deliveredLine(entry)));
+                    }
+                } catch (IOException e) {
+                    sendMessage("Could not read history: " + e.getMessage());
+                }
+            });
+        }
+
+        /**
+         * Runs a request that reads the log on a history thread, after this client's earlier ones, so
+         * the answers arrive whole and in the order they were asked for.
+         */
+        private void readLater(Runnable request) {
+            pendingReads = pendingReads.exceptionally(e -> null).thenRunAsync(request, server.historyReaders);
+        }
+
+        /**
+         * Answers a search with a {@code RESULTS:total:offset:count} header followed by one
+         * {@code RESULT:seq:line} frame per match, newest first. The index and the log are read on a
+         * history thread.
+         */
+        private void search(String offsetField, String limitField, String query) {
+            SearchIndex index = server.searchIndex;
+            MessageLog log = server.messageLog;
+            if (index == null || log == null) {
+                sendMessage("Search is not available on this server.");
+                return;
+            }
+            int offset;
+            int limit;
+            try {
+                offset = Math.min(Math.max(Integer.parseInt(offsetField.trim()), 0), MAX_SEARCH_OFFSET);
+                limit = Math.min(Math.max(Integer.parseInt(limitField.trim()), 0), MAX_SEARCH_RESULTS);
+            } catch (NumberFormatException e) {
+                sendMessage("Invalid search request: " + offsetField + ":" + limitField);
+                return;
+            }
+            List<String> rooms = new ArrayList<>();
+            for (Room room : joinedRooms) {
+                rooms.add(room.getName());
+            }
+            String name = clientName;
+            readLater(() -> {
+                try {
+                    SearchIndex.Page page = index.search(query, rooms, name, offset, limit);
+                    List<MessageLog.Entry> entries = log.get(page.seqs);
+                    sendFrame(Frame.of(Opcode.RESULTS, Long.toString(page.total), Integer.toString(offset),
+                            Integer.toString(entries.size())));
+                    for (MessageLog.Entry entry : entries) {
+                        sendFrame(Frame.of(Opcode.RESULT, Long.toString(entry.seq), deliveredLine(entry)));
+                    }
+                } catch (IOException e) {
+                    sendMessage("Could not read search results: " + e.getMessage());
+                }
+            });
+        }
+
+        /**
+         * Records the capabilities the client asked for and the server supports, and confirms them.
+         * A capability may carry a value after {@code =}, such as the client's key for {@code aes-gcm}.
+         * The confirmation is the last text frame if binary frames were agreed on.
+         */
+        private void negotiate(String requested) {
+            StringJoiner accepted = new StringJoiner(",");
+            for (String capability : requested.split(",")) {
+                capability = capability.trim();
+                int separator = capability.indexOf('=');
+                String name = separator < 0 ? capability : capability.substring(0, separator);
+                if (!SUPPORTED_CAPABILITIES.contains(name) || !capabilities.add(name)) {
+                    continue;
+                }
+                if (name.equals("history") && server.messageLog == null || name.equals("search") && server.searchIndex == null) {
+                    capabilities.remove(name); // Nothing to replay or search
+                    continue;
+                }
+                if (name.equals("deflate") && !capabilities.contains("binary")) {
+                    capabilities.remove(name); // Only binary frames can be compressed, so binary must come first
+                    continue;
+                }
+                String reply = name;
+                if (name.equals("heartbeat")) {
+                    if (server.idleTimer == null) {
+                        capabilities.remove(name); // Nobody would ping the client
+                        continue;
+                    }
+                    heartbeats = true;
+                    reply = name + "=" + config.heartbeatSeconds; // So the client knows when to expect silence to mean trouble
+                }
+                if (name.equals("reconnect")) {
+                    reconnectHints = true;
+                }
+                if (name.equals(AesGcmCipher.NAME)) {
+                    try {
+                        KeyPair keyPair = AesGcmCipher.newKeyPair();
+                        cipher = AesGcmCipher.agree(keyPair, capability.substring(separator + 1), true);
+                        reply = name + "=" + AesGcmCipher.encodePublicKey(keyPair);
+                    } catch (GeneralSecurityException e) {
+                        capabilities.remove(name); // No usable key; the client keeps the shift cipher
+                        continue;
+                    }
+                }
+                accepted.add(reply);
+            }
+            sendFrame(Frame.of(Opcode.CAPS, accepted.toString()));
+            if (capabilities.contains("binary")) {
+                connection.useBinaryFrames();
+                if (capabilities.contains("deflate")) connection.useCompression();
+            }
+        }
 
+        /**
+         * Joins a room and makes it the active room. Room names follow the same rules as nicknames.
+         */
+        private void joinRoom(String name) {
+            if (clientName == null || !isValidName(name)) {
+                sendMessage("Invalid room: " + name);
+                return;
+            }
+            Room room = server.joinRoom(name, this);
+            if (joinedRooms.add(room)) {
+                server.sendRoomLine(room, roomPrefix(room.getName()) + clientName + " has joined the room");
+            }
+            activeRoom = room;
+            sendMessage("Now talking in " + name);
+        }
 
+        /**
+         * Leaves a room. The default room cannot be left; leaving the active room switches back to it.
+         */
+        private void partRoom(String name) {
+            Room room = server.getRoom(name);
+            if (name.equals(DEFAULT_ROOM) || room == null || !joinedRooms.remove(room)) {
+                sendMessage("Cannot leave room " + name);
+                return;
+            }
+            server.partRoom(room, this);
+            server.sendRoomLine(room, roomPrefix(room.getName()) + clientName + " has left the room");
+            if (activeRoom == room) {
+                activeRoom = server.getRoom(DEFAULT_ROOM);
+            }
+            sendMessage("Left room " + name);
+        }
 
         /**
          * Closes the connection to the client and cleans up resources.
+         * Only the first call has an effect.
          */
     
-        private void closeConnections() {
-            //String outputMessage = " has left";
-            server.broadcastMessage(clientName + " has left", null);
+        void closeConnections() {
+            if (!closed.compareAndSet(false, true)) return;
+            HashedWheelTimer.Timeout check = idleCheck;
+            if (check != null) check.cancel(); // Lets the handler be collected before the check would have run
+            for (Room room : joinedRooms) {
+                server.partRoom(room, this);
+            }
             try {
-                if (out != null) out.close();
-                if (in != null) in.close();
-                if (clientSocket != null && !clientSocket.isClosed()) clientSocket.close();
+                if (connection != null) {
+                    connection.close();
+                } else if (clientSocket != null && !clientSocket.isClosed()) {
+                    clientSocket.close();
+                }
             } catch (IOException ex) {
                 ex.printStackTrace();
             } finally {
@@ -211,27 +1534,134 @@ public class ChatServer {
             }
         }
     
+        /**
+         * Checks this connection for silence after the given delay, on the server's idle timer.
+         *
+         * @param delayNanos How long to wait before the check.
+         */
+        void scheduleIdleCheck(long delayNanos) {
+            HashedWheelTimer timer = server.idleTimer;
+            if (timer != null && !closed.get()) {
+                idleCheck = timer.newTimeout(this::checkIdle, delayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        /**
+         * Runs on the idle timer. A heartbeat client silent for a heartbeat interval is pinged, and one silent
+         * past the idle timeout is disconnected, as is a connection that never registered a nickname. Clients
+         * without heartbeats are never pinged and, once registered, never reaped, since silence is all
+         * they may ever send. Reschedules itself for when the next of these could fall due.
+         */
+        private void checkIdle() {
+            if (closed.get()) return;
+            long heartbeat = TimeUnit.SECONDS.toNanos(config.heartbeatSeconds);
+            long timeout = TimeUnit.SECONDS.toNanos(config.idleTimeoutSeconds);
+            long idle = System.nanoTime() - lastActivity;
+            boolean reapable = heartbeats || clientName == null; // Whatever its first line was, it never registered
+            if (reapable && idle >= timeout) {
+                server.metrics.connectionReaped();
+                abort(); // A vanished client never drains its queue
+                return;
+            }
+            if (heartbeats && idle >= heartbeat) {
+                server.metrics.pingSent();
+                sendFrame(Frame.of(Opcode.PING, Long.toString(System.currentTimeMillis())));
+                scheduleIdleCheck(timeout - idle);
+            } else if (reapable) {
+                scheduleIdleCheck((heartbeats ? Math.min(heartbeat, timeout) : timeout) - idle);
+            }
+        }
+
+        /**
+         * Queues a message for this client without blocking. A client whose queue overflows under the
+         * {@code DISCONNECT} policy is dropped as a slow consumer.
+         *
+         * @param message The line to send.
+         */
         void sendMessage(String message) {
-            out.println(message);
+            sendFrame(Frame.of(Opcode.TEXT, message));
+        }
+
+        /**
+         * Returns how many frames wait in this client's outbound queue.
+         *
+         * @return The queue depth, 0 before the connection is set up.
+         */
+        int queuedFrames() {
+            ClientConnection current = connection;
+            return current == null ? 0 : current.queuedFrames();
+        }
+
+        /**
+         * Queues an encoded frame for this client without blocking.
+         *
+         * @param frame The frame to send; it may be shared with other recipients.
+         */
+        void sendFrame(Frame frame) {
+            if (connection != null && !connection.write(frame)) {
+                abort(); // A slow consumer: its queue is full and may never drain
+            }
+        }
+
+        /**
+         * Closes the connection at once, discarding whatever is still queued for the client.
+         */
+        void abort() {
+            if (connection != null) {
+                connection.abort();
+            }
+            closeConnections();
+        }
+
+        /**
+         * Tells the client that the server is going away and where to reconnect.
+         *
+         * @param target       The {@code host:port} to reconnect to, or empty for this server's address.
+         * @param withinMillis The time to spread the reconnect over.
+         */
+        void sendReconnect(String target, long withinMillis) {
+            if (reconnectHints) {
+                sendFrame(Frame.of(Opcode.RECONNECT, Long.toString(withinMillis), target));
+            } else {
+                sendMessage("The server is shutting down; please reconnect" + (target.isEmpty() ? " in a moment." : " to " + target + "."));
+            }
         }
     
         String getClientName() {
             return clientName;
         }
+
+        boolean isOpen() {
+            return !closed.get();
+        }
+
+        boolean hasCapability(String capability) {
+            return capabilities.contains(capability);
+        }
     
-        Socket getSocket() {
-            return clientSocket;
+        String getHostAddress() {
+            return connection != null ? connection.getHostAddress() : clientSocket.getInetAddress().getHostAddress();
         }
     }
 
      /**
      * The main method to start the ChatServer.
      *
-     * @param args Command-line arguments (unused).
+     * @param args Command-line options, see {@link ServerConfig#fromArgs(String[])}.
      */
     public static void main(String[] args) {
-        ChatServer server = new ChatServer();
-        server.start(10100); // Use your port here
+        ServerConfig config;
+        try {
+            config = ServerConfig.fromArgs(args); // e.g. --port=10100 --mode=nio
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        ChatServer server = new ChatServer(config);
+        // A deploy's SIGTERM drains the clients instead of cutting them off mid-message
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(config.drainSeconds, TimeUnit.SECONDS), "chat-shutdown"));
+        server.start(config);
     }
 
     
@@ -0,0 +1,54 @@
+/**
+ * The {@code ClientConnection} interface abstracts the transport a {@code ChatServer.ClientHandler}
+ * uses to talk to its client, so the same protocol handling can run over blocking sockets
+ * or selector-based channels.
+ */
+interface ClientConnection {
+
+    /**
+     * Queues an encoded protocol line for delivery to the client without blocking.
+     * The same frame may be queued on many connections at once and must not be modified.
+     *
+     * @param frame The frame to send.
+     * @return {@code false} if the client's outbound queue overflowed and it should be disconnected.
+     */
+    boolean write(Frame frame);
+
+    /**
+     * Switches the connection to length-prefixed binary frames. Frames queued before the switch
+     * are still sent as text. Only call this while no other thread writes to the connection.
+     */
+    void useBinaryFrames();
+
+    /**
+     * Switches the connection to compressing large binary frames, see {@link Frame#compressed}.
+     * Only call this after {@link #useBinaryFrames()}, while no other thread writes to the connection.
+     */
+    void useCompression();
+
+    /**
+     * Returns how many frames are queued but not yet written.
+     *
+     * @return The outbound queue depth.
+     */
+    int queuedFrames();
+
+    /**
+     * Returns the IP address of the remote client.
+     *
+     * @return The client's host address.
+     */
+    String getHostAddress();
+
+    /**
+     * Stops accepting frames and closes the underlying transport once the frames already queued
+     * have been written. Calling this more than once has no effect.
+     */
+    void close();
+
+    /**
+     * Closes the underlying transport at once, discarding anything still queued.
+     * Used for clients that stopped reading, whose queued frames may never drain.
+     */
+    void abort();
+}
@@ -0,0 +1,93 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@code ClientExecutors} class creates the executor that runs blocking {@code ClientHandler}s.
+ * Virtual threads are looked up reflectively so the server still compiles and runs on JDKs without them,
+ * in which case each client gets platform threads of its own, as with {@link ServerConfig.Executor#THREAD}.
+ * A bounded pool would be the wrong fallback: every client takes a reader and a writer thread, so a pool
+ * sized for threads rather than clients would turn clients away long before the machine runs out.
+ */
+final class ClientExecutors {
+
+    private ClientExecutors() {
+    }
+
+    /**
+     * Creates the executor selected by {@link ServerConfig#executor}.
+     *
+     * @param config The server configuration.
+     * @return An executor that runs one task per connected client.
+     */
+    static ExecutorService create(ServerConfig config) {
+        switch (effectiveKind(config)) {
+            case VIRTUAL:
+                return newVirtualThreadPerTaskExecutor();
+            case PLATFORM:
+                return newBoundedPlatformExecutor(config.maxThreads);
+            default:
+                return Executors.newCachedThreadPool(namedThreads("client-handler-"));
+        }
+    }
+
+    /**
+     * Returns the kind of executor {@link #create} makes for a configuration: the one configured, or
+     * {@link ServerConfig.Executor#THREAD} if virtual threads were asked for and this JVM has none.
+     *
+     * @param config The server configuration.
+     * @return The kind of threads that will run the client handlers.
+     */
+    static ServerConfig.Executor effectiveKind(ServerConfig config) {
+        if (config.executor == ServerConfig.Executor.VIRTUAL && !virtualThreadsAvailable()) {
+            return ServerConfig.Executor.THREAD;
+        }
+        return config.executor;
+    }
+
+    private static boolean virtualThreadsAvailable() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns {@code Executors.newVirtualThreadPerTaskExecutor()} when the running JVM provides it.
+     *
+     * @return A virtual-thread executor, or {@code null} if virtual threads are unavailable.
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates a pool of at most {@code maxThreads} platform threads without a backlog, so a full
+     * pool rejects new clients instead of leaving them connected but unserved.
+     */
+    private static ExecutorService newBoundedPlatformExecutor(int maxThreads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), namedThreads("client-handler-"));
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+        return executor;
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
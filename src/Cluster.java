@@ -0,0 +1,588 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The {@code Cluster} class joins several {@code ChatServer} processes into one chat. Every node keeps its
+ * own clients and tells the others which nicknames it holds and which rooms it has members in. A room
+ * message is forwarded only to the nodes with members in that room, and a private message only to the
+ * node holding its recipient, where each is logged and delivered like a local one.
+ *
+ * <p>A node opens a link to every peer in {@link ServerConfig#peers} and only writes on it; what a peer
+ * sends arrives on the link the peer opened in turn. Each link has a writer thread that drains its queue
+ * in batches and flushes once per batch, so a busy link costs one write per batch rather than one per
+ * message, and a record is encoded once however many links it goes to. A broken link is reopened with
+ * backoff and starts over with the node's full list of users and rooms; records queued when it broke are
+ * dropped. While a peer's incoming link is down, its users are shown as having left.
+ *
+ * <p>The cluster port listens on {@link ServerConfig#clusterBind} only, loopback unless configured, and
+ * every link starts with a handshake in which both ends prove they hold {@link ServerConfig#clusterSecret}:
+ * the linking node sends {@code HELLO} with its id and a random nonce, the peer answers {@code HELLO} with
+ * its own id and nonce and an HMAC-SHA256 over both, and the linking node replies {@code AUTH} with an HMAC
+ * of its own. The secret itself never crosses the wire, and a peer's records are only read once its
+ * {@code AUTH} checks out.
+ */
+final class Cluster {
+
+    // Record types; each type byte is followed by the record's fields as [int length][UTF-8 bytes]
+    private static final byte HELLO = 1; // node id, nonce; answered with node id, nonce, proof
+    private static final byte USER_JOIN = 2; // nickname, host address
+    private static final byte USER_LEAVE = 3; // nickname
+    private static final byte ROOM_OPEN = 4; // room
+    private static final byte ROOM_CLOSE = 5; // room
+    private static final byte ROOM_MESSAGE = 6; // room, sender, text
+    private static final byte ROOM_LINE = 7; // room, line
+    private static final byte PRIVATE = 8; // recipient, sender, text
+    private static final byte AUTH = 9; // proof, the linking node's answer to the peer's HELLO
+
+    private static final int LINK_CAPACITY = 65536; // Records queued per link before new ones are dropped
+    private static final int MAX_BATCH = 1024;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000; // How long an unproven peer may hold a reader thread
+    private static final int MAX_HANDSHAKE_FIELD = 256; // Longest node id, nonce or proof accepted before AUTH
+    private static final int NONCE_BYTES = 16;
+    private static final long RETRY_MIN_MILLIS = 100;
+    private static final long RETRY_MAX_MILLIS = 5000;
+    private static final byte[] RESET = new byte[0]; // Queued to make a link's writer reconnect
+    private static final byte[] CLOSE = new byte[0]; // Queued to make a link's writer flush and stop
+
+    private final ChatServer server;
+    private final String nodeId;
+    private final String bindAddress;
+    private final int port;
+    private final SecretKeySpec secret;
+    private final SecureRandom random = new SecureRandom();
+    private final String[] peerAddresses;
+    private final Map<String, Link> links = new ConcurrentHashMap<>(); // Open outgoing links, by the peer's node id
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>(); // What each connected peer told us, by node id
+    private final Map<String, Peer> owners = new ConcurrentHashMap<>(); // Remote nicknames and the peer holding each
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final List<Thread> linkThreads = new ArrayList<>(); // One writer per peer address
+    private final List<Link> allLinks = new ArrayList<>(); // Every link, whether open or reconnecting
+    private final Set<Socket> incoming = ConcurrentHashMap.newKeySet(); // Links peers opened to this node
+    private volatile boolean closed;
+    private ServerSocket listener;
+
+    /**
+     * What one peer has told this node: its users and the rooms it has members in.
+     */
+    private static final class Peer {
+        final String nodeId;
+        final Map<String, String> users = new ConcurrentHashMap<>(); // nickname -> host address
+        final Set<String> rooms = ConcurrentHashMap.newKeySet();
+
+        Peer(String nodeId) {
+            this.nodeId = nodeId;
+        }
+    }
+
+    /**
+     * Creates the cluster view of a server; nothing is opened until {@link #start()}.
+     *
+     * @param config The server configuration, with the node id, cluster address, secret and peers.
+     * @param server The server whose clients this node holds.
+     */
+    Cluster(ServerConfig config, ChatServer server) {
+        this.server = server;
+        this.nodeId = config.nodeId;
+        this.bindAddress = config.clusterBind;
+        this.port = config.clusterPort;
+        this.secret = new SecretKeySpec(config.clusterSecret.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+        this.peerAddresses = config.peers.isEmpty() ? new String[0] : config.peers.split(",");
+    }
+
+    /**
+     * Listens for peers' links and starts opening a link to every peer.
+     *
+     * @throws IOException if the cluster port cannot be bound.
+     */
+    void start() throws IOException {
+        ServerSocket socket = new ServerSocket();
+        socket.bind(new InetSocketAddress(bindAddress, port));
+        listener = socket;
+        daemon("cluster-listener", this::accept).start();
+        for (String address : peerAddresses) {
+            Link link = new Link(address.trim());
+            Thread thread = daemon("cluster-link-" + address.trim(), link);
+            allLinks.add(link);
+            linkThreads.add(thread);
+            thread.start();
+        }
+        System.out.println("Cluster node " + nodeId + " listening on " + bindAddress + ":" + port
+                + (peerAddresses.length == 0 ? "" : ", peers " + String.join(",", peerAddresses)));
+    }
+
+    /**
+     * Leaves the cluster: writes what each link still has queued, then closes every link and stops
+     * listening. Peers see this node's users leave as its incoming links close.
+     *
+     * @param timeoutMillis How long to wait for the links to flush.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void close(long timeoutMillis) throws InterruptedException {
+        closed = true;
+        try {
+            listener.close();
+        } catch (IOException ignored) {
+            // Closed either way
+        }
+        for (int i = 0; i < allLinks.size(); i++) {
+            Link link = allLinks.get(i);
+            if (links.containsValue(link)) {
+                link.close();
+            } else {
+                linkThreads.get(i).interrupt(); // Waiting to reconnect, with nothing to flush
+            }
+        }
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+        for (Thread thread : linkThreads) {
+            thread.join(Math.max(1, (deadline - System.nanoTime()) / 1_000_000));
+            thread.interrupt(); // Still connecting or blocked on a peer that does not read
+        }
+        for (Socket socket : incoming) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Closed either way
+            }
+        }
+    }
+
+    private static Thread daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private void accept() {
+        while (!listener.isClosed()) {
+            try {
+                Socket socket = listener.accept();
+                daemon("cluster-reader-" + socket.getRemoteSocketAddress(), () -> read(socket)).start();
+            } catch (IOException e) {
+                if (!listener.isClosed()) {
+                    System.err.println("Error accepting cluster link: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a peer's records until its link closes, then forgets the peer's users and rooms.
+     */
+    private void read(Socket socket) {
+        Peer peer = null;
+        incoming.add(socket);
+        try (Socket open = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(open.getInputStream(), BUFFER_SIZE));
+            open.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            if (in.readByte() != HELLO) {
+                throw new ProtocolException("Cluster link did not start with HELLO");
+            }
+            String peerId = readString(in, MAX_HANDSHAKE_FIELD);
+            String peerNonce = readString(in, MAX_HANDSHAKE_FIELD);
+            String nonce = newNonce();
+            // Tells the peer's link which node it reached, and proves this node holds the secret
+            open.getOutputStream().write(encode(HELLO, nodeId, nonce, proof("accept", peerId, nodeId, peerNonce, nonce)));
+            open.getOutputStream().flush();
+            if (in.readByte() != AUTH || !verify(readString(in, MAX_HANDSHAKE_FIELD), proof("link", peerId, nodeId, nonce, peerNonce))) {
+                throw new ProtocolException("Peer failed authentication");
+            }
+            open.setSoTimeout(0);
+            peer = new Peer(peerId);
+            Peer previous = peers.put(peer.nodeId, peer);
+            if (previous != null) {
+                forget(previous); // Reconnected before its old link was seen to break
+            }
+            System.out.println("Cluster node " + peer.nodeId + " connected");
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                handle(peer, type, in);
+            }
+        } catch (IOException e) {
+            System.err.println("Cluster link from " + (peer != null ? peer.nodeId : socket.getRemoteSocketAddress())
+                    + " failed: " + (e instanceof EOFException ? "closed by the peer" : e.getMessage()));
+        } finally {
+            incoming.remove(socket);
+            if (peer != null && peers.remove(peer.nodeId, peer)) {
+                forget(peer);
+                Link link = links.get(peer.nodeId);
+                if (link != null) {
+                    link.reset(); // Our link to it is most likely broken too; find out now, not on the next write
+                }
+                System.out.println("Cluster node " + peer.nodeId + " disconnected");
+            }
+        }
+    }
+
+    private void handle(Peer peer, byte type, DataInputStream in) throws IOException {
+        switch (type) {
+            case USER_JOIN: {
+                String name = readString(in);
+                String hostAddress = readString(in);
+                if (peers.get(peer.nodeId) != peer) return; // Superseded by a newer link from the same node
+                peer.users.put(name, hostAddress);
+                owners.put(name, peer);
+                server.remoteUserChanged(name);
+                break;
+            }
+            case USER_LEAVE: {
+                String name = readString(in);
+                if (peers.get(peer.nodeId) != peer) return;
+                peer.users.remove(name);
+                owners.remove(name, peer);
+                server.remoteUserChanged(name);
+                break;
+            }
+            case ROOM_OPEN:
+                peer.rooms.add(readString(in));
+                break;
+            case ROOM_CLOSE:
+                peer.rooms.remove(readString(in));
+                break;
+            case ROOM_MESSAGE:
+                server.deliverRemoteMessage(readString(in), readString(in), readString(in));
+                break;
+            case ROOM_LINE:
+                server.deliverRemoteLine(readString(in), readString(in));
+                break;
+            case PRIVATE:
+                server.deliverRemotePrivate(readString(in), readString(in), readString(in));
+                break;
+            default:
+                throw new ProtocolException("Unknown cluster record type " + type);
+        }
+    }
+
+    private void forget(Peer peer) {
+        for (String name : peer.users.keySet()) {
+            if (owners.remove(name, peer)) {
+                server.remoteUserChanged(name);
+            }
+        }
+    }
+
+    /**
+     * Returns the address of a user connected to another node.
+     *
+     * @param name The nickname.
+     * @return The user's host address, or {@code null} if no peer holds the nickname.
+     */
+    String hostAddressOf(String name) {
+        Peer peer = owners.get(name);
+        return peer == null ? null : peer.users.get(name);
+    }
+
+    /**
+     * Tells every peer that a client of this node registered a nickname.
+     */
+    void userJoined(String name, String hostAddress) {
+        toAll(encode(USER_JOIN, name, hostAddress));
+    }
+
+    /**
+     * Tells every peer that a client of this node left.
+     */
+    void userLeft(String name) {
+        toAll(encode(USER_LEAVE, name));
+    }
+
+    /**
+     * Tells every peer that this node has members in a room, so messages to it are forwarded here.
+     */
+    void roomOpened(String room) {
+        toAll(encode(ROOM_OPEN, room));
+    }
+
+    /**
+     * Tells every peer that this node no longer has members in a room.
+     */
+    void roomClosed(String room) {
+        toAll(encode(ROOM_CLOSE, room));
+    }
+
+    /**
+     * Forwards a chat message to the nodes with members in its room, which log and deliver it.
+     */
+    void roomMessage(String room, String sender, String text) {
+        toRoom(room, ROOM_MESSAGE, room, sender, text);
+    }
+
+    /**
+     * Forwards a notice such as a member joining to the nodes with members in the room.
+     */
+    void roomLine(String room, String line) {
+        toRoom(room, ROOM_LINE, room, line);
+    }
+
+    /**
+     * Forwards a private message to the node holding its recipient.
+     *
+     * @return {@code false} if no connected peer holds the recipient.
+     */
+    boolean privateMessage(String recipient, String sender, String text) {
+        Peer owner = owners.get(recipient);
+        Link link = owner == null ? null : links.get(owner.nodeId);
+        if (link == null) {
+            return false;
+        }
+        link.offer(encode(PRIVATE, recipient, sender, text));
+        return true;
+    }
+
+    private void toAll(byte[] record) {
+        for (Link link : links.values()) {
+            link.offer(record);
+        }
+    }
+
+    private void toRoom(String room, byte type, String... fields) {
+        byte[] record = null; // Encoded only if some peer wants it, then shared
+        for (Peer peer : peers.values()) {
+            if (!room.equals(ChatServer.DEFAULT_ROOM) && !peer.rooms.contains(room)) {
+                continue;
+            }
+            Link link = links.get(peer.nodeId);
+            if (link == null) {
+                continue;
+            }
+            if (record == null) {
+                record = encode(type, fields);
+            }
+            link.offer(record);
+        }
+    }
+
+    private static byte[] encode(byte type, String... fields) {
+        byte[][] encoded = new byte[fields.length][];
+        int length = 1;
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            length += 4 + encoded[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length).put(type);
+        for (byte[] field : encoded) {
+            buffer.putInt(field.length).put(field);
+        }
+        return buffer.array();
+    }
+
+    private String newNonce() {
+        byte[] nonce = new byte[NONCE_BYTES];
+        random.nextBytes(nonce);
+        return Base64.getEncoder().encodeToString(nonce);
+    }
+
+    /**
+     * Computes what a node sends to show it holds the cluster secret: an HMAC over the step of the
+     * handshake, both node ids and both nonces, so a proof cannot be replayed on another link or step.
+     */
+    private String proof(String step, String linkingNode, String acceptingNode, String firstNonce, String secondNonce) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(secret);
+            String message = String.join("\n", step, linkingNode, acceptingNode, firstNonce, secondNonce);
+            return Base64.getEncoder().encodeToString(mac.doFinal(message.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e); // Every Java platform has it
+        }
+    }
+
+    private static boolean verify(String received, String expected) {
+        return MessageDigest.isEqual(received.getBytes(StandardCharsets.UTF_8), expected.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return readString(in, Frame.MAX_FRAME_LENGTH);
+    }
+
+    private static String readString(DataInputStream in, int maxLength) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > maxLength) {
+            throw new ProtocolException("Invalid cluster field length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    int getConnectedNodeCount() {
+        return links.size();
+    }
+
+    int getRemoteUserCount() {
+        return owners.size();
+    }
+
+    long getForwardedCount() {
+        return forwarded.sum();
+    }
+
+    long getBatchCount() {
+        return batches.sum();
+    }
+
+    long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * The outgoing link to one peer and the thread that writes its queue.
+     */
+    private final class Link implements Runnable {
+        private final String address; // host:port of the peer's cluster listener
+        private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(LINK_CAPACITY);
+        private volatile Socket socket; // The current connection, once one is open
+
+        Link(String address) {
+            this.address = address;
+        }
+
+        void offer(byte[] record) {
+            if (!queue.offer(record)) {
+                dropped.increment(); // The peer is not keeping up
+            }
+        }
+
+        /**
+         * Closes the current connection, so the writer reconnects.
+         */
+        void reset() {
+            Socket current = socket;
+            if (current != null) {
+                try {
+                    current.close();
+                } catch (IOException ignored) {
+                    // Closed either way
+                }
+                queue.offer(RESET); // Wakes the writer if it is waiting for records
+            }
+        }
+
+        /**
+         * Makes the writer stop once it has written the records queued so far.
+         */
+        void close() {
+            if (!queue.offer(CLOSE)) {
+                reset(); // Full: nothing would reach the peer in time anyway
+            }
+        }
+
+        /**
+         * Keeps the link open: connects, sends this node's users and rooms, then writes queued records
+         * in batches until the connection breaks, and starts over after a growing pause.
+         */
+        public void run() {
+            InetSocketAddress peer = ServerConfig.parseAddress(address); // Validated when the option was set
+            InetSocketAddress target = new InetSocketAddress(peer.getHostString(), peer.getPort());
+            long retryMillis = RETRY_MIN_MILLIS;
+            while (!closed) {
+                String peerId = null;
+                try (Socket socket = new Socket()) {
+                    this.socket = socket;
+                    socket.connect(target, CONNECT_TIMEOUT_MILLIS);
+                    socket.setTcpNoDelay(true); // Records are batched here, not by TCP
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    String nonce = newNonce();
+                    out.write(encode(HELLO, nodeId, nonce));
+                    out.flush();
+                    socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                    if (in.readByte() != HELLO) {
+                        throw new ProtocolException("Cluster peer did not answer HELLO");
+                    }
+                    String id = readString(in, MAX_HANDSHAKE_FIELD);
+                    String peerNonce = readString(in, MAX_HANDSHAKE_FIELD);
+                    if (!verify(readString(in, MAX_HANDSHAKE_FIELD), proof("accept", nodeId, id, nonce, peerNonce))) {
+                        throw new ProtocolException("Peer failed authentication");
+                    }
+                    out.write(encode(AUTH, proof("link", nodeId, id, peerNonce, nonce)));
+                    socket.setSoTimeout(0);
+                    peerId = id;
+                    dropped.add(queue.size());
+                    queue.clear(); // Left from a broken connection; the snapshot below supersedes them
+                    links.put(peerId, this);
+                    retryMillis = RETRY_MIN_MILLIS;
+                    for (Map.Entry<String, String> user : server.getLocalUsers().entrySet()) {
+                        out.write(encode(USER_JOIN, user.getKey(), user.getValue()));
+                    }
+                    for (String room : server.getRoomNames()) {
+                        out.write(encode(ROOM_OPEN, room));
+                    }
+                    out.flush();
+
+                    List<byte[]> batch = new ArrayList<>(MAX_BATCH);
+                    while (true) {
+                        batch.add(queue.take());
+                        queue.drainTo(batch, MAX_BATCH - 1);
+                        for (byte[] record : batch) {
+                            if (record == RESET) {
+                                throw new IOException("Peer disconnected");
+                            }
+                            if (record == CLOSE) {
+                                out.flush();
+                                return;
+                            }
+                            out.write(record);
+                        }
+                        out.flush();
+                        forwarded.add(batch.size());
+                        batches.increment();
+                        batch.clear();
+                    }
+                } catch (ProtocolException e) {
+                    if (!closed) {
+                        System.err.println("Cluster link to " + address + " failed: " + e.getMessage()); // Such as a wrong secret, so reported every time
+                    }
+                } catch (IOException e) {
+                    if (peerId != null && !closed) {
+                        System.err.println("Cluster link to " + peerId + " failed: " + e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    if (peerId != null) {
+                        links.remove(peerId, this);
+                    }
+                }
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                retryMillis = Math.min(RETRY_MAX_MILLIS, retryMillis * 2);
+            }
+        }
+    }
+}
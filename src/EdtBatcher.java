@@ -0,0 +1,64 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import javax.swing.Timer;
+
+/**
+ * The {@code EdtBatcher} class carries items from background threads to the Swing event dispatch thread
+ * in batches. Producers only add to a concurrent queue; a Swing timer then hands everything queued to the
+ * consumer on the EDT at most once per frame. A burst of thousands of messages therefore costs a handful of
+ * EDT tasks and model updates instead of one each, and the window keeps repainting and reacting to input.
+ *
+ * @param <E> The type of item being delivered.
+ */
+class EdtBatcher<E> {
+
+    /**
+     * The default delivery period, about one frame at 60 Hz.
+     */
+    static final int FRAME_MILLIS = 16;
+
+    private final Queue<E> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Consumer<List<E>> consumer;
+    private final Timer timer;
+
+    /**
+     * Creates a batcher.
+     *
+     * @param periodMillis How long to collect items before delivering them.
+     * @param consumer     Receives each batch, in arrival order, on the event dispatch thread.
+     */
+    EdtBatcher(int periodMillis, Consumer<List<E>> consumer) {
+        this.consumer = consumer;
+        this.timer = new Timer(periodMillis, event -> deliver());
+        this.timer.setRepeats(false);
+    }
+
+    /**
+     * Queues an item for the next batch. May be called from any thread.
+     *
+     * @param item The item.
+     */
+    void add(E item) {
+        pending.add(item);
+        if (scheduled.compareAndSet(false, true)) {
+            timer.restart(); // The first item of a batch opens the next frame
+        }
+    }
+
+    private void deliver() {
+        scheduled.set(false); // Items added from here on go into the next batch
+        List<E> batch = new ArrayList<>();
+        E item;
+        while ((item = pending.poll()) != null) {
+            batch.add(item);
+        }
+        if (!batch.isEmpty()) {
+            consumer.accept(batch);
+        }
+    }
+}
@@ -9,6 +9,11 @@ public class EncryptionUtil {
     // Simple shift cipher for demonstration purposes
     private static final int SHIFT = 4;
 
+    /**
+     * The shift cipher itself, also the cipher of connections that did not negotiate another one.
+     */
+    static final ShiftCipher CIPHER = new ShiftCipher(SHIFT);
+
     /**
      * Encrypts the provided text using a shift cipher.
      *
@@ -16,7 +21,7 @@ public class EncryptionUtil {
      * @return The encrypted text.
      */
     public static String encrypt(String text) {
-        return shift(text, SHIFT);
+        return CIPHER.encrypt(text);
     }
  /**
      * Decrypts the provided text which was encrypted using the shift cipher.
@@ -26,29 +31,6 @@ public class EncryptionUtil {
      */
 
     public static String decrypt(String text) {
-        return shift(text, -SHIFT);
-    }
-
-     /**
-     * Performs a character shift operation in the text.
-     *
-     * @param text  The input text to be shifted.
-     * @param shift The number of positions to shift the characters. Can be positive for encrypting, negative for decrypting.
-     * @return The shifted text.
-     */
-    private static String shift(String text, int shift) {
-        StringBuilder result = new StringBuilder();
-        for (char character : text.toCharArray()) {
-            if (character >= 'a' && character <= 'z') {
-                char shifted = (char) (((character - 'a' + shift + 26) % 26) + 'a');
-                result.append(shifted);
-            } else if (character >= 'A' && character <= 'Z') {
-                char shifted = (char) (((character - 'A' + shift + 26) % 26) + 'A');
-                result.append(shifted);
-            } else {
-                result.append(character);
-            }
-        }
-        return result.toString();
+        return CIPHER.decrypt(text);
     }
 }
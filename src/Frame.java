@@ -0,0 +1,373 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The {@code Frame} class is one protocol message: an {@link Opcode} and its fields. A frame is immutable
+ * and caches its wire encodings, so a broadcast encodes the message at most once per wire format and hands
+ * the very same bytes to every recipient instead of re-encoding it per client.
+ *
+ * <p>In text format a frame is its text form followed by a newline; line breaks inside the fields are sent
+ * as spaces, so a field can never end the line early. In binary format it is
+ * {@code [int length][byte opcode][byte fieldCount]} followed by {@code [int length][UTF-8 bytes]}
+ * for each field, where the leading length counts the bytes after itself. A binary frame may be
+ * compressed: its opcode byte then has the high bit set and the rest of the body, from the field count on,
+ * is zlib-deflated. Only frames with a body of at least {@value #COMPRESSION_THRESHOLD} bytes are
+ * compressed, and like the other encodings the compressed one is made once and shared by all recipients.
+ */
+final class Frame {
+
+    /**
+     * The largest binary frame body accepted, in bytes.
+     */
+    static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    /**
+     * The smallest binary frame body worth compressing, in bytes.
+     */
+    static final int COMPRESSION_THRESHOLD = 512;
+
+    private static final int COMPRESSED_FLAG = 0x80; // Set in the opcode byte of a compressed binary frame
+
+    private final Opcode opcode;
+    private final String[] fields;
+    private final boolean binary; // The wire format of this instance's bytes
+    private volatile String text; // Text form, built on first use
+    private volatile byte[] bytes; // Encoded form in this instance's format, built on first use
+    private volatile Frame binaryForm; // The same message in binary format, shared by all binary recipients
+    private volatile Frame compressedForm; // The same message as a compressed binary frame, if that is smaller
+    private int plainLength; // For a compressed frame, the length of its uncompressed binary encoding
+
+    private Frame(Opcode opcode, String[] fields, boolean binary) {
+        this.opcode = opcode;
+        this.fields = fields;
+        this.binary = binary;
+    }
+
+    /**
+     * Creates a frame from its opcode and fields.
+     *
+     * @param opcode The message type.
+     * @param fields The message fields, as many as the opcode's arity.
+     * @return The frame.
+     */
+    static Frame of(Opcode opcode, String... fields) {
+        return new Frame(opcode, fields, false);
+    }
+
+    /**
+     * Creates a frame from a protocol line in text form. Lines that do not start with a known
+     * prefix become {@link Opcode#TEXT} frames.
+     *
+     * @param line The line, without a terminator.
+     * @return The frame.
+     */
+    static Frame of(String line) {
+        for (Opcode opcode : Opcode.values()) {
+            if (opcode.prefix == null) {
+                continue;
+            }
+            if (opcode.arity == 0) {
+                if (line.equalsIgnoreCase(opcode.prefix)) {
+                    return new Frame(opcode, new String[0], false);
+                }
+            } else if (line.startsWith(opcode.prefix)) {
+                Frame frame = new Frame(opcode, line.substring(opcode.prefix.length()).split(":", opcode.arity), false);
+                frame.text = line;
+                return frame;
+            }
+        }
+        Frame frame = new Frame(Opcode.TEXT, new String[] {line}, false);
+        frame.text = line;
+        return frame;
+    }
+
+    /**
+     * Decodes the body of a binary frame, i.e. everything after its length prefix.
+     *
+     * @param buffer The bytes holding the body.
+     * @param offset Where the body starts.
+     * @param length The body length.
+     * @return The decoded frame.
+     * @throws ProtocolException if the body is malformed.
+     */
+    static Frame decode(byte[] buffer, int offset, int length) throws ProtocolException {
+        return decode(buffer, offset, length, MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Decodes the body of a binary frame, i.e. everything after its length prefix, inflating it first
+     * if it is compressed.
+     *
+     * @param buffer    The bytes holding the body.
+     * @param offset    Where the body starts.
+     * @param length    The body length.
+     * @param maxLength The longest body accepted once inflated.
+     * @return The decoded frame.
+     * @throws ProtocolException if the body is malformed or inflates beyond {@code maxLength}.
+     */
+    static Frame decode(byte[] buffer, int offset, int length, int maxLength) throws ProtocolException {
+        if (length >= 1 && (buffer[offset] & COMPRESSED_FLAG) != 0) {
+            byte[] body = inflate(buffer, offset, length, maxLength);
+            return decode(body, 0, body.length, maxLength);
+        }
+        if (length < 2) {
+            throw new ProtocolException("Binary frame too short");
+        }
+        Opcode opcode = Opcode.fromCode(buffer[offset]);
+        if (opcode == null) {
+            throw new ProtocolException("Unknown opcode " + (buffer[offset] & 0xFF));
+        }
+        String[] fields = new String[buffer[offset + 1] & 0xFF];
+        if (fields.length != opcode.arity) {
+            throw new ProtocolException(opcode + " takes " + opcode.arity + " fields, got " + fields.length);
+        }
+        int position = offset + 2;
+        int end = offset + length;
+        for (int i = 0; i < fields.length; i++) {
+            if (position + 4 > end) {
+                throw new ProtocolException("Truncated field header");
+            }
+            int fieldLength = readInt(buffer, position);
+            position += 4;
+            if (fieldLength < 0 || fieldLength > end - position) {
+                throw new ProtocolException("Invalid field length " + fieldLength);
+            }
+            fields[i] = new String(buffer, position, fieldLength, StandardCharsets.UTF_8);
+            position += fieldLength;
+        }
+        return new Frame(opcode, fields, true);
+    }
+
+    /**
+     * Inflates a compressed body into a plain one: the opcode without its flag, then the inflated rest.
+     */
+    private static byte[] inflate(byte[] buffer, int offset, int length, int maxLength) throws ProtocolException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(buffer, offset + 1, length - 1);
+            byte[] body = new byte[Math.min(maxLength, Math.max(256, length * 4))];
+            body[0] = (byte) (buffer[offset] & ~COMPRESSED_FLAG);
+            int count = 1;
+            while (!inflater.finished()) {
+                if (count == body.length) {
+                    if (body.length >= maxLength) {
+                        throw new ProtocolException("Compressed frame longer than " + maxLength + " bytes");
+                    }
+                    body = Arrays.copyOf(body, Math.min(maxLength, body.length * 2));
+                }
+                int inflated = inflater.inflate(body, count, body.length - count);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new ProtocolException("Truncated compressed frame");
+                }
+                count += inflated;
+            }
+            return count == body.length ? body : Arrays.copyOf(body, count);
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Corrupt compressed frame: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Reads the big-endian int at the given position, such as a binary frame's length prefix.
+     *
+     * @param buffer   The bytes.
+     * @param position Where the int starts.
+     * @return The int value.
+     */
+    static int readInt(byte[] buffer, int position) {
+        return (buffer[position] & 0xFF) << 24 | (buffer[position + 1] & 0xFF) << 16
+                | (buffer[position + 2] & 0xFF) << 8 | (buffer[position + 3] & 0xFF);
+    }
+
+    /**
+     * Returns this message in binary format. The result is cached, so all binary recipients of a
+     * broadcast share one encoding.
+     *
+     * @return A frame whose bytes use the binary format.
+     */
+    Frame binary() {
+        if (binary) return this;
+        Frame form = binaryForm;
+        if (form == null) {
+            form = new Frame(opcode, fields, true);
+            form.text = text;
+            binaryForm = form;
+        }
+        return form;
+    }
+
+    /**
+     * Returns this message as a compressed binary frame if its body is at least
+     * {@link #COMPRESSION_THRESHOLD} bytes and compressing shrinks it, and in plain binary format otherwise.
+     * The result is cached, so a broadcast is compressed once however many recipients it has.
+     *
+     * @param timing Given the {@code System.nanoTime()} at which compression started, each time this frame
+     *               is actually compressed; may be {@code null}.
+     * @return A frame whose bytes use the binary format, compressed or not.
+     */
+    Frame compressed(LongConsumer timing) {
+        Frame form = compressedForm;
+        if (form == null) {
+            Frame plain = binary();
+            byte[] encoded = plain.encoded();
+            form = plain;
+            if (encoded.length - 4 >= COMPRESSION_THRESHOLD) {
+                long started = System.nanoTime();
+                Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                try {
+                    deflater.setInput(encoded, 5, encoded.length - 5); // From the field count on
+                    deflater.finish();
+                    byte[] bytes = new byte[encoded.length];
+                    int length = 5 + deflater.deflate(bytes, 5, bytes.length - 5);
+                    if (deflater.finished() && length < encoded.length) {
+                        ByteBuffer.wrap(bytes).putInt(length - 4).put((byte) (opcode.code | COMPRESSED_FLAG));
+                        form = new Frame(opcode, fields, true);
+                        form.bytes = Arrays.copyOf(bytes, length);
+                        form.plainLength = encoded.length;
+                        form.text = text;
+                        form.compressedForm = form;
+                    }
+                } finally {
+                    deflater.end();
+                }
+                if (timing != null) timing.accept(started);
+            }
+            compressedForm = form;
+        }
+        return form;
+    }
+
+    /**
+     * Returns the number of bytes this frame would take on the wire uncompressed.
+     *
+     * @return The uncompressed length, the same as {@link #length()} for a frame that is not compressed.
+     */
+    int uncompressedLength() {
+        return plainLength > 0 ? plainLength : length();
+    }
+
+    Opcode opcode() {
+        return opcode;
+    }
+
+    /**
+     * Returns one field of the message.
+     *
+     * @param index The field index.
+     * @return The field, or {@code null} if the message has fewer fields.
+     */
+    String field(int index) {
+        return index < fields.length ? fields[index] : null;
+    }
+
+    /**
+     * Returns the number of fields in the message.
+     *
+     * @return The field count.
+     */
+    int fieldCount() {
+        return fields.length;
+    }
+
+    /**
+     * Returns the message in text form, without a line terminator.
+     *
+     * @return The text form.
+     */
+    String text() {
+        String result = text;
+        if (result == null) {
+            if (opcode == Opcode.TEXT) {
+                result = fields[0];
+            } else if (opcode.arity == 0) {
+                result = opcode.prefix;
+            } else {
+                result = opcode.prefix + String.join(":", fields);
+            }
+            text = result;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of bytes this frame occupies on the wire.
+     *
+     * @return The encoded length.
+     */
+    int length() {
+        return encoded().length;
+    }
+
+    /**
+     * Returns a key shared by frames that supersede each other, such as successive user lists.
+     *
+     * @return The coalescing key, or {@code null} if every copy of this frame must be delivered.
+     */
+    String coalesceKey() {
+        return opcode == Opcode.USERLIST ? "USERLIST" : null;
+    }
+
+    /**
+     * Returns a read-only view of the encoded bytes with its own position, so each recipient can
+     * track how much of the shared frame it has written.
+     *
+     * @return A new read-only buffer over the frame's bytes.
+     */
+    ByteBuffer buffer() {
+        return ByteBuffer.wrap(encoded()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the encoded bytes to a stream.
+     *
+     * @param out The stream to write to.
+     * @throws IOException if writing fails.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        out.write(encoded());
+    }
+
+    private byte[] encoded() {
+        byte[] result = bytes;
+        if (result == null) {
+            result = binary ? encodeBinary() : (singleLine(text()) + "\n").getBytes(StandardCharsets.UTF_8);
+            bytes = result;
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the line breaks in a text form with spaces. A text recipient reads up to the first
+     * {@code \r} or {@code \n}, so a field holding one, as a binary client may send, would end the line
+     * early and the rest would be read as a message of its own.
+     */
+    private static String singleLine(String text) {
+        if (text.indexOf('\n') < 0 && text.indexOf('\r') < 0) return text;
+        return text.replace('\n', ' ').replace('\r', ' ');
+    }
+
+    private byte[] encodeBinary() {
+        byte[][] encodedFields = new byte[fields.length][];
+        int bodyLength = 2;
+        for (int i = 0; i < fields.length; i++) {
+            encodedFields[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            bodyLength += 4 + encodedFields[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4 + bodyLength);
+        buffer.putInt(bodyLength).put(opcode.code).put((byte) fields.length);
+        for (byte[] field : encodedFields) {
+            buffer.putInt(field.length).put(field);
+        }
+        return buffer.array();
+    }
+}
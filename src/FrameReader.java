@@ -0,0 +1,152 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The {@code FrameReader} class reads protocol frames from a stream, either as newline-terminated
+ * UTF-8 lines or, once {@link #useBinaryFrames()} has been called, as length-prefixed binary frames.
+ * Unlike {@code BufferedReader} it takes no monitors, so a virtual thread blocked in it never pins
+ * its carrier thread.
+ */
+class FrameReader {
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[8192];
+    private int position;
+    private int limit;
+    private byte[] line = new byte[256]; // Bytes of the line or frame being assembled
+    private int lineLength;
+    private boolean binary; // Whether frames are length-prefixed binary rather than text lines
+    private final int maxFrameLength; // Longest line or binary frame body accepted, in bytes
+    private int frameBytes; // Wire size of the last frame read
+
+    /**
+     * Creates a reader over the given stream that accepts frames up to {@link Frame#MAX_FRAME_LENGTH}.
+     * The reader must only be used by one thread.
+     *
+     * @param in The stream to read from.
+     */
+    FrameReader(InputStream in) {
+        this(in, Frame.MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Creates a reader over the given stream. The reader must only be used by one thread.
+     *
+     * @param in             The stream to read from.
+     * @param maxFrameLength The longest line or binary frame accepted, in bytes; a longer one is an error
+     *                       as soon as its first bytes past the limit arrive, so it is never buffered whole.
+     */
+    FrameReader(InputStream in, int maxFrameLength) {
+        this.in = in;
+        this.maxFrameLength = Math.min(maxFrameLength, Frame.MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Returns the number of bytes the last frame read took on the wire.
+     *
+     * @return The size of the last frame, including its terminator or length prefix.
+     */
+    int lastFrameBytes() {
+        return frameBytes;
+    }
+
+    /**
+     * Switches to binary frames for everything read from now on.
+     */
+    void useBinaryFrames() {
+        binary = true;
+    }
+
+    /**
+     * Blocks until a full frame is available, in whichever format is in use.
+     *
+     * @return The frame, or {@code null} at end of stream.
+     * @throws IOException if reading fails or a binary frame is malformed.
+     */
+    Frame readFrame() throws IOException {
+        if (!binary) {
+            String text = readLine();
+            return text == null ? null : Frame.of(text);
+        }
+        if (!fill(4)) return null;
+        int length = Frame.readInt(line, 0);
+        if (length < 0 || length > maxFrameLength) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+        if (!fill(4 + length)) {
+            throw new ProtocolException("Connection closed inside a frame");
+        }
+        lineLength = 0;
+        frameBytes = 4 + length;
+        return Frame.decode(line, 4, length, maxFrameLength);
+    }
+
+    /**
+     * Reads until {@code count} bytes of the current frame have been collected.
+     *
+     * @return {@code false} if the stream ended first.
+     */
+    private boolean fill(int count) throws IOException {
+        if (line.length < count) {
+            line = Arrays.copyOf(line, Math.max(count, line.length * 2));
+        }
+        while (lineLength < count) {
+            if (position == limit) {
+                limit = in.read(buffer);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return false;
+                }
+            }
+            int chunk = Math.min(count - lineLength, limit - position);
+            System.arraycopy(buffer, position, line, lineLength, chunk);
+            position += chunk;
+            lineLength += chunk;
+        }
+        return true;
+    }
+
+    /**
+     * Blocks until a full line is available.
+     *
+     * @return The line without its terminator, or {@code null} at end of stream.
+     * @throws IOException if reading from the stream fails or the line is too long.
+     */
+    String readLine() throws IOException {
+        while (true) {
+            if (position == limit) {
+                limit = in.read(buffer);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    if (lineLength == 0) return null;
+                    return takeLine(); // Last line without a terminator
+                }
+            }
+            while (position < limit) {
+                byte b = buffer[position++];
+                if (b == '\n') {
+                    return takeLine();
+                }
+                if (lineLength == line.length) {
+                    if (lineLength >= maxFrameLength) {
+                        throw new ProtocolException("Line longer than " + maxFrameLength + " bytes");
+                    }
+                    line = Arrays.copyOf(line, Math.min(line.length * 2, maxFrameLength + 1)); // Room for a trailing '\r'
+                }
+                line[lineLength++] = b;
+            }
+        }
+    }
+
+    private String takeLine() {
+        frameBytes = lineLength + 1;
+        int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+        lineLength = 0;
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,144 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@code HashedWheelTimer} class runs many short tasks after coarse delays from a single thread. Tasks
+ * are hashed by deadline into the buckets of a wheel that the thread turns one bucket per tick, so
+ * scheduling and expiry cost the same however many tasks are pending, and only the current bucket is ever
+ * looked at. A deadline more than one turn away waits out the extra turns in its bucket. Tasks may run up to
+ * one tick late and must not block, since they share the thread.
+ */
+final class HashedWheelTimer {
+
+    private final long tickNanos;
+    private final Timeout[] wheel; // Bucket heads, each a list of timeouts linked through Timeout.next
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>(); // Scheduled from other threads, not yet in a bucket
+    private final long startedAt = System.nanoTime();
+    private final Thread thread;
+    private volatile boolean stopped;
+
+    /**
+     * A task waiting in the wheel.
+     */
+    static final class Timeout {
+        private final Runnable task;
+        private final long deadline; // Nanoseconds after the timer started
+        private long rounds; // Turns of the wheel still to wait once in a bucket
+        private Timeout next;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Stops the task from running, if it has not run yet.
+         */
+        void cancel() {
+            cancelled = true; // Unlinked when its bucket comes round, so no lock is shared with the timer thread
+        }
+    }
+
+    /**
+     * Creates a timer and starts its thread.
+     *
+     * @param name       The thread name.
+     * @param tick       How long the wheel takes to move on one bucket: the precision of deadlines.
+     * @param unit       The unit of {@code tick}.
+     * @param wheelSize  The number of buckets, rounded up to a power of two; one turn of the wheel covers
+     *                   {@code tick * wheelSize}.
+     */
+    HashedWheelTimer(String name, long tick, TimeUnit unit, int wheelSize) {
+        this.tickNanos = Math.max(1, unit.toNanos(tick));
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.wheel = new Timeout[size];
+        this.mask = size - 1;
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Schedules a task. Safe to call from any thread, including from a task.
+     *
+     * @param task  The task to run on the timer thread.
+     * @param delay How long to wait first.
+     * @param unit  The unit of {@code delay}.
+     * @return A handle to cancel the task with.
+     */
+    Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startedAt + Math.max(0, unit.toNanos(delay)));
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the timer thread. Tasks still pending never run.
+     */
+    void stop() {
+        stopped = true;
+        thread.interrupt();
+    }
+
+    private void run() {
+        long tick = 0;
+        while (!stopped) {
+            long sleep = (tick + 1) * tickNanos - (System.nanoTime() - startedAt);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    continue; // stop() was called
+                }
+            }
+            tick++;
+            transferAdded(tick);
+            expire((int) (tick & mask), System.nanoTime() - startedAt);
+        }
+    }
+
+    /**
+     * Puts the newly scheduled timeouts into the buckets their deadlines hash to.
+     */
+    private void transferAdded(long tick) {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled) continue;
+            long due = Math.max(tick, (timeout.deadline + tickNanos - 1) / tickNanos); // Never in a bucket already passed
+            timeout.rounds = (due - tick) / wheel.length;
+            int bucket = (int) (due & mask);
+            timeout.next = wheel[bucket];
+            wheel[bucket] = timeout;
+        }
+    }
+
+    /**
+     * Runs the timeouts of one bucket that are due, and leaves the others one turn closer.
+     */
+    private void expire(int bucket, long now) {
+        Timeout previous = null;
+        Timeout timeout = wheel[bucket];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            boolean due = timeout.rounds <= 0 && timeout.deadline <= now;
+            if (due || timeout.cancelled) {
+                if (previous == null) wheel[bucket] = next; else previous.next = next;
+                timeout.next = null;
+                if (due && !timeout.cancelled) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("Timer task failed: " + e);
+                    }
+                }
+            } else {
+                timeout.rounds--;
+                previous = timeout;
+            }
+            timeout = next;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+import java.security.GeneralSecurityException;
+
+/**
+ * The {@code MessageCipher} interface encrypts and decrypts the payload of {@code MSG:} lines.
+ * Each connection uses the cipher agreed on in its {@code CAPS:} handshake; clients that negotiate
+ * nothing use the shift cipher of {@link EncryptionUtil}.
+ */
+interface MessageCipher {
+
+    /**
+     * Returns the name the cipher is negotiated by.
+     *
+     * @return The cipher name, e.g. {@code shift} or {@code aes-gcm}.
+     */
+    String name();
+
+    /**
+     * Encrypts a message.
+     *
+     * @param text The plain text.
+     * @return The encrypted text, safe to send as a protocol field.
+     */
+    String encrypt(String text);
+
+    /**
+     * Decrypts a message.
+     *
+     * @param text The encrypted text.
+     * @return The plain text.
+     * @throws GeneralSecurityException if the text was not produced by the peer's cipher or was tampered with.
+     */
+    String decrypt(String text) throws GeneralSecurityException;
+}
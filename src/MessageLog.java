@@ -0,0 +1,693 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * The {@code MessageLog} class persists chat messages in an append-only log split into segment files,
+ * each named after the sequence number of its first record. Appending only assigns a sequence number and
+ * queues the message; a writer thread takes whatever has queued up, writes it with one {@code FileChannel}
+ * write and one {@code force}, and only then makes it visible to readers (group commit). Broadcasting
+ * therefore never waits for the disk, and a burst of messages costs one sync instead of one each.
+ *
+ * <p>History requests map the relevant segments read-only and scan them in place. Segments other than the
+ * one being written are deleted once the log exceeds its size limit or they exceed the age limit.
+ *
+ * <p>A record is {@code [int length][int crc32]} followed by {@code [long seq][long millis][byte kind]},
+ * the target and sender as {@code [short length][UTF-8]} and the text as {@code [int length][UTF-8]}.
+ * When the log is opened, every record's checksum is checked and each segment is truncated after its last
+ * intact record, such as one torn by a crash. A batch that fails to write is cut off again at once, so its
+ * partial records are never read; if even that fails, the writer moves on to a new segment.
+ *
+ * <p>An optional {@link Indexer} is given every message once it is durable, starting with those already
+ * on disk when the log is opened, so indexes built from the log need no storage of their own.
+ */
+final class MessageLog {
+
+    static final byte PUBLIC = 0; // Target is a room
+    static final byte PRIVATE = 1; // Target is the recipient's nickname
+
+    private static final String SUFFIX = ".log";
+    private static final int HEADER_LENGTH = 8; // Length and CRC
+    private static final int MAX_BATCH = 4096;
+    private static final int MAX_PENDING = 65536; // Messages waiting for the writer before new ones are dropped
+    private static final long RETENTION_CHECK_MILLIS = 60_000;
+    private static final int INDEX_INTERVAL = 64; // Records between the positions kept for lookups by sequence number
+    private static final int MAX_NAME_BYTES = 0xFFFF; // Targets and senders are stored with a two-byte length
+
+    /**
+     * One logged message.
+     */
+    static final class Entry {
+        final long seq;
+        final long timestamp;
+        final byte kind;
+        final String target;
+        final String sender;
+        final String text;
+
+        Entry(long seq, long timestamp, byte kind, String target, String sender, String text) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.kind = kind;
+            this.target = target;
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Follows the messages in the log, for instance to keep a search index.
+     */
+    interface Indexer {
+        /**
+         * Receives a message once it is durable. Messages arrive in sequence order, on the thread that
+         * opens the log for those already on disk and on the writer thread afterwards.
+         *
+         * @param entry The message.
+         */
+        void add(Entry entry);
+
+        /**
+         * Learns that retention has deleted every message before a sequence number.
+         *
+         * @param firstSeq The sequence number of the oldest message still in the log.
+         */
+        void removeBefore(long firstSeq);
+    }
+
+    /**
+     * One segment file. Its size only covers records that have been synced, so readers never see a
+     * record that could still be lost.
+     */
+    private static final class Segment {
+        final long firstSeq;
+        final Path path;
+        volatile long size;
+        private int records; // Written by one thread at a time: the opening thread, then the writer
+        // The sequence number and position of every INDEX_INTERVAL-th record
+        private long[] indexSeqs = new long[16];
+        private int[] indexPositions = new int[16];
+        private int indexed;
+
+        Segment(long firstSeq, Path path, long size) {
+            this.firstSeq = firstSeq;
+            this.path = path;
+            this.size = size;
+        }
+
+        /**
+         * Forgets the records noted at or after a position, which were never synced.
+         */
+        synchronized void forgetFrom(long position) {
+            while (indexed > 0 && indexPositions[indexed - 1] >= position) {
+                indexed--;
+            }
+            records = 0; // So the next record is indexed, and no gap in the index is wider than the interval
+        }
+
+        synchronized void noteRecord(long seq, int position) {
+            if (records++ % INDEX_INTERVAL != 0) return;
+            if (indexed == indexSeqs.length) {
+                indexSeqs = Arrays.copyOf(indexSeqs, indexed * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexed * 2);
+            }
+            indexSeqs[indexed] = seq;
+            indexPositions[indexed] = position;
+            indexed++;
+        }
+
+        /**
+         * Returns a position at or before the record with the given sequence number.
+         */
+        synchronized int positionBefore(long seq) {
+            int found = Arrays.binarySearch(indexSeqs, 0, indexed, seq);
+            int slot = found >= 0 ? found : -found - 2;
+            return slot < 0 ? 0 : indexPositions[slot];
+        }
+
+        /**
+         * Returns the position of the last noted record that starts before the given position, or 0.
+         */
+        synchronized int positionBeforeOffset(int offset) {
+            int found = Arrays.binarySearch(indexPositions, 0, indexed, offset);
+            int slot = found >= 0 ? found - 1 : -found - 2;
+            return slot < 0 ? 0 : indexPositions[slot];
+        }
+    }
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final boolean fsync;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final BlockingQueue<Entry> pending = new LinkedBlockingQueue<>(MAX_PENDING);
+    private final ReentrantLock appendLock = new ReentrantLock(); // Keeps queue order equal to sequence order
+    private long lastSeq; // Guarded by appendLock
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private final Indexer indexer; // Or null
+    private volatile boolean closed;
+    private static final Entry CLOSE = new Entry(0, 0, PUBLIC, "", "", ""); // Wakes the writer when the log is closed
+
+    // Owned by the writer thread
+    private Segment active;
+    private FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+    private final CRC32 crc = new CRC32();
+    private long lastRetentionCheck;
+    private boolean damaged; // Whether the active segment may hold bytes past its size that could not be cut off
+
+    private MessageLog(Path directory, ServerConfig config, Indexer indexer) {
+        this.directory = directory;
+        this.indexer = indexer;
+        this.segmentBytes = config.logSegmentBytes;
+        this.retentionBytes = config.logRetentionBytes;
+        this.retentionMillis = TimeUnit.HOURS.toMillis(config.logRetentionHours);
+        this.fsync = config.logFsync;
+        this.writer = new Thread(this::writeLoop, "message-log-writer");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Opens the log in the given directory, creating it if needed, and starts its writer thread.
+     * Every segment is read once, to locate its records and to feed the indexer.
+     *
+     * @param directory Where the segment files live.
+     * @param config    The segment size, retention and sync settings.
+     * @param indexer   Receives every message in the log and every new one, or {@code null}.
+     * @return The open log.
+     * @throws IOException if the directory or a segment cannot be opened.
+     */
+    static MessageLog open(Path directory, ServerConfig config, Indexer indexer) throws IOException {
+        MessageLog log = new MessageLog(directory, config, indexer);
+        log.recover();
+        log.writer.start();
+        return log;
+    }
+
+    private void recover() throws IOException {
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    long firstSeq = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                    segments.put(firstSeq, new Segment(firstSeq, file, Files.size(file)));
+                } catch (NumberFormatException e) {
+                    // Not a segment
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            lastSeq = 0;
+            openSegment(1);
+            return;
+        }
+        active = segments.lastEntry().getValue();
+        lastSeq = active.firstSeq - 1;
+        for (Segment segment : segments.values()) {
+            FileChannel file = FileChannel.open(segment.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                ByteBuffer contents = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+                long loaded = load(segment, contents);
+                if (contents.position() < file.size()) {
+                    System.err.println("Message log: truncating " + (file.size() - contents.position())
+                            + " bytes of incomplete records in " + segment.path.getFileName());
+                    file.truncate(contents.position());
+                }
+                segment.size = contents.position();
+                if (segment == active) {
+                    if (loaded > 0) {
+                        lastSeq = loaded;
+                    }
+                    file.position(contents.position());
+                    channel = file;
+                    file = null; // Kept open for appending
+                }
+            } finally {
+                if (file != null) file.close();
+            }
+        }
+    }
+
+    /**
+     * Walks a segment's records from the start, checking each one's checksum, noting their positions and
+     * passing them to the indexer, and leaves the buffer positioned after the last intact one. Any segment
+     * may end in a torn record: the active one after a crash, an older one if a write failed just before
+     * the log moved on from it.
+     *
+     * @return The last sequence number in the segment, or 0 if it holds no records.
+     */
+    private long load(Segment segment, ByteBuffer contents) {
+        long last = 0;
+        while (intact(contents)) {
+            int start = contents.position();
+            Entry entry = decode(contents, start + HEADER_LENGTH);
+            segment.noteRecord(entry.seq, start);
+            if (indexer != null) {
+                indexer.add(entry);
+            }
+            last = entry.seq;
+            contents.position(start + HEADER_LENGTH + contents.getInt(start));
+        }
+        return last;
+    }
+
+    /**
+     * Checks that a complete record with a matching checksum starts at the buffer's position.
+     */
+    private boolean intact(ByteBuffer contents) {
+        int start = contents.position();
+        if (contents.limit() - start < HEADER_LENGTH) return false;
+        int length = contents.getInt(start);
+        if (length < 8 || length > contents.limit() - start - HEADER_LENGTH) return false;
+        crc.reset();
+        crc.update(contents.duplicate().position(start + HEADER_LENGTH).limit(start + HEADER_LENGTH + length));
+        return (int) crc.getValue() == contents.getInt(start + 4);
+    }
+
+    private void openSegment(long firstSeq) throws IOException {
+        Path path = directory.resolve(String.format("%020d%s", firstSeq, SUFFIX));
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        active = new Segment(firstSeq, path, 0);
+        segments.put(firstSeq, active);
+    }
+
+    /**
+     * Queues a message for writing without blocking.
+     *
+     * @param kind   {@link #PUBLIC} or {@link #PRIVATE}.
+     * @param target The room, or the recipient of a private message.
+     * @param sender The sender's nickname.
+     * @param text   The message text.
+     * @return The message's sequence number, or -1 if the message was dropped because the writer is too far
+     *         behind or the target or sender is longer than 65535 UTF-8 bytes.
+     */
+    long append(byte kind, String target, String sender, String text) {
+        if (tooLong(target) || tooLong(sender)) {
+            dropped.increment(); // Its length would not fit the record; the server never lets such names in
+            return -1;
+        }
+        appendLock.lock();
+        try {
+            if (closed) return -1;
+            Entry entry = new Entry(lastSeq + 1, System.currentTimeMillis(), kind, target, sender, text);
+            if (!pending.offer(entry)) {
+                dropped.increment();
+                return -1;
+            }
+            return ++lastSeq;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private static boolean tooLong(String name) {
+        return name.length() > MAX_NAME_BYTES / 3 && name.getBytes(StandardCharsets.UTF_8).length > MAX_NAME_BYTES;
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>();
+        while (true) {
+            try {
+                Entry first = pending.poll(1, TimeUnit.SECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    pending.drainTo(batch, MAX_BATCH - 1);
+                    batch.remove(CLOSE);
+                    if (!batch.isEmpty()) {
+                        write(batch);
+                        appended.add(batch.size());
+                        batch.clear();
+                    }
+                }
+                if (closed && pending.isEmpty()) {
+                    break; // Nothing can be appended any more
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastRetentionCheck >= RETENTION_CHECK_MILLIS) {
+                    lastRetentionCheck = now;
+                    enforceRetention(now);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                System.err.println("Message log: could not write " + batch.size() + " messages: " + e.getMessage());
+                dropped.add(batch.size());
+                batch.clear();
+                rollBack();
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Message log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a batch, rolling to a new segment where the current one is full, and syncs it once.
+     */
+    private void write(List<Entry> batch) throws IOException {
+        buffer.clear();
+        if (damaged) {
+            // Leave the torn bytes behind the segment's size, where readers never look and recovery cuts them off
+            FileChannel torn = channel;
+            openSegment(batch.get(0).seq);
+            damaged = false;
+            try {
+                torn.close();
+            } catch (IOException e) {
+                System.err.println("Message log: " + e.getMessage());
+            }
+        }
+        long segmentEnd = active.size; // Where the buffered bytes will end in the active segment
+        for (Entry entry : batch) {
+            byte[] target = entry.target.getBytes(StandardCharsets.UTF_8);
+            byte[] sender = entry.sender.getBytes(StandardCharsets.UTF_8);
+            byte[] text = entry.text.getBytes(StandardCharsets.UTF_8);
+            int length = 8 + 8 + 1 + 2 + target.length + 2 + sender.length + 4 + text.length;
+            if (segmentEnd > 0 && segmentEnd + HEADER_LENGTH + length > segmentBytes) {
+                flushBuffer();
+                sync();
+                openSegment(entry.seq);
+                segmentEnd = 0;
+                lastRetentionCheck = 0; // Check retention as soon as this batch is written
+            }
+            if (buffer.remaining() < HEADER_LENGTH + length) {
+                flushBuffer();
+                if (buffer.capacity() < HEADER_LENGTH + length) {
+                    buffer = ByteBuffer.allocateDirect(HEADER_LENGTH + length);
+                }
+            }
+            active.noteRecord(entry.seq, (int) segmentEnd);
+            int start = buffer.position();
+            buffer.putInt(length).putInt(0).putLong(entry.seq).putLong(entry.timestamp).put(entry.kind);
+            buffer.putShort((short) target.length).put(target);
+            buffer.putShort((short) sender.length).put(sender);
+            buffer.putInt(text.length).put(text);
+            crc.reset();
+            crc.update(buffer.duplicate().position(start + HEADER_LENGTH).limit(buffer.position()));
+            buffer.putInt(start + 4, (int) crc.getValue());
+            segmentEnd += HEADER_LENGTH + length;
+        }
+        flushBuffer();
+        sync();
+        if (indexer != null) {
+            for (Entry entry : batch) {
+                indexer.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Cuts the active segment back to its last synced record after a failed write, so the next batch does
+     * not follow a partly written one. If that fails too, the next batch starts a new segment instead.
+     */
+    private void rollBack() {
+        buffer.clear();
+        active.forgetFrom(active.size);
+        try {
+            channel.truncate(active.size);
+            channel.position(active.size);
+        } catch (IOException e) {
+            System.err.println("Message log: could not cut off the failed write: " + e.getMessage());
+            damaged = true;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Makes everything written to the active segment durable and visible to readers.
+     */
+    private void sync() throws IOException {
+        if (fsync) {
+            channel.force(false);
+        }
+        active.size = channel.position();
+    }
+
+    /**
+     * Deletes the oldest segments while the log is over its size limit, and any segment whose newest
+     * record is older than the age limit. The active segment is always kept.
+     */
+    private void enforceRetention(long now) {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.size;
+        }
+        long firstSeq = segments.firstKey();
+        for (Segment segment : segments.values()) {
+            if (segment == active) break;
+            boolean expired;
+            try {
+                expired = now - Files.getLastModifiedTime(segment.path).toMillis() > retentionMillis;
+            } catch (IOException e) {
+                expired = true; // Already gone
+            }
+            if (total <= retentionBytes && !expired) break; // Later segments are newer still
+            segments.remove(segment.firstSeq);
+            total -= segment.size;
+            try {
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                System.err.println("Message log: could not delete " + segment.path + ": " + e.getMessage());
+            }
+        }
+        if (indexer != null && segments.firstKey() != firstSeq) {
+            indexer.removeBefore(segments.firstKey());
+        }
+    }
+
+    /**
+     * Returns the messages after a sequence number, oldest first.
+     *
+     * @param afterSeq Only messages with a higher sequence number are returned.
+     * @param max      The most messages to return.
+     * @param visible  Selects the messages the requester may see.
+     * @return The messages, at most {@code max}.
+     * @throws IOException if a segment cannot be read.
+     */
+    List<Entry> since(long afterSeq, int max, Predicate<Entry> visible) throws IOException {
+        List<Entry> result = new ArrayList<>();
+        Long from = segments.floorKey(afterSeq + 1);
+        for (Segment segment : (from == null ? segments : segments.tailMap(from)).values()) {
+            scan(segment, afterSeq, visible, result, max);
+            if (result.size() >= max) break;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the most recent messages, oldest first. Each segment is read backwards a stretch of
+     * {@value #INDEX_INTERVAL} records at a time, starting from the positions noted for it, so asking for the
+     * last few messages decodes about that many records however large the segment.
+     *
+     * @param count   The number of messages wanted.
+     * @param visible Selects the messages the requester may see.
+     * @return The last {@code count} visible messages, or fewer if the log holds fewer.
+     * @throws IOException if a segment cannot be read.
+     */
+    List<Entry> last(int count, Predicate<Entry> visible) throws IOException {
+        List<Entry> result = new ArrayList<>();
+        for (Segment segment : segments.descendingMap().values()) {
+            MappedByteBuffer contents = map(segment);
+            int end = contents == null ? 0 : contents.limit();
+            while (end > 0 && result.size() < count) {
+                int start = segment.positionBeforeOffset(end);
+                List<Entry> found = new ArrayList<>();
+                scan(contents, start, end, 0, visible, found, Integer.MAX_VALUE);
+                result.addAll(0, found.subList(Math.max(0, found.size() - (count - result.size())), found.size()));
+                end = start;
+            }
+            if (result.size() >= count) break;
+        }
+        return result;
+    }
+
+    /**
+     * Maps the synced part of a segment.
+     *
+     * @return The contents, or {@code null} if the segment is empty or has been removed.
+     */
+    private static MappedByteBuffer map(Segment segment) throws IOException {
+        long size = segment.size;
+        if (size == 0) return null;
+        try (FileChannel file = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+            return file.map(FileChannel.MapMode.READ_ONLY, 0, size); // Stays valid after the channel closes
+        } catch (NoSuchFileException e) {
+            return null; // Removed by retention meanwhile
+        }
+    }
+
+    /**
+     * Maps a segment and collects its visible messages after a sequence number, starting from the
+     * position noted nearest before it.
+     */
+    private void scan(Segment segment, long afterSeq, Predicate<Entry> visible, List<Entry> into, int max) throws IOException {
+        MappedByteBuffer contents = map(segment);
+        if (contents == null) return;
+        int start = afterSeq < segment.firstSeq ? 0 : segment.positionBefore(afterSeq + 1);
+        scan(contents, start, contents.limit(), afterSeq, visible, into, max);
+    }
+
+    /**
+     * Collects the visible messages after a sequence number among the records from {@code start} up to
+     * {@code end}, which must both fall on record boundaries.
+     */
+    private static void scan(ByteBuffer contents, int start, int end, long afterSeq, Predicate<Entry> visible,
+                             List<Entry> into, int max) {
+        int position = start;
+        while (position + HEADER_LENGTH <= end && into.size() < max) {
+            int length = contents.getInt(position);
+            int body = position + HEADER_LENGTH;
+            position = body + length;
+            if (contents.getLong(body) <= afterSeq) {
+                continue; // Skipped without decoding the strings
+            }
+            Entry entry = decode(contents, body);
+            if (visible.test(entry)) {
+                into.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Returns the messages with the given sequence numbers, found through the positions noted for each
+     * segment, so each lookup reads at most a few dozen records.
+     *
+     * @param seqs The sequence numbers.
+     * @return The messages still in the log, in the order asked for.
+     * @throws IOException if a segment cannot be read.
+     */
+    List<Entry> get(long... seqs) throws IOException {
+        List<Entry> result = new ArrayList<>(seqs.length);
+        Map<Segment, ByteBuffer> mapped = new HashMap<>();
+        for (long seq : seqs) {
+            Map.Entry<Long, Segment> floor = segments.floorEntry(seq);
+            if (floor == null) continue;
+            Segment segment = floor.getValue();
+            ByteBuffer contents = mapped.get(segment);
+            if (contents == null) {
+                long size = segment.size;
+                try (FileChannel file = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+                    contents = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                } catch (NoSuchFileException e) {
+                    continue; // Removed by retention meanwhile
+                }
+                mapped.put(segment, contents);
+            }
+            int position = segment.positionBefore(seq);
+            while (position + HEADER_LENGTH <= contents.limit()) {
+                long found = contents.getLong(position + HEADER_LENGTH);
+                if (found == seq) {
+                    result.add(decode(contents, position + HEADER_LENGTH));
+                }
+                if (found >= seq) break;
+                position += HEADER_LENGTH + contents.getInt(position);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Decodes the record whose body starts at the given position.
+     */
+    private static Entry decode(ByteBuffer contents, int body) {
+        contents = contents.duplicate().position(body);
+        long seq = contents.getLong();
+        long timestamp = contents.getLong();
+        byte kind = contents.get();
+        String target = readString(contents, contents.getShort() & 0xFFFF);
+        String sender = readString(contents, contents.getShort() & 0xFFFF);
+        String text = readString(contents, contents.getInt());
+        return new Entry(seq, timestamp, kind, target, sender, text);
+    }
+
+    private static String readString(ByteBuffer contents, int length) {
+        byte[] bytes = new byte[length];
+        contents.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the sequence number of the newest message accepted so far.
+     *
+     * @return The last sequence number, 0 for an empty log.
+     */
+    long lastSequence() {
+        appendLock.lock();
+        try {
+            return lastSeq;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the sequence number of the oldest message retention has kept.
+     *
+     * @return The first sequence number still in the log.
+     */
+    long firstSequence() {
+        return segments.firstKey();
+    }
+
+    long getAppendedCount() {
+        return appended.sum();
+    }
+
+    long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Stops accepting messages, writes those already queued and closes the active segment.
+     *
+     * @param timeoutMillis How long to wait for the writer.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void close(long timeoutMillis) throws InterruptedException {
+        appendLock.lock();
+        try {
+            closed = true;
+        } finally {
+            appendLock.unlock();
+        }
+        pending.offer(CLOSE); // If the queue is full, the writer is busy and will notice anyway
+        writer.join(timeoutMillis);
+    }
+}
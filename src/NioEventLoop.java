@@ -0,0 +1,478 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The {@code NioEventLoop} class serves many client channels from a single thread using a {@code Selector}.
+ * Each connection keeps its own read buffer, splits incoming bytes into frames (newline-terminated lines,
+ * or length-prefixed binary frames once negotiated) and hands them to its {@code ChatServer.ClientHandler};
+ * outgoing frames wait in the connection's
+ * {@code OutboundQueue} and are written when the channel becomes writable. Frames queued while a flush is
+ * pending are written together with one gathering write. An error while serving one connection closes
+ * that connection and leaves the loop serving the others.
+ */
+class NioEventLoop implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_GATHER_FRAMES = 64; // Frames handed to one gathering write
+    private static final int MAX_GATHER_BYTES = 65536; // Bytes taken off the queue for one gathering write
+
+    private final ChatServer server;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // Work submitted from other threads
+    // Work due at a later time, earliest first; only touched by the loop thread
+    private final PriorityQueue<Timed> timers = new PriorityQueue<>(Comparator.comparingLong((Timed timed) -> timed.deadline));
+    private Thread thread;
+
+    /**
+     * A task to run once the loop's clock reaches its deadline.
+     */
+    private static final class Timed {
+        final long deadline; // System.nanoTime() at which the task is due
+        final Runnable task;
+
+        Timed(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+
+    /**
+     * Creates an event loop for the given server.
+     *
+     * @param server The server whose protocol handlers process the incoming lines.
+     * @throws IOException if the selector cannot be opened.
+     */
+    NioEventLoop(ChatServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Starts the loop on a new thread with the given name.
+     *
+     * @param name The thread name.
+     */
+    void start(String name) {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /**
+     * Hands an accepted channel to this loop. Safe to call from any thread.
+     *
+     * @param channel The newly accepted client channel.
+     */
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                NioConnection connection = new NioConnection(channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.handler = server.register(connection);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error registering client channel: " + e.getMessage());
+                closeQuietly(channel);
+            }
+        });
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs a task on the loop after a delay. Only call this from the loop thread.
+     *
+     * @param task        The task.
+     * @param delayNanos  How long to wait first.
+     */
+    private void schedule(Runnable task, long delayNanos) {
+        timers.add(new Timed(System.nanoTime() + delayNanos, task));
+    }
+
+    /**
+     * Runs the select loop until the thread is interrupted.
+     */
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Timed next = timers.peek();
+                if (next == null) {
+                    selector.select();
+                } else {
+                    long millis = (next.deadline - System.nanoTime() + 999_999) / 1_000_000;
+                    if (millis > 0) selector.select(millis);
+                    else selector.selectNow();
+                }
+                runTimers();
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (RuntimeException e) {
+                        connection.failed(e);
+                    }
+                }
+                runTasks(); // Work queued by the handlers themselves, e.g. writes to other clients
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Event loop error: " + e); // Whatever it was, the loop goes on serving the rest
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            closeQuietly((SocketChannel) key.channel());
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+            // Nothing left to serve
+        }
+    }
+
+    /**
+     * Stops the loop and closes whatever channels it still serves. Close the connections first, and give
+     * them time to write what they have queued.
+     */
+    void stop() {
+        thread.interrupt(); // Wakes select(); the loop ends before selecting again
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Event loop task failed: " + e);
+            }
+        }
+    }
+
+    private void runTimers() {
+        long now = System.nanoTime();
+        while (!timers.isEmpty() && timers.peek().deadline - now <= 0) {
+            try {
+                timers.poll().task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Event loop timer failed: " + e);
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Nothing left to clean up
+        }
+    }
+
+    /**
+     * The {@code NioConnection} class is the non-blocking {@code ClientConnection} owned by this loop.
+     */
+    private class NioConnection implements ClientConnection {
+        private final SocketChannel channel;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private byte[] line = new byte[256]; // Bytes of the line or frame being assembled
+        private int lineLength;
+        private int frameBytes; // Wire size of the last frame completed
+        private boolean paused; // Whether reading stopped until the client is back within its rate limits
+        private volatile boolean binary; // Whether the client negotiated binary frames
+        private volatile boolean compress; // Whether the client negotiated compressed frames
+        private final OutboundQueue outbound = server.newOutboundQueue(); // Frames waiting to be written
+        private final ByteBuffer[] pending = new ByteBuffer[MAX_GATHER_FRAMES]; // Frames being written together
+        private int pendingStart; // The first frame in pending not yet written completely
+        private int pendingEnd; // One past the last frame in pending
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final String hostAddress;
+        private SelectionKey key;
+        private ChatServer.ClientHandler handler;
+
+        NioConnection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.hostAddress = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true); // Frames are batched here, so Nagle would only add latency
+        }
+
+        /**
+         * Reads whatever is available and dispatches every complete frame to the handler.
+         */
+        void read() {
+            int count;
+            try {
+                count = channel.read(readBuffer);
+            } catch (IOException e) {
+                count = -1;
+            }
+            if (count < 0) {
+                handler.closeConnections();
+                return;
+            }
+            server.getMetrics().bytesReceived(count);
+            readBuffer.flip();
+            dispatch();
+        }
+
+        /**
+         * Hands the complete frames in the read buffer to the handler. If a frame has to wait for the
+         * client's rate limits, reading stops and the rest of the buffer is kept until it has been handled.
+         */
+        private void dispatch() {
+            try {
+                while (readBuffer.hasRemaining() && !closed.get()) {
+                    // The format can change after any frame, so check it for each one
+                    Frame frame = binary ? nextBinaryFrame() : nextTextFrame();
+                    if (frame == null) {
+                        continue;
+                    }
+                    long wait = handler.throttle(frame, frameBytes);
+                    if (wait > 0) {
+                        pause(frame, wait);
+                        return;
+                    }
+                    if (wait == 0 && !handler.handleFrame(frame)) {
+                        handler.closeConnections();
+                    }
+                }
+            } catch (ProtocolException e) {
+                server.getMetrics().protocolError();
+                System.err.println("Closing " + hostAddress + ": " + e.getMessage());
+                handler.closeConnections();
+            }
+            readBuffer.clear();
+        }
+
+        /**
+         * Stops reading from the client for a while, then handles the frame that was held back and
+         * whatever followed it in the read buffer.
+         */
+        private void pause(Frame frame, long nanos) {
+            paused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            schedule(() -> {
+                paused = false;
+                if (closed.get() || !key.isValid()) return;
+                try {
+                    if (!handler.handleFrame(frame)) {
+                        handler.closeConnections();
+                        return;
+                    }
+                    dispatch();
+                    if (!paused && key.isValid()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                    }
+                } catch (RuntimeException e) {
+                    failed(e);
+                }
+            }, nanos);
+        }
+
+        private int readInterest() {
+            return paused ? 0 : SelectionKey.OP_READ;
+        }
+
+        /**
+         * Consumes bytes up to the next newline.
+         *
+         * @return The completed line as a frame, or {@code null} if more bytes are needed.
+         * @throws ProtocolException if the line is longer than the server accepts.
+         */
+        private Frame nextTextFrame() throws ProtocolException {
+            while (readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                    String text = new String(line, 0, length, StandardCharsets.UTF_8);
+                    frameBytes = lineLength + 1;
+                    lineLength = 0;
+                    return Frame.of(text);
+                }
+                if (lineLength == line.length) {
+                    int max = server.getConfig().maxLineBytes;
+                    if (lineLength >= max) {
+                        throw new ProtocolException("Line longer than " + max + " bytes");
+                    }
+                    line = Arrays.copyOf(line, Math.min(line.length * 2, max + 1)); // Room for a trailing '\r'
+                }
+                line[lineLength++] = b;
+            }
+            return null;
+        }
+
+        /**
+         * Consumes bytes of a length-prefixed binary frame.
+         *
+         * @return The completed frame, or {@code null} if more bytes are needed.
+         * @throws ProtocolException if the frame is malformed or too large.
+         */
+        private Frame nextBinaryFrame() throws ProtocolException {
+            while (readBuffer.hasRemaining()) {
+                int needed = 4; // First the length prefix, then the body it announces
+                if (lineLength >= 4) {
+                    int length = Frame.readInt(line, 0);
+                    if (length < 2 || length > server.getConfig().maxLineBytes) { // At least an opcode and a field count
+                        throw new ProtocolException("Invalid frame length " + length);
+                    }
+                    needed = 4 + length;
+                }
+                if (line.length < needed) {
+                    line = Arrays.copyOf(line, Math.max(needed, line.length * 2));
+                }
+                int chunk = Math.min(needed - lineLength, readBuffer.remaining());
+                readBuffer.get(line, lineLength, chunk);
+                lineLength += chunk;
+                if (needed > 4 && lineLength == needed) {
+                    frameBytes = needed;
+                    lineLength = 0;
+                    return Frame.decode(line, 4, needed - 4, server.getConfig().maxLineBytes);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Writes queued lines until the socket buffer is full, then waits for the next writable event.
+         * Up to {@value #MAX_GATHER_FRAMES} frames are taken off the queue at a time and written with one
+         * system call.
+         */
+        void flush() {
+            flushScheduled.set(false);
+            if (key == null || !key.isValid() || !channel.isOpen()) return;
+            try {
+                while (true) {
+                    if (pendingStart == pendingEnd && !gather()) break;
+                    channel.write(pending, pendingStart, pendingEnd - pendingStart);
+                    server.getMetrics().socketWrite();
+                    while (pendingStart < pendingEnd && !pending[pendingStart].hasRemaining()) {
+                        pending[pendingStart++] = null;
+                    }
+                    if (pendingStart < pendingEnd) {
+                        key.interestOps(closed.get() ? SelectionKey.OP_WRITE : readInterest() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                if (closed.get()) {
+                    abort(); // Everything queued before the close has been written
+                    return;
+                }
+                key.interestOps(readInterest());
+            } catch (IOException e) {
+                abort();
+                handler.closeConnections();
+            } catch (RuntimeException e) {
+                failed(e);
+            }
+        }
+
+        /**
+         * Closes this connection after a handler, or the loop itself, threw while serving it. Whatever was
+         * queued is dropped, since the state it was queued in cannot be trusted.
+         *
+         * @param e The error.
+         */
+        void failed(RuntimeException e) {
+            System.err.println("Closing " + hostAddress + " after an error: " + e);
+            abort();
+            if (handler != null) {
+                handler.closeConnections();
+            }
+        }
+
+        /**
+         * Takes the next frames off the queue for one gathering write.
+         *
+         * @return {@code false} if the queue was empty.
+         */
+        private boolean gather() {
+            pendingStart = 0;
+            pendingEnd = 0;
+            int bytes = 0;
+            Frame next;
+            while (pendingEnd < pending.length && bytes < MAX_GATHER_BYTES && (next = outbound.poll()) != null) {
+                ByteBuffer buffer = next.buffer(); // A private view of the shared, read-only frame
+                pending[pendingEnd++] = buffer;
+                bytes += buffer.remaining();
+                server.getMetrics().frameSent(next);
+            }
+            return pendingEnd > 0;
+        }
+
+        @Override
+        public boolean write(Frame frame) {
+            if (closed.get()) return true;
+            if (!outbound.offer(!binary ? frame : compress ? frame.compressed(server.getMetrics().compressionTiming()) : frame.binary())) return false;
+            if (flushScheduled.compareAndSet(false, true)) {
+                execute(this::flush);
+            }
+            return true;
+        }
+
+        @Override
+        public void useBinaryFrames() {
+            binary = true;
+        }
+
+        @Override
+        public void useCompression() {
+            compress = true;
+        }
+
+        @Override
+        public int queuedFrames() {
+            return outbound.size() + pendingEnd - pendingStart;
+        }
+
+        @Override
+        public String getHostAddress() {
+            return hostAddress;
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            outbound.close();
+            execute(this::flush); // Closes the channel once the queued frames are out
+        }
+
+        @Override
+        public void abort() {
+            closed.set(true);
+            outbound.discard();
+            execute(() -> {
+                if (key != null) key.cancel();
+                closeQuietly(channel);
+                Arrays.fill(pending, pendingStart, pendingEnd, null); // A partly written gather never will be
+                pendingStart = pendingEnd = 0;
+            });
+        }
+    }
+}
@@ -0,0 +1,397 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code OfflineInbox} class keeps private messages for nicknames that are not connected and hands
+ * them over when the nickname registers again. Each nickname has its own file of records
+ * {@code [long millis][UTF sender][int length][UTF-8 text]}, holding at most a fixed number of messages.
+ *
+ * <p>Messages are only kept for nicknames that have registered on this server within the retention period,
+ * so a mistyped name is still reported as not found rather than stored for nobody. The nicknames and when
+ * they were last seen are kept in a file of their own, {@code [long millis][int length][UTF-8 name]}. All
+ * inboxes together hold at most a configured number of bytes, and messages, like nicknames, are forgotten
+ * once they are older than the retention period.
+ *
+ * <p>Storing and delivering both run on the inbox's own thread, so neither the sender nor a logging-in
+ * client ever waits for the disk, and the messages for one nickname are handled in order. A large inbox is
+ * delivered in slices that fit the recipient's outbound queue, so nothing is dropped as for a slow consumer.
+ */
+final class OfflineInbox {
+
+    private static final String SUFFIX = ".inbox";
+    private static final String NICKNAMES = "nicknames"; // The file of nicknames that may be sent messages
+    private static final long RETRY_MILLIS = 50; // Wait before the next slice while the recipient's queue drains
+    private static final long EXPIRY_MILLIS = TimeUnit.HOURS.toMillis(1); // How often expired messages and nicknames are removed
+    private static final int MAX_HEX_NAME_BYTES = 100; // Longer nicknames are hashed, keeping file names far below NAME_MAX
+
+    private final Path directory;
+    private final int limit;
+    private final long maxBytes;
+    private final long retentionMillis;
+    private final int sliceSize;
+    private final ChatServer server;
+    private final ScheduledExecutorService worker;
+    private final Map<String, Integer> counts = new HashMap<>(); // Messages per inbox file; inbox thread only
+    private final Map<String, Long> seen = new ConcurrentHashMap<>(); // When each nickname last registered
+    private long totalBytes; // Size of all inbox files; inbox thread only
+    private final LongAdder stored = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Creates the inbox directory if needed, reads the nicknames known from earlier runs and starts the inbox
+     * thread. Half the outbound queue is the most messages queued to a recipient at once, and the queue depth
+     * below which the next slice is queued.
+     *
+     * @param directory Where the inbox files live.
+     * @param config    The limits on messages per nickname and in total, the retention period and the
+     *                  outbound queue capacity.
+     * @param server    The server, to find recipients that came online meanwhile.
+     * @throws IOException if the directory or the nicknames file cannot be read.
+     */
+    OfflineInbox(Path directory, ServerConfig config, ChatServer server) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.limit = config.inboxLimit;
+        this.maxBytes = config.inboxMaxBytes;
+        this.retentionMillis = TimeUnit.HOURS.toMillis(config.inboxRetentionHours);
+        this.sliceSize = Math.max(1, config.outboundCapacity / 2);
+        this.server = server;
+        Path nicknames = directory.resolve(NICKNAMES);
+        if (Files.exists(nicknames)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(nicknames)))) {
+                readNicknames(in);
+            }
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                totalBytes += Files.size(file);
+            }
+        }
+        this.worker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "offline-inbox");
+            thread.setDaemon(true);
+            return thread;
+        });
+        worker.scheduleWithFixedDelay(this::expire, 0, EXPIRY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Tells whether messages may be kept for a nickname: it must have registered on this server within the
+     * retention period.
+     *
+     * @param nickname The recipient's nickname.
+     * @return {@code true} if a message to it would be kept.
+     */
+    boolean knows(String nickname) {
+        Long seenAt = seen.get(nickname);
+        return seenAt != null && System.currentTimeMillis() - seenAt <= retentionMillis;
+    }
+
+    /**
+     * Keeps a private message for a nickname that is not connected, and tells the sender what happened.
+     *
+     * @param recipient The recipient's nickname.
+     * @param sender    The sending client.
+     * @param text      The message text.
+     */
+    void store(String recipient, ChatServer.ClientHandler sender, String text) {
+        String senderName = sender.getClientName();
+        long timestamp = System.currentTimeMillis();
+        worker.execute(() -> {
+            ChatServer.ClientHandler online = server.getClient(recipient);
+            if (online != null) {
+                online.sendFrame(Frame.of(Opcode.PRIVATE, senderName, text)); // Registered since the sender looked
+                sender.sendMessage("Message sent to " + recipient);
+                return;
+            }
+            Path file = fileOf(recipient);
+            try {
+                int count = count(recipient, file);
+                if (count >= limit) {
+                    rejected.increment();
+                    sender.sendMessage("The inbox of " + recipient + " is full; message not delivered.");
+                    return;
+                }
+                ByteArrayOutputStream record = new ByteArrayOutputStream();
+                write(new DataOutputStream(record), timestamp, senderName, text);
+                if (totalBytes + record.size() > maxBytes) {
+                    rejected.increment();
+                    sender.sendMessage("The offline inboxes are full; message to " + recipient + " not delivered.");
+                    return;
+                }
+                Files.write(file, record.toByteArray(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                totalBytes += record.size();
+                counts.put(recipient, count + 1);
+                stored.increment();
+                sender.sendMessage(recipient + " is offline; the message will be delivered when they return.");
+            } catch (IOException e) {
+                sender.sendMessage("Could not keep message for " + recipient + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Remembers that a client's nickname registered, so messages may be kept for it from now on, and hands
+     * it the messages kept for it, in the order they were sent. Called once the client has registered;
+     * returns at once.
+     *
+     * @param recipient The client that has just claimed its nickname.
+     */
+    void deliver(ChatServer.ClientHandler recipient) {
+        String name = recipient.getClientName();
+        long now = System.currentTimeMillis();
+        seen.put(name, now);
+        worker.execute(() -> {
+            remember(name, now);
+            Path file = fileOf(name);
+            if (!Files.exists(file)) {
+                return;
+            }
+            List<Frame> messages = new ArrayList<>();
+            try {
+                long size = Files.size(file);
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                    read(in, now - retentionMillis, messages);
+                }
+                Files.delete(file); // Messages stored from now on start a new file
+                totalBytes -= size;
+            } catch (IOException e) {
+                System.err.println("Could not read the inbox of " + name + ": " + e.getMessage());
+                return;
+            }
+            counts.remove(name);
+            if (messages.isEmpty()) {
+                return; // All of them expired
+            }
+            recipient.sendMessage("You have " + messages.size() + (messages.size() == 1 ? " message" : " messages")
+                    + " from while you were away.");
+            sendSlice(recipient, messages, 0);
+        });
+    }
+
+    /**
+     * Queues the next slice of messages to a recipient once its outbound queue has room for it. If the
+     * recipient disconnects first, the rest goes back into its inbox, ahead of anything stored meanwhile.
+     */
+    private void sendSlice(ChatServer.ClientHandler recipient, List<Frame> messages, int from) {
+        if (!recipient.isOpen()) {
+            putBack(recipient.getClientName(), messages.subList(from, messages.size()));
+            return;
+        }
+        if (recipient.queuedFrames() >= sliceSize) {
+            worker.schedule(() -> sendSlice(recipient, messages, from), RETRY_MILLIS, TimeUnit.MILLISECONDS);
+            return;
+        }
+        int to = Math.min(messages.size(), from + sliceSize);
+        for (int i = from; i < to; i++) {
+            recipient.sendFrame(messages.get(i));
+        }
+        delivered.add(to - from);
+        if (to < messages.size()) {
+            worker.execute(() -> sendSlice(recipient, messages, to));
+        }
+    }
+
+    private void putBack(String name, List<Frame> undelivered) {
+        Path file = fileOf(name);
+        Path rewritten = directory.resolve(file.getFileName() + ".tmp");
+        try {
+            long replaced = Files.exists(file) ? Files.size(file) : 0;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(rewritten)))) {
+                for (Frame message : undelivered) {
+                    write(out, System.currentTimeMillis(), message.field(0), message.field(1));
+                }
+                if (Files.exists(file)) {
+                    try (InputStream newer = Files.newInputStream(file)) {
+                        newer.transferTo(out);
+                    }
+                }
+            }
+            Files.move(rewritten, file, StandardCopyOption.REPLACE_EXISTING);
+            totalBytes += Files.size(file) - replaced; // Returned messages count even beyond the limit: they were kept once
+            counts.remove(name); // Recounted on the next store
+        } catch (IOException e) {
+            System.err.println("Could not return " + undelivered.size() + " messages to the inbox of " + name + ": " + e.getMessage());
+        }
+    }
+
+    private static void write(DataOutputStream out, long timestamp, String sender, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeLong(timestamp);
+        out.writeUTF(sender);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads records until the end of the file, skipping those stored before a given time. A record cut
+     * short by a crash is ignored.
+     */
+    private static void read(DataInputStream in, long notBefore, List<Frame> into) throws IOException {
+        try {
+            while (true) {
+                long timestamp = in.readLong(); // Messages are delivered in file order, not by this time
+                String sender = in.readUTF();
+                byte[] text = new byte[in.readInt()];
+                in.readFully(text);
+                if (timestamp >= notBefore) {
+                    into.add(Frame.of(Opcode.PRIVATE, sender, new String(text, StandardCharsets.UTF_8)));
+                }
+            }
+        } catch (EOFException e) {
+            // End of the inbox
+        }
+    }
+
+    /**
+     * Reads the nicknames file into {@link #seen}; a later record for a nickname replaces an earlier one.
+     */
+    private void readNicknames(DataInputStream in) throws IOException {
+        try {
+            while (true) {
+                long seenAt = in.readLong();
+                byte[] name = new byte[in.readInt()];
+                in.readFully(name);
+                seen.merge(new String(name, StandardCharsets.UTF_8), seenAt, Math::max);
+            }
+        } catch (EOFException e) {
+            // End of the file, or a record cut short by a crash
+        }
+    }
+
+    private static void writeNickname(DataOutputStream out, String name, long seenAt) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        out.writeLong(seenAt);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Appends a registration to the nicknames file.
+     */
+    private void remember(String name, long seenAt) {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(directory.resolve(NICKNAMES),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)))) {
+            writeNickname(out, name, seenAt);
+        } catch (IOException e) {
+            System.err.println("Could not remember the nickname " + name + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Forgets the nicknames and deletes the inboxes not touched within the retention period, and rewrites
+     * the nicknames file with one record per nickname still known. Runs on the inbox thread.
+     */
+    private void expire() {
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        seen.values().removeIf(seenAt -> seenAt < cutoff);
+        try {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+                for (Path file : files) {
+                    if (Files.getLastModifiedTime(file).toMillis() < cutoff) { // Every message in it is older still
+                        long size = Files.size(file);
+                        Files.delete(file);
+                        totalBytes -= size;
+                        counts.clear(); // The file's nickname is unknown here; recounted on the next store
+                    }
+                }
+            }
+            Path nicknames = directory.resolve(NICKNAMES);
+            Path rewritten = directory.resolve(NICKNAMES + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(rewritten)))) {
+                for (Map.Entry<String, Long> entry : seen.entrySet()) {
+                    writeNickname(out, entry.getKey(), entry.getValue());
+                }
+            }
+            Files.move(rewritten, nicknames, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Could not expire offline inboxes: " + e.getMessage());
+        }
+    }
+
+    private int count(String name, Path file) throws IOException {
+        Integer count = counts.get(name);
+        if (count == null) {
+            List<Frame> existing = new ArrayList<>();
+            if (Files.exists(file)) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                    read(in, Long.MIN_VALUE, existing);
+                }
+            }
+            count = existing.size();
+        }
+        return count;
+    }
+
+    /**
+     * Names the inbox file after the nickname's UTF-8 bytes in hex, so any nickname is a safe file name. A
+     * nickname longer than {@value #MAX_HEX_NAME_BYTES} bytes is named after its SHA-256 hash instead, which
+     * cannot be mistaken for a hex name since it carries a prefix.
+     */
+    private Path fileOf(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= MAX_HEX_NAME_BYTES) {
+            return directory.resolve(hex(bytes) + SUFFIX);
+        }
+        try {
+            return directory.resolve("sha256-" + hex(MessageDigest.getInstance("SHA-256").digest(bytes)) + SUFFIX);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e); // Every Java platform has it
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Finishes storing the messages already handed over and stops the inbox thread. Call this once no
+     * client is connected, so deliveries in progress put what is left back into the inbox files.
+     *
+     * @param timeoutMillis How long to wait for the inbox thread.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void close(long timeoutMillis) throws InterruptedException {
+        worker.shutdown();
+        worker.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    long getStoredCount() {
+        return stored.sum();
+    }
+
+    long getDeliveredCount() {
+        return delivered.sum();
+    }
+
+    long getRejectedCount() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * The {@code Opcode} enum lists the message types of the chat protocol. Each type has a text form,
+ * a prefix followed by its fields separated by colons (e.g. {@code PRIVATE:bob:hi}), and a one-byte code
+ * used by the binary frame format negotiated with the {@code binary} capability.
+ */
+enum Opcode {
+    /** A line for display, such as a chat message or a server notice. Its single field is the whole line. */
+    TEXT(0, null, 1),
+    CAPS(1, "CAPS:", 1),
+    NICKNAME(2, "NICKNAME:", 1),
+    MSG(3, "MSG:", 1),
+    PRIVATE(4, "PRIVATE:", 2),
+    JOIN(5, "JOIN:", 1),
+    PART(6, "PART:", 1),
+    DISCONNECT(7, "DISCONNECT", 0),
+    USERSYNC(8, "USERSYNC", 0),
+    USERLIST(9, "USERLIST:", 1),
+    USERSNAPSHOT(10, "USERSNAPSHOT:", 2),
+    USERJOIN(11, "USERJOIN:", 2),
+    USERLEAVE(12, "USERLEAVE:", 2),
+    USERBATCH(13, "USERBATCH:", 3),
+    /** A request for logged messages: {@code HISTORY:last:50} or {@code HISTORY:since:1234}. */
+    HISTORY(14, "HISTORY:", 2),
+    /** A logged message replayed from history: its sequence number and the line as it was delivered. */
+    LOGGED(15, "LOGGED:", 2),
+    /** A search of the logged messages: {@code SEARCH:offset:limit:words to find}. */
+    SEARCH(16, "SEARCH:", 3),
+    /** The header of a page of search results: the total number of matches, the page's offset and its size. */
+    RESULTS(17, "RESULTS:", 3),
+    /** One search result: its sequence number and the line as it was delivered. */
+    RESULT(18, "RESULT:", 2),
+    /** A heartbeat, sent by either side after a spell of silence; its field is echoed in the {@code PONG:}. */
+    PING(19, "PING:", 1),
+    /** The answer to a {@code PING:}, carrying the same field. */
+    PONG(20, "PONG:", 1),
+    /**
+     * Sent by a server about to shut down: reconnect within the given milliseconds, to the given
+     * {@code host:port} or, if it is empty, to the same address: {@code RECONNECT:1000:host:port}.
+     */
+    RECONNECT(21, "RECONNECT:", 2);
+
+    private static final Opcode[] BY_CODE = new Opcode[256];
+
+    static {
+        for (Opcode opcode : values()) {
+            BY_CODE[opcode.code] = opcode;
+        }
+    }
+
+    final byte code; // The opcode byte in binary frames
+    final String prefix; // The text form's prefix, or null for TEXT
+    final int arity; // How many fields the text form is split into
+
+    Opcode(int code, String prefix, int arity) {
+        this.code = (byte) code;
+        this.prefix = prefix;
+        this.arity = arity;
+    }
+
+    /**
+     * Looks up an opcode by its binary code.
+     *
+     * @param code The opcode byte.
+     * @return The opcode, or {@code null} if the code is unknown.
+     */
+    static Opcode fromCode(byte code) {
+        return BY_CODE[code & 0xFF];
+    }
+}
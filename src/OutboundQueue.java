@@ -0,0 +1,182 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The {@code OutboundQueue} class buffers the frames waiting to be written to one client.
+ * Producers never block: when the queue is full the configured {@link Policy} decides whether the
+ * new line replaces an older one or the client is treated as a slow consumer and disconnected.
+ * A single writer drains the queue, either blocking in {@link #take()} or polling from an event loop.
+ */
+class OutboundQueue {
+
+    /**
+     * What to do when a line is offered to a full queue.
+     */
+    public enum Policy {
+        /** Discard the oldest queued line to make room. */
+        DROP_OLDEST,
+        /** Replace a queued line that the new one supersedes (e.g. an older user list); otherwise drop the oldest. */
+        COALESCE,
+        /** Refuse the line and disconnect the client. */
+        DISCONNECT
+    }
+
+    /**
+     * Server-wide counters shared by all queues.
+     */
+    static final class Counters {
+        final LongAdder dropped = new LongAdder(); // Lines discarded to make room
+        final LongAdder coalesced = new LongAdder(); // Lines replaced by a newer line of the same kind
+        final LongAdder disconnected = new LongAdder(); // Clients dropped as slow consumers
+    }
+
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock(); // Not a monitor, so virtual threads can wait here
+    private final Condition notEmpty = lock.newCondition();
+    private final int capacity;
+    private final Policy policy;
+    private final Counters counters;
+    private boolean closed;
+
+    /**
+     * Creates an empty queue.
+     *
+     * @param capacity The maximum number of queued frames.
+     * @param policy   The policy applied when the queue is full.
+     * @param counters The counters to update on drops and disconnects.
+     */
+    OutboundQueue(int capacity, Policy policy, Counters counters) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.counters = counters;
+    }
+
+    /**
+     * Adds a line without blocking.
+     *
+     * @param frame The frame to queue.
+     * @return {@code false} if the client should be disconnected as a slow consumer, {@code true} otherwise.
+     */
+    boolean offer(Frame frame) {
+        lock.lock();
+        try {
+            if (closed) return true;
+            if (frames.size() >= capacity) {
+                switch (policy) {
+                    case DISCONNECT:
+                        counters.disconnected.increment();
+                        return false;
+                    case COALESCE:
+                        if (replaceSuperseded(frame)) {
+                            counters.coalesced.increment();
+                            return true;
+                        }
+                        dropOldest(); // Nothing to coalesce with
+                        break;
+                    default:
+                        dropOldest();
+                }
+            }
+            frames.addLast(frame);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void dropOldest() {
+        frames.pollFirst();
+        counters.dropped.increment();
+    }
+
+    private boolean replaceSuperseded(Frame frame) {
+        String key = frame.coalesceKey();
+        if (key == null) return false;
+        for (Iterator<Frame> it = frames.iterator(); it.hasNext(); ) {
+            if (key.equals(it.next().coalesceKey())) {
+                it.remove();
+                frames.addLast(frame);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes the next frame without blocking.
+     *
+     * @return The next frame, or {@code null} if the queue is empty.
+     */
+    Frame poll() {
+        lock.lock();
+        try {
+            return frames.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the next frame.
+     *
+     * @return The next frame, or {@code null} once the queue has been closed and drained.
+     * @throws InterruptedException if the writer is interrupted while waiting.
+     */
+    Frame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty()) {
+                if (closed) return null;
+                notEmpty.await();
+            }
+            return frames.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of queued frames.
+     *
+     * @return The queue depth.
+     */
+    int size() {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting lines and discards those still queued, for a connection that is going away at once.
+     */
+    void discard() {
+        lock.lock();
+        try {
+            closed = true;
+            frames.clear();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting lines and wakes the writer once the remaining lines are drained.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * The {@code PresenceBatcher} class collects join and leave events and hands them to a flush callback
+ * in batches, at most once per window. The window opens with the first event after a flush, so a quiet
+ * server still announces a single join after one window, while a reconnect storm of hundreds of clients
+ * produces one update per window instead of one per client. A window of 0 flushes every event at once.
+ *
+ * @param <E> The type of event being batched.
+ */
+class PresenceBatcher<E> {
+
+    private final long windowMillis;
+    private final Consumer<List<E>> flush;
+    private final Queue<E> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final ScheduledExecutorService timer;
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder events = new LongAdder();
+
+    /**
+     * Creates a batcher.
+     *
+     * @param windowMillis How long to collect events before flushing them, or 0 to flush immediately.
+     * @param flush        Receives each batch, in event order, on a single thread at a time.
+     */
+    PresenceBatcher(long windowMillis, Consumer<List<E>> flush) {
+        this.windowMillis = windowMillis;
+        this.flush = flush;
+        this.timer = windowMillis > 0 ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "presence-batcher");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    /**
+     * Records an event; it is delivered with the next flush.
+     *
+     * @param event The event.
+     */
+    void add(E event) {
+        if (timer == null) {
+            deliver(List.of(event));
+            return;
+        }
+        pending.add(event);
+        if (scheduled.compareAndSet(false, true)) {
+            timer.schedule(this::flushPending, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushPending() {
+        scheduled.set(false); // Events added from here on open the next window
+        List<E> batch = new ArrayList<>();
+        E event;
+        while ((event = pending.poll()) != null) {
+            batch.add(event);
+        }
+        if (!batch.isEmpty()) {
+            deliver(batch);
+        }
+    }
+
+    private void deliver(List<E> batch) {
+        try {
+            flush.accept(batch);
+        } catch (RuntimeException e) {
+            System.err.println("Error flushing presence updates: " + e.getMessage());
+        } finally {
+            flushes.increment(); // Counted once the batch has been handed out
+            events.add(batch.size());
+        }
+    }
+
+    /**
+     * Stops the timer once the pending events have been flushed. Events added afterwards are lost.
+     *
+     * @param timeoutMillis How long to wait for the last flush.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void close(long timeoutMillis) throws InterruptedException {
+        if (timer != null) {
+            timer.shutdown(); // A flush already scheduled still runs
+            timer.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Returns the number of flushes so far.
+     *
+     * @return The flush count.
+     */
+    long getFlushCount() {
+        return flushes.sum();
+    }
+
+    /**
+     * Returns the number of events delivered so far.
+     *
+     * @return The event count.
+     */
+    long getEventCount() {
+        return events.sum();
+    }
+
+    /**
+     * Returns how many events were coalesced into each flush on average.
+     *
+     * @return Events per flush, or 0 before the first flush.
+     */
+    double getEventsPerFlush() {
+        long count = flushes.sum();
+        return count == 0 ? 0 : (double) events.sum() / count;
+    }
+}
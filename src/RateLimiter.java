@@ -0,0 +1,67 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@code RateLimiter} class is a token bucket that refills at a fixed rate up to a burst capacity.
+ * Rather than a token count it keeps the time at which the bucket will next be full again (the generic
+ * cell rate algorithm), so taking tokens is one clock read and one compare-and-set, with no refill task
+ * and no lock, and one limiter can be shared by all connections.
+ */
+final class RateLimiter {
+
+    private final long nanosPerToken; // How long the bucket takes to regain one token
+    private final long burstNanos; // How far ahead of the clock the full time may run: the capacity, in time
+    private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE); // When the bucket is full again
+
+    /**
+     * Creates a full bucket.
+     *
+     * @param perSecond The tokens regained per second.
+     * @param capacity  The most tokens the bucket holds, so the largest burst allowed after a quiet spell.
+     */
+    RateLimiter(long perSecond, long capacity) {
+        this.nanosPerToken = Math.max(1, 1_000_000_000L / perSecond);
+        this.burstNanos = nanosPerToken * Math.max(1, capacity);
+    }
+
+    /**
+     * Takes tokens if the bucket holds enough of them.
+     *
+     * @param tokens The tokens wanted.
+     * @param now    The current {@code System.nanoTime()}.
+     * @return {@code true} if they were taken, {@code false} if the bucket was left as it was.
+     */
+    boolean tryAcquire(long tokens, long now) {
+        while (true) {
+            long full = fullAt.get();
+            long next = Math.max(full, now) + tokens * nanosPerToken;
+            if (next - now > burstNanos) {
+                return false;
+            }
+            if (fullAt.compareAndSet(full, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns tokens taken by {@link #tryAcquire} for work that was not done after all. The bucket never
+     * holds more than its capacity as a result.
+     *
+     * @param tokens The tokens to give back.
+     */
+    void refund(long tokens) {
+        fullAt.addAndGet(-tokens * nanosPerToken); // A full time in the past reads as a full bucket
+    }
+
+    /**
+     * Takes tokens whether or not the bucket holds enough of them, so they are owed once it runs dry.
+     *
+     * @param tokens The tokens wanted.
+     * @param now    The current {@code System.nanoTime()}.
+     * @return How many nanoseconds to wait before using them, 0 if they are available now.
+     */
+    long reserve(long tokens, long now) {
+        long next = fullAt.accumulateAndGet(tokens * nanosPerToken, (full, cost) -> Math.max(full, now) + cost);
+        return Math.max(0, next - now - burstNanos);
+    }
+}
@@ -0,0 +1,68 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * The {@code Room} class is a named chat channel with its own member set. Messages to a room are
+ * fanned out on the room's shard, a single thread shared with other rooms of the same hash, so
+ * a busy room only competes with the rooms on its own shard and messages within a room stay in order.
+ */
+class Room {
+
+    private final String name;
+    private final Set<ChatServer.ClientHandler> members = ConcurrentHashMap.newKeySet();
+    private final Executor shard;
+    private final ServerMetrics.Timer fanout;
+
+    /**
+     * Creates an empty room.
+     *
+     * @param name  The room name.
+     * @param shard  The single-threaded executor that delivers this room's messages.
+     * @param fanout Records how long each delivery takes.
+     */
+    Room(String name, Executor shard, ServerMetrics.Timer fanout) {
+        this.name = name;
+        this.shard = shard;
+        this.fanout = fanout;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    Set<ChatServer.ClientHandler> getMembers() {
+        return members;
+    }
+
+    /**
+     * Delivers a frame to every member except the sender on the room's shard.
+     *
+     * @param frame  The frame to deliver, shared by all members.
+     * @param sender The member to skip, or {@code null} to include everyone.
+     */
+    void broadcast(Frame frame, ChatServer.ClientHandler sender) {
+        broadcast(frame, null, sender);
+    }
+
+    /**
+     * Delivers a logged message to every member except the sender on the room's shard. Members that
+     * negotiated {@code history} receive it with its sequence number, so they can resume after it if
+     * they lose their connection.
+     *
+     * @param frame     The frame for the other members, shared by all of them.
+     * @param sequenced The same message as a {@code LOGGED:} frame, or {@code null} if it was not logged.
+     * @param sender    The member to skip, or {@code null} to include everyone.
+     */
+    void broadcast(Frame frame, Frame sequenced, ChatServer.ClientHandler sender) {
+        shard.execute(() -> {
+            long started = System.nanoTime();
+            for (ChatServer.ClientHandler member : members) {
+                if (member != sender) {
+                    member.sendFrame(sequenced != null && member.hasCapability("history") ? sequenced : frame);
+                }
+            }
+            fanout.stop(started);
+        });
+    }
+}
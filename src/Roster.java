@@ -0,0 +1,76 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The {@code Roster} class is the versioned list of users known to the server. Every join or leave
+ * bumps the version, which lets clients apply {@code USERJOIN:}/{@code USERLEAVE:} deltas in order and
+ * detect a missed update. The class is not thread-safe; {@code ChatServer} guards it with a lock.
+ */
+class Roster {
+
+    private final Map<String, String> users = new LinkedHashMap<>(); // nickname -> host address
+    private long version;
+    private String snapshot = ""; // Cached "name:ip,name:ip" list for the current version
+
+    /**
+     * Adds a user.
+     *
+     * @param name        The user's nickname.
+     * @param hostAddress The user's IP address.
+     * @return The new roster version.
+     */
+    long add(String name, String hostAddress) {
+        users.put(name, hostAddress);
+        snapshot = null;
+        return ++version;
+    }
+
+    /**
+     * Removes a user.
+     *
+     * @param name The user's nickname.
+     * @return The new roster version.
+     */
+    long remove(String name) {
+        users.remove(name);
+        snapshot = null;
+        return ++version;
+    }
+
+    /**
+     * Returns the IP address recorded for a user.
+     *
+     * @param name The user's nickname.
+     * @return The host address, or {@code null} if the user is not on the roster.
+     */
+    String hostAddressOf(String name) {
+        return users.get(name);
+    }
+
+    /**
+     * Returns the current version. Version 0 is the empty roster before anyone joined.
+     *
+     * @return The roster version.
+     */
+    long version() {
+        return version;
+    }
+
+    /**
+     * Returns every user as {@code name:ip} pairs joined by commas, as sent in {@code USERLIST:}.
+     * The string is built at most once per version.
+     *
+     * @return The full user list.
+     */
+    String snapshot() {
+        if (snapshot == null) {
+            StringBuilder list = new StringBuilder();
+            for (Map.Entry<String, String> user : users.entrySet()) {
+                if (list.length() > 0) list.append(',');
+                list.append(user.getKey()).append(':').append(user.getValue());
+            }
+            snapshot = list.toString();
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,341 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The {@code SearchIndex} class is an in-memory inverted index over the {@link MessageLog}: every term maps
+ * to the ascending sequence numbers of the messages containing it. A posting list is a byte array of
+ * variable-length deltas, about one byte per occurrence, with a skip entry every {@value Postings#SKIP_INTERVAL}
+ * postings so that intersecting a short list with a long one jumps over most of the long one.
+ *
+ * <p>Who may see a message is indexed too, as the term {@code #room} for a public message and
+ * {@code @recipient} for a private one, so a search only returns messages from the rooms the searcher is
+ * in and private messages sent to them. The log feeds the index as it writes, and rebuilds it from disk
+ * when the server starts.
+ */
+final class SearchIndex implements MessageLog.Indexer {
+
+    /**
+     * Terms are cut to this many characters.
+     */
+    static final int MAX_TERM_LENGTH = 32;
+
+    private final Map<String, Postings> terms = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); // Written by the log writer only
+    private long messages;
+
+    /**
+     * One page of search results.
+     */
+    static final class Page {
+        final long total; // Matching messages in all
+        final long[] seqs; // The page's sequence numbers, newest first
+
+        Page(long total, long[] seqs) {
+            this.total = total;
+            this.seqs = seqs;
+        }
+    }
+
+    @Override
+    public void add(MessageLog.Entry entry) {
+        Set<String> found = terms(entry.text);
+        found.add((entry.kind == MessageLog.PUBLIC ? "#" : "@") + entry.target);
+        lock.writeLock().lock();
+        try {
+            for (String term : found) {
+                terms.computeIfAbsent(term, key -> new Postings()).add(entry.seq);
+            }
+            messages++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeBefore(long firstSeq) {
+        lock.writeLock().lock();
+        try {
+            Iterator<Postings> lists = terms.values().iterator();
+            while (lists.hasNext()) {
+                Postings postings = lists.next();
+                if (postings.last < firstSeq) {
+                    lists.remove();
+                } else {
+                    postings.removeBefore(firstSeq);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the messages containing every term of a query that the searcher may see, newest first.
+     *
+     * @param query  The words to look for.
+     * @param rooms  The rooms the searcher is in.
+     * @param self   The searcher's nickname, for private messages.
+     * @param offset How many of the newest matches to skip.
+     * @param limit  The most matches to return.
+     * @return The matches on the requested page and how many there are in all.
+     */
+    Page search(String query, Collection<String> rooms, String self, int offset, int limit) {
+        Set<String> wanted = terms(query);
+        lock.readLock().lock();
+        try {
+            List<Postings.Cursor> required = new ArrayList<>();
+            for (String term : wanted) {
+                Postings postings = terms.get(term);
+                if (postings == null) {
+                    return new Page(0, new long[0]); // A word nobody wrote
+                }
+                required.add(postings.cursor());
+            }
+            if (required.isEmpty()) {
+                return new Page(0, new long[0]);
+            }
+            required.sort((a, b) -> Integer.compare(a.size(), b.size())); // Drive from the rarest term
+            List<Postings.Cursor> visibility = new ArrayList<>();
+            for (String room : rooms) {
+                Postings postings = terms.get("#" + room);
+                if (postings != null) visibility.add(postings.cursor());
+            }
+            Postings own = terms.get("@" + self);
+            if (own != null) visibility.add(own.cursor());
+
+            // The newest offset + limit matches, in a ring
+            long[] newest = new long[offset + limit];
+            long total = 0;
+            Postings.Cursor driver = required.get(0);
+            long candidate = driver.next();
+            matching:
+            while (candidate != Postings.END) {
+                for (int i = 1; i < required.size(); i++) {
+                    long other = required.get(i).advance(candidate);
+                    if (other != candidate) {
+                        candidate = other == Postings.END ? Postings.END : driver.advance(other);
+                        continue matching;
+                    }
+                }
+                boolean visible = false;
+                for (Postings.Cursor cursor : visibility) {
+                    if (cursor.advance(candidate) == candidate) {
+                        visible = true;
+                        break;
+                    }
+                }
+                if (visible && newest.length > 0) {
+                    newest[(int) (total % newest.length)] = candidate;
+                }
+                if (visible) total++;
+                candidate = driver.next();
+            }
+
+            int available = (int) Math.max(0, Math.min(limit, total - offset));
+            long[] page = new long[available];
+            for (int i = 0; i < available; i++) {
+                page[i] = newest[(int) ((total - 1 - offset - i) % newest.length)];
+            }
+            return new Page(total, page);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Splits text into lower-case terms: runs of letters and digits, cut to {@link #MAX_TERM_LENGTH}.
+     *
+     * @param text The text.
+     * @return The distinct terms, in order of first appearance.
+     */
+    static Set<String> terms(String text) {
+        Set<String> found = new LinkedHashSet<>();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= text.length(); ) {
+            int codePoint = i < text.length() ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(codePoint)) {
+                if (term.length() < MAX_TERM_LENGTH) term.appendCodePoint(codePoint);
+            } else if (term.length() > 0) {
+                found.add(term.toString().toLowerCase(Locale.ROOT));
+                term.setLength(0);
+            }
+            i += Character.charCount(codePoint);
+        }
+        return found;
+    }
+
+    /**
+     * Returns the number of distinct terms, including the room and recipient terms.
+     *
+     * @return The term count.
+     */
+    int getTermCount() {
+        lock.readLock().lock();
+        try {
+            return terms.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of messages indexed since the server started, including those read from disk.
+     *
+     * @return The message count.
+     */
+    long getIndexedCount() {
+        lock.readLock().lock();
+        try {
+            return messages;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the bytes taken by all posting lists, without the term strings and map entries.
+     *
+     * @return The posting bytes.
+     */
+    long getPostingBytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = 0;
+            for (Postings postings : terms.values()) {
+                bytes += postings.bytes.length + postings.skipSeqs.length * 12L;
+            }
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The ascending sequence numbers of the messages containing one term, stored as variable-length deltas.
+     */
+    static final class Postings {
+        static final int SKIP_INTERVAL = 128;
+        static final long END = Long.MAX_VALUE; // What a cursor returns past the last posting
+
+        private byte[] bytes = new byte[4];
+        private int length;
+        private int count;
+        private long last;
+        // The value of every SKIP_INTERVAL-th posting and where the posting after it starts
+        private long[] skipSeqs = new long[1];
+        private int[] skipOffsets = new int[1];
+        private int skips;
+
+        void add(long seq) {
+            if (count > 0 && seq <= last) return; // Already there
+            long delta = seq - last;
+            if (length + 10 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + 10));
+            }
+            while (delta >= 0x80) {
+                bytes[length++] = (byte) (delta | 0x80);
+                delta >>>= 7;
+            }
+            bytes[length++] = (byte) delta;
+            last = seq;
+            if (count++ % SKIP_INTERVAL == 0) {
+                if (skips == skipSeqs.length) {
+                    skipSeqs = Arrays.copyOf(skipSeqs, skips * 2);
+                    skipOffsets = Arrays.copyOf(skipOffsets, skips * 2);
+                }
+                skipSeqs[skips] = seq;
+                skipOffsets[skips] = length;
+                skips++;
+            }
+        }
+
+        /**
+         * Drops the postings before a sequence number by re-encoding the rest.
+         */
+        void removeBefore(long firstSeq) {
+            Cursor cursor = cursor();
+            long seq = cursor.advance(firstSeq);
+            if (cursor.index == 1) return; // Nothing before it
+            Postings kept = new Postings();
+            for (; seq != END; seq = cursor.next()) {
+                kept.add(seq);
+            }
+            bytes = kept.bytes;
+            length = kept.length;
+            count = kept.count;
+            last = kept.last;
+            skipSeqs = kept.skipSeqs;
+            skipOffsets = kept.skipOffsets;
+            skips = kept.skips;
+        }
+
+        Cursor cursor() {
+            return new Cursor();
+        }
+
+        /**
+         * Reads a posting list forwards. Only valid while the index's read lock is held.
+         */
+        final class Cursor {
+            private int offset;
+            private int index; // Postings read so far
+            private long current;
+
+            int size() {
+                return count;
+            }
+
+            /**
+             * Moves to the next posting.
+             *
+             * @return Its sequence number, or {@link #END}.
+             */
+            long next() {
+                if (index >= count) return current = END;
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = bytes[offset++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                index++;
+                return current += delta;
+            }
+
+            /**
+             * Moves to the first posting at or after a sequence number, using the skip entries to pass
+             * over whole blocks.
+             *
+             * @param target The sequence number.
+             * @return The posting found, or {@link #END}.
+             */
+            long advance(long target) {
+                if (index > 0 && current >= target) return current;
+                int found = Arrays.binarySearch(skipSeqs, 0, skips, target);
+                int slot = found >= 0 ? found : -found - 2;
+                if (slot >= 0 && (long) slot * SKIP_INTERVAL + 1 > index) {
+                    current = skipSeqs[slot];
+                    offset = skipOffsets[slot];
+                    index = slot * SKIP_INTERVAL + 1;
+                    if (current >= target) return current;
+                }
+                long seq;
+                do {
+                    seq = next();
+                } while (seq < target);
+                return seq;
+            }
+        }
+    }
+}
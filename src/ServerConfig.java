@@ -0,0 +1,263 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * The {@code ServerConfig} class holds the start-up options of the {@code ChatServer}.
+ * Options can be read from command-line arguments of the form {@code --name=value}
+ * or set directly before the server is started.
+ */
+public class ServerConfig {
+
+    /**
+     * The I/O model used by the server to serve its clients.
+     */
+    public enum Mode {
+        /** One blocking reader thread per connected client. */
+        BLOCKING,
+        /** A small number of selector-based event loops shared by all clients. */
+        NIO
+    }
+
+    /**
+     * What happens to a client that sends faster than its rate limits allow.
+     */
+    public enum FloodAction {
+        /** Stop reading from the client until it is back within its limits; TCP slows the sender down. */
+        DELAY,
+        /** Discard the frames over the limit. */
+        DROP,
+        /** Close the connection. */
+        DISCONNECT
+    }
+
+    /**
+     * The kind of threads that run blocking-mode client handlers.
+     */
+    public enum Executor {
+        /** A new platform thread per client, as in the original server. */
+        THREAD,
+        /** A virtual thread per client, falling back to {@link #THREAD} on JVMs without them. */
+        VIRTUAL,
+        /** A pool of at most {@code maxThreads} platform threads; clients beyond that are turned away. */
+        PLATFORM
+    }
+
+    int port = 10100; // The port the server listens on
+    Mode mode = Mode.BLOCKING; // The I/O model used for client connections
+    int eventLoops = Runtime.getRuntime().availableProcessors(); // Event-loop threads in NIO mode
+    Executor executor = Executor.VIRTUAL; // Threads running blocking-mode handlers
+    int maxThreads = 2048; // Size of the platform-thread pool (each client uses a reader and a writer)
+    int outboundCapacity = 1024; // Lines queued per client before the slow-consumer policy applies
+    OutboundQueue.Policy slowConsumerPolicy = OutboundQueue.Policy.DROP_OLDEST; // What a full queue does
+    long presenceWindowMillis = 100; // Joins and leaves within this window share one update; 0 sends each at once
+    int roomShards = Runtime.getRuntime().availableProcessors(); // Threads that deliver room messages
+    int metricsPort; // Local HTTP port serving /metrics; 0 disables the endpoint
+    String logDir = "chat-log"; // Directory of the persistent message log; empty disables the log
+    boolean logPrivate; // Whether private messages are logged as well, for their recipients' history
+    long logSegmentBytes = 64L << 20; // A new segment file is started once the current one reaches this size
+    long logRetentionBytes = 1L << 30; // Oldest segments are deleted while the log is larger than this
+    long logRetentionHours = 168; // Segments older than this are deleted
+    boolean logFsync = true; // Whether every batch of logged messages is synced to disk before it is replayed
+    boolean searchIndex = true; // Whether logged messages are indexed for SEARCH: requests
+    String inboxDir = "chat-inbox"; // Directory keeping private messages for offline nicknames; empty disables it
+    int inboxLimit = 1000; // Private messages kept per offline nickname
+    long inboxMaxBytes = 256L << 20; // Total size of all offline inboxes; messages beyond it are refused
+    long inboxRetentionHours = 720; // Kept messages, and the nicknames that may be sent them, are forgotten after this
+    int maxLineBytes = 16384; // Longest line or binary frame a client may send; a longer one closes the connection
+    int rateMessages = 20; // Frames per second each client may send on average; 0 disables the limit
+    int rateBurst = 40; // Frames a client may send at once after a quiet spell
+    int rateBytes = 65536; // Bytes per second each client may send on average; 0 disables the limit
+    int globalRateMessages; // Frames per second from all clients together; 0 disables the limit
+    FloodAction floodAction = FloodAction.DELAY; // What happens to frames over a client's limits
+    int heartbeatSeconds = 30; // Silence after which a heartbeat client is pinged; 0 disables heartbeats and the idle reaper
+    int idleTimeoutSeconds = 90; // Silence after which a heartbeat client, or one that never registered, is disconnected
+    int drainSeconds = 10; // How long a shutdown may take to move clients off and flush what is queued
+    String redirect = ""; // host:port clients are told to reconnect to on shutdown; empty means this address again
+    int clusterPort; // Port other nodes of the cluster connect to; 0 runs a single server
+    String clusterBind = "127.0.0.1"; // Address the cluster port listens on; nodes on other hosts need one they can reach
+    String clusterSecret = ""; // Shared by every node; a node that cannot prove it knows it is refused
+    String peers = ""; // The other nodes' cluster addresses, as host:port,host:port
+    String nodeId = ""; // This node's name in the cluster; empty uses host:port
+
+    /**
+     * Builds a configuration from command-line arguments. Unknown arguments are reported and ignored.
+     *
+     * @param args Arguments such as {@code --port=10100} or {@code --mode=nio}.
+     * @return The resulting configuration.
+     * @throws IllegalArgumentException if an option has a value it cannot take; the message names the option.
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                System.err.println("Ignoring argument: " + arg);
+                continue;
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            try {
+                config.set(name, value);
+            } catch (IllegalArgumentException e) { // Including NumberFormatException
+                throw new IllegalArgumentException("Invalid value for --" + name + ": " + value, e);
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Sets a single option by name.
+     *
+     * @param name  The option name, without the leading dashes.
+     * @param value The option value.
+     * @throws IllegalArgumentException if the value is not one the option can take.
+     */
+    void set(String name, String value) {
+        switch (name) {
+            case "port":
+                port = Integer.parseInt(value);
+                break;
+            case "mode":
+                mode = Mode.valueOf(value.toUpperCase());
+                break;
+            case "event-loops":
+                eventLoops = Math.max(1, Integer.parseInt(value));
+                break;
+            case "executor":
+                executor = Executor.valueOf(value.toUpperCase());
+                break;
+            case "max-threads":
+                maxThreads = Math.max(1, Integer.parseInt(value));
+                break;
+            case "outbound-capacity":
+                outboundCapacity = Math.max(1, Integer.parseInt(value));
+                break;
+            case "slow-consumer":
+                slowConsumerPolicy = OutboundQueue.Policy.valueOf(value.toUpperCase().replace('-', '_'));
+                break;
+            case "presence-window-ms":
+                presenceWindowMillis = Math.max(0, Long.parseLong(value));
+                break;
+            case "room-shards":
+                roomShards = Math.max(1, Integer.parseInt(value));
+                break;
+            case "metrics-port":
+                metricsPort = Integer.parseInt(value);
+                break;
+            case "log-dir":
+                logDir = value;
+                break;
+            case "log-private":
+                logPrivate = Boolean.parseBoolean(value);
+                break;
+            case "log-segment-mb":
+                logSegmentBytes = Math.min(1024, Math.max(1, Long.parseLong(value))) << 20; // Segments are mapped whole
+                break;
+            case "log-retention-mb":
+                logRetentionBytes = Math.max(1, Long.parseLong(value)) << 20;
+                break;
+            case "log-retention-hours":
+                logRetentionHours = Math.max(1, Long.parseLong(value));
+                break;
+            case "log-fsync":
+                logFsync = Boolean.parseBoolean(value);
+                break;
+            case "search":
+                searchIndex = Boolean.parseBoolean(value);
+                break;
+            case "inbox-dir":
+                inboxDir = value;
+                break;
+            case "inbox-limit":
+                inboxLimit = Math.max(1, Integer.parseInt(value));
+                break;
+            case "inbox-max-mb":
+                inboxMaxBytes = Math.max(1, Long.parseLong(value)) << 20;
+                break;
+            case "inbox-retention-hours":
+                inboxRetentionHours = Math.max(1, Long.parseLong(value));
+                break;
+            case "max-line-bytes":
+                maxLineBytes = Math.min(Frame.MAX_FRAME_LENGTH, Math.max(256, Integer.parseInt(value)));
+                break;
+            case "rate-messages":
+                rateMessages = Math.max(0, Integer.parseInt(value));
+                break;
+            case "rate-burst":
+                rateBurst = Math.max(1, Integer.parseInt(value));
+                break;
+            case "rate-bytes":
+                rateBytes = Math.max(0, Integer.parseInt(value));
+                break;
+            case "global-rate-messages":
+                globalRateMessages = Math.max(0, Integer.parseInt(value));
+                break;
+            case "cluster-port":
+                clusterPort = Integer.parseInt(value);
+                break;
+            case "cluster-bind":
+                clusterBind = value;
+                break;
+            case "cluster-secret-file":
+                try {
+                    clusterSecret = new String(Files.readAllBytes(Paths.get(value)), StandardCharsets.UTF_8).trim();
+                } catch (IOException e) {
+                    throw new IllegalArgumentException("Cannot read the cluster secret: " + e.getMessage(), e);
+                }
+                if (clusterSecret.isEmpty()) {
+                    throw new IllegalArgumentException("The cluster secret file is empty");
+                }
+                break;
+            case "peers":
+                if (!value.isEmpty()) {
+                    for (String peer : value.split(",", -1)) {
+                        parseAddress(peer); // Checked now rather than in the link thread, where a typo would go unnoticed
+                    }
+                }
+                peers = value;
+                break;
+            case "node-id":
+                nodeId = value;
+                break;
+            case "flood-action":
+                floodAction = FloodAction.valueOf(value.toUpperCase());
+                break;
+            case "heartbeat-seconds":
+                heartbeatSeconds = Math.max(0, Integer.parseInt(value));
+                break;
+            case "idle-timeout-seconds":
+                idleTimeoutSeconds = Math.max(1, Integer.parseInt(value));
+                break;
+            case "drain-seconds":
+                drainSeconds = Math.max(0, Integer.parseInt(value));
+                break;
+            case "redirect":
+                if (!value.isEmpty()) parseAddress(value);
+                redirect = value;
+                break;
+            default:
+                System.err.println("Unknown option: " + name);
+        }
+    }
+
+    /**
+     * Splits a {@code host:port} address, without looking the host up.
+     *
+     * @param address The address.
+     * @return The unresolved address.
+     * @throws IllegalArgumentException if the address has no host or no valid port.
+     */
+    static InetSocketAddress parseAddress(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Not a host:port address: " + address);
+        }
+        int port = Integer.parseInt(address.substring(colon + 1));
+        if (port < 1 || port > 65535) {
+            throw new IllegalArgumentException("Port out of range: " + address);
+        }
+        return InetSocketAddress.createUnresolved(address.substring(0, colon), port);
+    }
+}
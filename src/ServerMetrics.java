@@ -0,0 +1,603 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The {@code ServerMetrics} class collects the counters, gauges and timers of one {@code ChatServer}.
+ * Everything recorded on a hot path is a {@code LongAdder}, whose updates are striped across cells, so
+ * event loops and handler threads counting at once do not contend on a shared field. Gauges such as queue
+ * depths are computed only when read. The metrics are published through JMX and, if a metrics port is
+ * configured, as plain text in the Prometheus format at {@code http://127.0.0.1:<port>/metrics}.
+ */
+class ServerMetrics implements ServerMetricsMXBean {
+
+    private static final Opcode[] OPCODES = Opcode.values();
+
+    private final ChatServer server;
+    private HttpServer http; // Serves /metrics, or null if no metrics port is configured
+    private ObjectName objectName; // Where the metrics are registered with JMX, or null
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+    private final LongAdder[] framesIn = newAdders(OPCODES.length);
+    private final LongAdder[] framesOut = newAdders(OPCODES.length);
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder socketWrites = new LongAdder();
+    private final Timer broadcasts = new Timer();
+    private final Timer compressions = new Timer();
+    private final LongConsumer compressionTiming = compressions::stop; // One instance, not one per write
+    private final LongAdder bytesSaved = new LongAdder();
+    private final LongAdder privateMisses = new LongAdder();
+    private final LongAdder ioErrors = new LongAdder();
+    private final LongAdder protocolErrors = new LongAdder();
+    private final LongAdder framesDelayed = new LongAdder();
+    private final LongAdder framesRejected = new LongAdder();
+    private final LongAdder floodDisconnects = new LongAdder();
+    private final LongAdder pingsSent = new LongAdder();
+    private final LongAdder connectionsReaped = new LongAdder();
+
+    // Accept rate over the interval between two reads of at least a second
+    private long rateSampledAt = System.nanoTime();
+    private long rateSampledCount;
+    private double acceptsPerSecond;
+
+    /**
+     * A timer that records how many times something took place, for how long in total and at most.
+     */
+    static final class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        /**
+         * Records one occurrence that started at the given time and ends now.
+         *
+         * @param startedNanos The {@code System.nanoTime()} at the start.
+         */
+        void stop(long startedNanos) {
+            long elapsed = System.nanoTime() - startedNanos;
+            count.increment();
+            totalNanos.add(elapsed);
+            maxNanos.accumulate(elapsed);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        double meanNanos() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) totalNanos.sum() / n;
+        }
+
+        long totalNanos() {
+            return totalNanos.sum();
+        }
+
+        long maxNanos() {
+            return maxNanos.get();
+        }
+    }
+
+    /**
+     * Creates the metrics of a server.
+     *
+     * @param server The server whose state the gauges read.
+     */
+    ServerMetrics(ChatServer server) {
+        this.server = server;
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    void connectionAccepted() {
+        accepted.increment();
+    }
+
+    void connectionClosed() {
+        closed.increment();
+    }
+
+    void frameReceived(Frame frame) {
+        framesIn[frame.opcode().ordinal()].increment();
+    }
+
+    /**
+     * Counts a frame handed to a client's socket, and its bytes.
+     *
+     * @param frame The frame, already in the client's wire format.
+     */
+    void frameSent(Frame frame) {
+        framesOut[frame.opcode().ordinal()].increment();
+        int length = frame.length();
+        bytesOut.add(length);
+        int plain = frame.uncompressedLength();
+        if (plain != length) bytesSaved.add(plain - length);
+    }
+
+    /**
+     * Counts one write system call to a client socket, however many frames it carried.
+     */
+    void socketWrite() {
+        socketWrites.increment();
+    }
+
+    void bytesReceived(int count) {
+        bytesIn.add(count);
+    }
+
+    /**
+     * Returns the timer of broadcast fan-out, from the first to the last recipient's queue.
+     *
+     * @return The broadcast timer.
+     */
+    Timer broadcasts() {
+        return broadcasts;
+    }
+
+    /**
+     * Returns the callback that times frame compression, for {@link Frame#compressed}.
+     *
+     * @return A consumer of the time at which compression started.
+     */
+    LongConsumer compressionTiming() {
+        return compressionTiming;
+    }
+
+    void privateMessageMissed() {
+        privateMisses.increment();
+    }
+
+    void ioError() {
+        ioErrors.increment();
+    }
+
+    void protocolError() {
+        protocolErrors.increment();
+    }
+
+    void frameDelayed() {
+        framesDelayed.increment();
+    }
+
+    void frameRejected() {
+        framesRejected.increment();
+    }
+
+    void floodDisconnect() {
+        floodDisconnects.increment();
+    }
+
+    void pingSent() {
+        pingsSent.increment();
+    }
+
+    void connectionReaped() {
+        connectionsReaped.increment();
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server.
+     *
+     * @param port The chat port, which tells servers in the same JVM apart.
+     */
+    void registerMBean(int port) {
+        try {
+            ObjectName name = new ObjectName("ChatServer:type=Metrics,port=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            System.err.println("Could not register metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Serves {@link #scrape()} at {@code /metrics} on the loopback interface.
+     *
+     * @param port The HTTP port.
+     * @throws IOException if the port cannot be bound.
+     */
+    void startHttp(int port) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.start(); // Requests are answered on the HTTP server's own dispatcher thread
+        System.out.println("Metrics available at http://127.0.0.1:" + port + "/metrics");
+    }
+
+    /**
+     * Stops serving {@code /metrics} and removes the metrics from JMX, so a server started again in the
+     * same process can publish its own.
+     */
+    void close() {
+        if (http != null) {
+            http.stop(0);
+            http = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                System.err.println("Could not unregister metrics from JMX: " + e.getMessage());
+            }
+            objectName = null;
+        }
+    }
+
+    /**
+     * Renders every metric in the Prometheus text exposition format.
+     *
+     * @return The metrics as text.
+     */
+    String scrape() {
+        StringBuilder text = new StringBuilder(4096);
+        gauge(text, "chat_connections_active", "Connections currently open", getActiveConnections());
+        gauge(text, "chat_users_registered", "Clients that have claimed a nickname", getRegisteredUsers());
+        gauge(text, "chat_rooms", "Rooms with at least one member", getRooms());
+        counter(text, "chat_connections_accepted_total", "Connections accepted", getConnectionsAccepted());
+        counter(text, "chat_connections_closed_total", "Connections closed", getConnectionsClosed());
+        perOpcode(text, "chat_frames_received_total", "Frames received from clients by type", framesIn);
+        perOpcode(text, "chat_frames_sent_total", "Frames written to clients by type", framesOut);
+        counter(text, "chat_bytes_received_total", "Bytes received from clients", getBytesReceived());
+        counter(text, "chat_bytes_sent_total", "Bytes written to clients", getBytesSent());
+        counter(text, "chat_socket_writes_total", "Write system calls to client sockets", getSocketWrites());
+        text.append("# HELP chat_broadcast_seconds Time to queue one broadcast for every recipient\n")
+                .append("# TYPE chat_broadcast_seconds summary\n");
+        sample(text, "chat_broadcast_seconds_count", broadcasts.count());
+        sample(text, "chat_broadcast_seconds_sum", broadcasts.totalNanos() / 1e9);
+        gauge(text, "chat_broadcast_seconds_max", "Longest broadcast so far", broadcasts.maxNanos() / 1e9);
+        text.append("# HELP chat_compression_seconds Time to compress one large frame, once for all its recipients\n")
+                .append("# TYPE chat_compression_seconds summary\n");
+        sample(text, "chat_compression_seconds_count", compressions.count());
+        sample(text, "chat_compression_seconds_sum", compressions.totalNanos() / 1e9);
+        counter(text, "chat_compression_bytes_saved_total", "Bytes not written thanks to compressed frames", getBytesSavedByCompression());
+        gauge(text, "chat_outbound_queued_frames", "Frames waiting in all outbound queues", getOutboundQueuedFrames());
+        gauge(text, "chat_outbound_max_queue_depth", "Deepest single outbound queue", getOutboundMaxQueueDepth());
+        counter(text, "chat_frames_dropped_total", "Frames dropped for slow consumers", getFramesDropped());
+        counter(text, "chat_frames_coalesced_total", "Frames replaced by newer ones for slow consumers", getFramesCoalesced());
+        counter(text, "chat_slow_consumers_disconnected_total", "Clients disconnected for not reading", getSlowConsumersDisconnected());
+        counter(text, "chat_private_message_misses_total", "Private messages to unknown nicknames", getPrivateMessageMisses());
+        counter(text, "chat_io_errors_total", "Client connections that failed with an I/O error", getIoErrors());
+        counter(text, "chat_protocol_errors_total", "Client connections closed for an oversized or malformed frame", getProtocolErrors());
+        counter(text, "chat_frames_delayed_total", "Frames held back until their sender was within its rate limits", getFramesDelayed());
+        counter(text, "chat_frames_rejected_total", "Frames discarded for exceeding a rate limit", getFramesRejected());
+        counter(text, "chat_flood_disconnects_total", "Clients disconnected for exceeding their rate limits", getFloodDisconnects());
+        counter(text, "chat_pings_sent_total", "Heartbeats sent to silent clients", getPingsSent());
+        counter(text, "chat_connections_reaped_total", "Connections closed for staying silent past the idle timeout", getConnectionsReaped());
+        counter(text, "chat_presence_flushes_total", "Presence updates sent", getPresenceFlushes());
+        counter(text, "chat_messages_logged_total", "Messages written to the message log", getMessagesLogged());
+        counter(text, "chat_messages_not_logged_total", "Messages the message log fell too far behind to keep", getMessagesNotLogged());
+        counter(text, "chat_offline_messages_stored_total", "Private messages kept for offline nicknames", getOfflineMessagesStored());
+        counter(text, "chat_offline_messages_delivered_total", "Kept private messages handed over on login", getOfflineMessagesDelivered());
+        counter(text, "chat_offline_messages_rejected_total", "Private messages refused because an inbox was full", getOfflineMessagesRejected());
+        gauge(text, "chat_search_terms", "Distinct terms in the search index", getSearchTerms());
+        gauge(text, "chat_search_posting_bytes", "Memory taken by the search index's posting lists", getSearchPostingBytes());
+        gauge(text, "chat_cluster_nodes_connected", "Other cluster nodes this node has an open link to", getClusterNodesConnected());
+        gauge(text, "chat_cluster_remote_users", "Users connected to other cluster nodes", getClusterRemoteUsers());
+        counter(text, "chat_cluster_records_forwarded_total", "Records written to other cluster nodes", getClusterRecordsForwarded());
+        counter(text, "chat_cluster_batches_total", "Flushes of batched records to other cluster nodes", getClusterBatches());
+        counter(text, "chat_cluster_records_dropped_total", "Records not forwarded because a cluster link was full or broke", getClusterRecordsDropped());
+        return text.toString();
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "counter");
+        sample(text, name, value);
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, double value) {
+        header(text, name, help, "gauge");
+        sample(text, name, value);
+    }
+
+    private static void perOpcode(StringBuilder text, String name, String help, LongAdder[] adders) {
+        header(text, name, help, "counter");
+        for (Opcode opcode : OPCODES) {
+            sample(text, name + "{type=\"" + opcode.name() + "\"}", adders[opcode.ordinal()].sum());
+        }
+    }
+
+    private static void header(StringBuilder text, String name, String help, String type) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder text, String name, double value) {
+        text.append(name).append(' ');
+        if (value == Math.rint(value)) {
+            text.append((long) value);
+        } else {
+            text.append(String.format(Locale.ROOT, "%.9f", value));
+        }
+        text.append('\n');
+    }
+
+    private static Map<String, Long> byOpcode(LongAdder[] adders) {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Opcode opcode : OPCODES) {
+            counts.put(opcode.name(), adders[opcode.ordinal()].sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return server.getClientHandlers().size();
+    }
+
+    @Override
+    public int getRegisteredUsers() {
+        return server.getRegisteredClientCount();
+    }
+
+    @Override
+    public int getRooms() {
+        return server.getRoomCount();
+    }
+
+    @Override
+    public long getConnectionsAccepted() {
+        return accepted.sum();
+    }
+
+    @Override
+    public long getConnectionsClosed() {
+        return closed.sum();
+    }
+
+    @Override
+    public synchronized double getAcceptsPerSecond() {
+        long now = System.nanoTime();
+        if (now - rateSampledAt >= 1_000_000_000L) {
+            long count = accepted.sum();
+            acceptsPerSecond = (count - rateSampledCount) * 1e9 / (now - rateSampledAt);
+            rateSampledAt = now;
+            rateSampledCount = count;
+        }
+        return acceptsPerSecond;
+    }
+
+    @Override
+    public Map<String, Long> getFramesReceived() {
+        return byOpcode(framesIn);
+    }
+
+    @Override
+    public Map<String, Long> getFramesSent() {
+        return byOpcode(framesOut);
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getSocketWrites() {
+        return socketWrites.sum();
+    }
+
+    @Override
+    public double getFramesPerSocketWrite() {
+        long writes = socketWrites.sum();
+        long frames = 0;
+        for (LongAdder adder : framesOut) {
+            frames += adder.sum();
+        }
+        return writes == 0 ? 0 : (double) frames / writes;
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return broadcasts.count();
+    }
+
+    @Override
+    public double getBroadcastMeanMicros() {
+        return broadcasts.meanNanos() / 1e3;
+    }
+
+    @Override
+    public double getBroadcastMaxMicros() {
+        return broadcasts.maxNanos() / 1e3;
+    }
+
+    @Override
+    public long getCompressions() {
+        return compressions.count();
+    }
+
+    @Override
+    public double getCompressionMeanMicros() {
+        return compressions.meanNanos() / 1e3;
+    }
+
+    @Override
+    public long getBytesSavedByCompression() {
+        return bytesSaved.sum();
+    }
+
+    @Override
+    public long getOutboundQueuedFrames() {
+        long total = 0;
+        for (ChatServer.ClientHandler handler : server.getClientHandlers()) {
+            total += handler.queuedFrames();
+        }
+        return total;
+    }
+
+    @Override
+    public int getOutboundMaxQueueDepth() {
+        int max = 0;
+        for (ChatServer.ClientHandler handler : server.getClientHandlers()) {
+            max = Math.max(max, handler.queuedFrames());
+        }
+        return max;
+    }
+
+    @Override
+    public long getFramesDropped() {
+        return server.getOutboundCounters().dropped.sum();
+    }
+
+    @Override
+    public long getFramesCoalesced() {
+        return server.getOutboundCounters().coalesced.sum();
+    }
+
+    @Override
+    public long getSlowConsumersDisconnected() {
+        return server.getOutboundCounters().disconnected.sum();
+    }
+
+    @Override
+    public long getPrivateMessageMisses() {
+        return privateMisses.sum();
+    }
+
+    @Override
+    public long getIoErrors() {
+        return ioErrors.sum();
+    }
+
+    @Override
+    public long getProtocolErrors() {
+        return protocolErrors.sum();
+    }
+
+    @Override
+    public long getFramesDelayed() {
+        return framesDelayed.sum();
+    }
+
+    @Override
+    public long getFramesRejected() {
+        return framesRejected.sum();
+    }
+
+    @Override
+    public long getFloodDisconnects() {
+        return floodDisconnects.sum();
+    }
+
+    @Override
+    public long getPingsSent() {
+        return pingsSent.sum();
+    }
+
+    @Override
+    public long getConnectionsReaped() {
+        return connectionsReaped.sum();
+    }
+
+    @Override
+    public long getPresenceFlushes() {
+        return server.getPresenceBatcher().getFlushCount();
+    }
+
+    @Override
+    public double getPresenceEventsPerFlush() {
+        return server.getPresenceBatcher().getEventsPerFlush();
+    }
+
+    @Override
+    public long getMessagesLogged() {
+        MessageLog log = server.getMessageLog();
+        return log == null ? 0 : log.getAppendedCount();
+    }
+
+    @Override
+    public long getMessagesNotLogged() {
+        MessageLog log = server.getMessageLog();
+        return log == null ? 0 : log.getDroppedCount();
+    }
+
+    @Override
+    public long getOfflineMessagesStored() {
+        OfflineInbox inbox = server.getOfflineInbox();
+        return inbox == null ? 0 : inbox.getStoredCount();
+    }
+
+    @Override
+    public long getOfflineMessagesDelivered() {
+        OfflineInbox inbox = server.getOfflineInbox();
+        return inbox == null ? 0 : inbox.getDeliveredCount();
+    }
+
+    @Override
+    public long getOfflineMessagesRejected() {
+        OfflineInbox inbox = server.getOfflineInbox();
+        return inbox == null ? 0 : inbox.getRejectedCount();
+    }
+
+    @Override
+    public int getSearchTerms() {
+        SearchIndex index = server.getSearchIndex();
+        return index == null ? 0 : index.getTermCount();
+    }
+
+    @Override
+    public long getSearchPostingBytes() {
+        SearchIndex index = server.getSearchIndex();
+        return index == null ? 0 : index.getPostingBytes();
+    }
+
+    @Override
+    public int getClusterNodesConnected() {
+        Cluster cluster = server.getCluster();
+        return cluster == null ? 0 : cluster.getConnectedNodeCount();
+    }
+
+    @Override
+    public int getClusterRemoteUsers() {
+        Cluster cluster = server.getCluster();
+        return cluster == null ? 0 : cluster.getRemoteUserCount();
+    }
+
+    @Override
+    public long getClusterRecordsForwarded() {
+        Cluster cluster = server.getCluster();
+        return cluster == null ? 0 : cluster.getForwardedCount();
+    }
+
+    @Override
+    public long getClusterBatches() {
+        Cluster cluster = server.getCluster();
+        return cluster == null ? 0 : cluster.getBatchCount();
+    }
+
+    @Override
+    public long getClusterRecordsDropped() {
+        Cluster cluster = server.getCluster();
+        return cluster == null ? 0 : cluster.getDroppedCount();
+    }
+}
@@ -0,0 +1,98 @@
+import java.util.Map;
+
+/**
+ * The {@code ServerMetricsMXBean} interface is the JMX view of {@link ServerMetrics}, registered as
+ * {@code ChatServer:type=Metrics,port=<port>}. Counters are totals since the server started.
+ */
+public interface ServerMetricsMXBean {
+
+    int getActiveConnections();
+
+    int getRegisteredUsers();
+
+    int getRooms();
+
+    long getConnectionsAccepted();
+
+    long getConnectionsClosed();
+
+    double getAcceptsPerSecond();
+
+    Map<String, Long> getFramesReceived();
+
+    Map<String, Long> getFramesSent();
+
+    long getBytesReceived();
+
+    long getBytesSent();
+
+    long getSocketWrites();
+
+    double getFramesPerSocketWrite();
+
+    long getBroadcasts();
+
+    double getBroadcastMeanMicros();
+
+    double getBroadcastMaxMicros();
+
+    long getCompressions();
+
+    double getCompressionMeanMicros();
+
+    long getBytesSavedByCompression();
+
+    long getOutboundQueuedFrames();
+
+    int getOutboundMaxQueueDepth();
+
+    long getFramesDropped();
+
+    long getFramesCoalesced();
+
+    long getSlowConsumersDisconnected();
+
+    long getPrivateMessageMisses();
+
+    long getIoErrors();
+
+    long getProtocolErrors();
+
+    long getFramesDelayed();
+
+    long getFramesRejected();
+
+    long getFloodDisconnects();
+
+    long getPingsSent();
+
+    long getConnectionsReaped();
+
+    long getPresenceFlushes();
+
+    double getPresenceEventsPerFlush();
+
+    long getMessagesLogged();
+
+    long getMessagesNotLogged();
+
+    long getOfflineMessagesStored();
+
+    long getOfflineMessagesDelivered();
+
+    long getOfflineMessagesRejected();
+
+    int getSearchTerms();
+
+    long getSearchPostingBytes();
+
+    int getClusterNodesConnected();
+
+    int getClusterRemoteUsers();
+
+    long getClusterRecordsForwarded();
+
+    long getClusterBatches();
+
+    long getClusterRecordsDropped();
+}
@@ -0,0 +1,98 @@
+/**
+ * The {@code ShiftCipher} class is the Caesar shift used by {@link EncryptionUtil}: letters of the
+ * English alphabet move a fixed number of positions and everything else is left alone. Lookup tables
+ * built once replace the per-character range checks and modulo, and the text is translated in place
+ * in a reusable per-thread buffer, so a message costs one array copy and the resulting string.
+ */
+final class ShiftCipher implements MessageCipher {
+
+    private static final int TABLE_SIZE = 128; // Only ASCII characters are ever shifted
+    private static final int MAX_RETAINED_BUFFER = 1 << 16; // Larger scratch buffers are not kept per thread
+
+    private static final ThreadLocal<char[]> SCRATCH = ThreadLocal.withInitial(() -> new char[256]);
+
+    private final char[] encryptTable = new char[TABLE_SIZE];
+    private final char[] decryptTable = new char[TABLE_SIZE];
+
+    /**
+     * Creates a shift cipher.
+     *
+     * @param shift The number of positions letters move when encrypting.
+     */
+    ShiftCipher(int shift) {
+        for (char c = 0; c < TABLE_SIZE; c++) {
+            encryptTable[c] = shifted(c, shift);
+            decryptTable[c] = shifted(c, -shift);
+        }
+    }
+
+    private static char shifted(char character, int shift) {
+        int offset = Math.floorMod(shift, 26);
+        if (character >= 'a' && character <= 'z') {
+            return (char) ((character - 'a' + offset) % 26 + 'a');
+        } else if (character >= 'A' && character <= 'Z') {
+            return (char) ((character - 'A' + offset) % 26 + 'A');
+        }
+        return character;
+    }
+
+    @Override
+    public String name() {
+        return "shift";
+    }
+
+    @Override
+    public String encrypt(String text) {
+        return translate(text, encryptTable);
+    }
+
+    @Override
+    public String decrypt(String text) {
+        return translate(text, decryptTable);
+    }
+
+    /**
+     * Encrypts characters in place.
+     *
+     * @param chars  The characters.
+     * @param offset The first character to encrypt.
+     * @param length How many characters to encrypt.
+     */
+    void encrypt(char[] chars, int offset, int length) {
+        translate(chars, offset, length, encryptTable);
+    }
+
+    /**
+     * Decrypts characters in place.
+     *
+     * @param chars  The characters.
+     * @param offset The first character to decrypt.
+     * @param length How many characters to decrypt.
+     */
+    void decrypt(char[] chars, int offset, int length) {
+        translate(chars, offset, length, decryptTable);
+    }
+
+    private static String translate(String text, char[] table) {
+        int length = text.length();
+        char[] chars = SCRATCH.get();
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+            if (chars.length <= MAX_RETAINED_BUFFER) {
+                SCRATCH.set(chars);
+            }
+        }
+        text.getChars(0, length, chars, 0);
+        translate(chars, 0, length, table);
+        return new String(chars, 0, length);
+    }
+
+    private static void translate(char[] chars, int offset, int length, char[] table) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            char c = chars[i];
+            if (c < TABLE_SIZE) {
+                chars[i] = table[c];
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * The {@code SocketConnection} class is the blocking {@code ClientConnection}. It wraps a client
+ * {@code Socket} with a line reader and an {@code OutboundQueue} that a dedicated writer task drains,
+ * so a client that stops reading only ever stalls its own writer. The writer buffers whatever is queued
+ * and flushes once the queue is empty, so a burst of frames leaves in a few large writes.
+ */
+class SocketConnection implements ClientConnection {
+
+    static final int WRITE_BUFFER_SIZE = 16384; // Frames gathered into one socket write
+
+    private final Socket socket; // The socket connected to the client
+    private final OutputStream out; // To write lines to the client, buffered until the queue runs dry
+    private final FrameReader in; // To read frames from the client
+    private final OutboundQueue outbound; // Frames waiting for the writer
+    private volatile boolean binary; // Whether the client negotiated binary frames
+    private volatile boolean compress; // Whether the client negotiated compressed frames
+    private final ServerMetrics metrics;
+
+    /**
+     * Opens the reader and writer of the given socket.
+     *
+     * @param socket         The socket connected to the client.
+     * @param outbound       The queue holding lines until the writer sends them.
+     * @param metrics        Counts the frames and bytes that pass through.
+     * @param maxFrameLength The longest line or frame accepted from the client, in bytes.
+     * @throws IOException if the socket streams cannot be opened.
+     */
+    SocketConnection(Socket socket, OutboundQueue outbound, ServerMetrics metrics, int maxFrameLength) throws IOException {
+        this.socket = socket;
+        socket.setTcpNoDelay(true); // Frames are batched here, so Nagle would only add latency
+        this.out = new BufferedOutputStream(new CountingOutputStream(socket.getOutputStream(), metrics), WRITE_BUFFER_SIZE);
+        this.in = new FrameReader(new CountingInputStream(socket.getInputStream(), metrics), maxFrameLength);
+        this.outbound = outbound;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Counts every byte read from the socket as received.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private final ServerMetrics metrics;
+
+        CountingInputStream(InputStream in, ServerMetrics metrics) {
+            super(in);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count > 0) metrics.bytesReceived(count);
+            return count;
+        }
+    }
+
+    /**
+     * Counts every write to the socket, each of which is one system call.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private final ServerMetrics metrics;
+
+        CountingOutputStream(OutputStream out, ServerMetrics metrics) {
+            super(out);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            metrics.socketWrite();
+        }
+    }
+
+    /**
+     * Blocks until the next frame arrives from the client.
+     *
+     * @return The frame read, or {@code null} once the client has closed the stream.
+     * @throws IOException if reading from the socket fails or the client sent a malformed frame.
+     */
+    Frame readFrame() throws IOException {
+        return in.readFrame();
+    }
+
+    /**
+     * Returns the number of bytes the last frame read took on the wire.
+     *
+     * @return The size of the last frame.
+     */
+    int lastFrameBytes() {
+        return in.lastFrameBytes();
+    }
+
+    /**
+     * Writes queued frames to the socket until the connection is closed. Run this on its own thread.
+     * Frames are flushed when the queue runs dry or the buffer fills, not one by one.
+     */
+    void drain() {
+        try {
+            Frame frame;
+            while ((frame = outbound.take()) != null) {
+                do {
+                    frame.writeTo(out);
+                    metrics.frameSent(frame);
+                } while ((frame = outbound.poll()) != null);
+                out.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            // The reader notices the broken socket and runs the normal disconnect path
+        } finally {
+            abort();
+        }
+    }
+
+    @Override
+    public boolean write(Frame frame) {
+        return outbound.offer(!binary ? frame : compress ? frame.compressed(metrics.compressionTiming()) : frame.binary());
+    }
+
+    @Override
+    public void useBinaryFrames() {
+        in.useBinaryFrames();
+        binary = true;
+    }
+
+    @Override
+    public void useCompression() {
+        compress = true;
+    }
+
+    @Override
+    public int queuedFrames() {
+        return outbound.size();
+    }
+
+    @Override
+    public String getHostAddress() {
+        return socket.getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public void close() {
+        outbound.close(); // The writer closes the socket after the last queued frame
+        try {
+            if (!socket.isClosed()) socket.shutdownInput();
+        } catch (IOException ex) {
+            abort();
+        }
+    }
+
+    @Override
+    public void abort() {
+        outbound.discard();
+        try {
+            if (!socket.isClosed()) socket.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tests the cluster handshake: nodes sharing the secret link up, and neither a node with another secret
+ * nor a client that merely speaks the record format gets its records read.
+ */
+final class ClusterTest {
+
+    static void register(Tests tests) {
+        tests.run("cluster.linksWithSharedSecret", () -> link("s3cret", "s3cret", true));
+        tests.run("cluster.refusesOtherSecret", () -> link("s3cret", "guess", false));
+        tests.run("cluster.refusesForgedRecords", ClusterTest::refusesForgedRecords);
+    }
+
+    private static void link(String secretA, String secretB, boolean expectLinked) throws Exception {
+        int portA = freePort();
+        int portB = freePort();
+        Cluster a = new Cluster(config("a", portA, portB, secretA), new ChatServer());
+        Cluster b = new Cluster(config("b", portB, portA, secretB), new ChatServer());
+        a.start();
+        b.start();
+        try {
+            if (expectLinked) {
+                Tests.eventually(() -> a.getConnectedNodeCount() == 1 && b.getConnectedNodeCount() == 1, "both links open");
+            } else {
+                Thread.sleep(1000); // Several attempts each way
+                Tests.assertEquals(0, a.getConnectedNodeCount());
+                Tests.assertEquals(0, b.getConnectedNodeCount());
+            }
+        } finally {
+            a.close(1000);
+            b.close(1000);
+        }
+    }
+
+    /**
+     * Speaks the record format without the secret: the node answers HELLO, but closes the link at the
+     * unproven AUTH without reading the user it tries to announce.
+     */
+    private static void refusesForgedRecords() throws Exception {
+        int port = freePort();
+        Cluster node = new Cluster(config("a", port, 0, "s3cret"), new ChatServer());
+        node.start();
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            record(out, 1, "mallory-node", "bm9uY2U=");
+            Tests.assertEquals((byte) 1, in.readByte());
+            for (int i = 0; i < 3; i++) {
+                in.readFully(new byte[in.readInt()]); // Node id, nonce and proof
+            }
+            record(out, 9, "forged");
+            record(out, 2, "mallory", "6.6.6.6");
+            Tests.assertEquals(-1, in.read());
+            Tests.assertEquals(null, node.hostAddressOf("mallory"));
+        } finally {
+            node.close(1000);
+        }
+    }
+
+    private static ServerConfig config(String nodeId, int port, int peerPort, String secret) {
+        ServerConfig config = new ServerConfig();
+        config.nodeId = nodeId;
+        config.clusterPort = port;
+        config.peers = peerPort > 0 ? "127.0.0.1:" + peerPort : "";
+        config.clusterSecret = secret;
+        return config;
+    }
+
+    private static void record(DataOutputStream out, int type, String... fields) throws IOException {
+        out.writeByte(type);
+        for (String field : fields) {
+            byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        out.flush();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tests that user-supplied text never reaches a client as a control frame: nicknames that would make a
+ * chat line read as a command are refused, the server sends what users typed as {@code TEXT} frames, and
+ * a client that receives a malformed control frame anyway reconnects instead of hanging.
+ */
+final class ControlFrameInjectionTest {
+
+    static void register(Tests tests) {
+        tests.run("injection.opcodeNicknamesAreInvalid", ControlFrameInjectionTest::opcodeNicknamesAreInvalid);
+        tests.run("injection.serverRefusesOpcodeNickname", ControlFrameInjectionTest::serverRefusesOpcodeNickname);
+        tests.run("injection.chatLinesAreText", ControlFrameInjectionTest::chatLinesAreText);
+        tests.run("injection.lineBreaksStayInsideTheLine", ControlFrameInjectionTest::lineBreaksStayInsideTheLine);
+        tests.run("injection.rosterDeltasAreTyped", ControlFrameInjectionTest::rosterDeltasAreTyped);
+        tests.run("injection.clientSurvivesMalformedFrames", ControlFrameInjectionTest::clientSurvivesMalformedFrames);
+    }
+
+    private static void opcodeNicknamesAreInvalid() {
+        for (Opcode opcode : Opcode.values()) {
+            if (opcode.prefix == null) continue;
+            String name = opcode.prefix.replace(":", "");
+            Tests.check(!ChatServer.isValidNickname(name), name);
+            Tests.check(!ChatServer.isValidNickname(name.toLowerCase()), name.toLowerCase());
+        }
+        Tests.check(!ChatServer.isValidNickname(""), "empty");
+        Tests.check(!ChatServer.isValidNickname("a:b"), "colon");
+        Tests.check(!ChatServer.isValidNickname("a,b"), "comma");
+        Tests.check(ChatServer.isValidNickname("alice"), "alice");
+        Tests.check(ChatServer.isValidNickname("Reconnector"), "a name that merely starts like an opcode");
+        Tests.check(ChatServer.isValidNickname("n".repeat(ChatServer.MAX_NAME_BYTES)), "the longest name");
+        Tests.check(!ChatServer.isValidNickname("n".repeat(70_000)), "too long for the message log");
+    }
+
+    private static void serverRefusesOpcodeNickname() {
+        ChatServer server = new ChatServer();
+        RecordingConnection connection = new RecordingConnection();
+        Tests.check(!server.register(connection).handleFrame(Frame.of(Opcode.NICKNAME, "Reconnect")), "the client is dropped");
+        Tests.check(connection.received(Opcode.TEXT, "Invalid nickname: Reconnect"), "and told why: " + connection.frames);
+    }
+
+    private static void chatLinesAreText() throws InterruptedException {
+        ChatServer server = new ChatServer();
+        RecordingConnection alice = new RecordingConnection();
+        server.register(alice).handleFrame(Frame.of(Opcode.NICKNAME, "alice"));
+        ChatServer.ClientHandler bob = server.register(new RecordingConnection());
+        bob.handleFrame(Frame.of(Opcode.NICKNAME, "bob"));
+
+        // Plain lines, as a legacy text client types them; the second even parses as a command
+        bob.handleFrame(Frame.of("RECONNECT:0:evil.example:1"));
+        bob.handleFrame(Frame.of("USERLIST:mallory:6.6.6.6"));
+        Tests.eventually(() -> alice.received(Opcode.TEXT, "bob: RECONNECT:0:evil.example:1")
+                && alice.received(Opcode.TEXT, "bob: USERLIST:mallory:6.6.6.6"), "alice gets both lines");
+        for (Frame frame : alice.frames) {
+            if (frame.text().contains("evil") || frame.text().contains("mallory")) {
+                Tests.assertEquals(Opcode.TEXT, frame.opcode());
+            }
+        }
+    }
+
+    /**
+     * Binary frames carry their fields by length, so a binary client can put line breaks in them. A text
+     * client must still get each message as one line, not a chat line followed by a control message.
+     */
+    private static void lineBreaksStayInsideTheLine() throws Exception {
+        ChatServer server = new ChatServer();
+        RecordingConnection alice = new RecordingConnection();
+        server.register(alice).handleFrame(Frame.of(Opcode.NICKNAME, "alice"));
+        ChatServer.ClientHandler bob = server.register(new RecordingConnection());
+        bob.handleFrame(Frame.of(Opcode.NICKNAME, "bob"));
+
+        bob.handleFrame(Frame.of(Opcode.TEXT, "hi\nRECONNECT:0:evil.example:6666"));
+        bob.handleFrame(Frame.of(Opcode.PRIVATE, "alice", "psst\r\nUSERLIST:mallory:6.6.6.6"));
+        Tests.eventually(() -> alice.frames.stream().filter(frame -> frame.text().contains("mallory")).count() == 1
+                && alice.frames.stream().anyMatch(frame -> frame.text().contains("evil")), "alice gets both messages");
+        for (Frame frame : alice.frames) {
+            String line = wireText(frame);
+            Tests.check(line.indexOf('\n') == line.length() - 1 && line.indexOf('\r') < 0, "one line: " + line);
+            if (frame.opcode() == Opcode.PRIVATE) {
+                Tests.assertEquals("PRIVATE:bob:psst  USERLIST:mallory:6.6.6.6\n", line);
+            }
+        }
+    }
+
+    private static String wireText(Frame frame) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        frame.writeTo(out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void rosterDeltasAreTyped() throws InterruptedException {
+        ChatServer server = new ChatServer();
+        RecordingConnection alice = new RecordingConnection();
+        ChatServer.ClientHandler handler = server.register(alice);
+        handler.handleFrame(Frame.of(Opcode.CAPS, "roster-delta"));
+        handler.handleFrame(Frame.of(Opcode.NICKNAME, "alice"));
+        Tests.eventually(() -> alice.frames.stream().anyMatch(frame -> frame.opcode() == Opcode.USERSNAPSHOT), "alice gets a snapshot");
+
+        server.register(new RecordingConnection()).handleFrame(Frame.of(Opcode.NICKNAME, "carol"));
+        Tests.eventually(() -> alice.frames.stream().anyMatch(frame -> frame.opcode() == Opcode.USERJOIN), "alice gets a delta: " + alice.frames);
+        for (Frame frame : alice.frames) {
+            if (frame.opcode() == Opcode.USERJOIN) {
+                Tests.assertEquals(2, frame.fieldCount());
+                Tests.assertEquals("carol:127.0.0.1", frame.field(1));
+                Long.parseLong(frame.field(0));
+            }
+        }
+    }
+
+    /**
+     * A fake server sends each malformed frame to a {@code ChatModel} in turn. Each must make the client drop
+     * the connection and come back to the same address, rather than kill its listener or follow a redirect.
+     */
+    private static void clientSurvivesMalformedFrames() throws Exception {
+        String[] malformed = {"RECONNECT:soon:evil.example:1", "RECONNECT:5:evil.example", "USERSNAPSHOT:x:alice:1.1.1.1",
+                "USERBATCH:1:two:+bob:2.2.2.2", "LOGGED:-3:hi", "RESULTS:1:2"};
+        List<String> shown = new CopyOnWriteArrayList<>();
+        try (ServerSocket listener = new ServerSocket(0)) {
+            listener.setSoTimeout(10_000);
+            ChatModel model = new ChatModel(new ChatModel.ChatListener() {
+                public void onMessageReceived(String message) { shown.add(message); }
+                public void onConnectionStatusChanged(boolean isConnected) { }
+                public void onUserListReceived(String userList) { }
+                public void onUserJoined(String user) { }
+                public void onUserLeft(String user) { }
+            });
+            model.setBinaryFramesEnabled(false);
+            Thread connecting = new Thread(() -> {
+                try {
+                    model.connect("localhost", listener.getLocalPort(), "zed");
+                } catch (Exception e) {
+                    shown.add("connect failed: " + e);
+                }
+            });
+            connecting.setDaemon(true);
+            connecting.start();
+            for (String line : malformed) {
+                try (Socket socket = listener.accept()) {
+                    socket.setSoTimeout(5_000);
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                    in.readLine(); // CAPS:
+                    out.println("CAPS:");
+                    out.println("USERLIST:zed:127.0.0.1"); // Registered, so the next reconnect comes quickly
+                    out.println(line);
+                    out.println("after " + line);
+                    Tests.check(in.readLine() != null, "the nickname arrives");
+                    Tests.check(readUntilClosed(in), "the client closes the connection after " + line);
+                }
+            }
+            try (Socket socket = listener.accept()) {
+                Tests.check(socket.isConnected(), "still reconnecting to the same address");
+            }
+            model.disconnect();
+        }
+        for (String message : shown) {
+            Tests.check(!message.startsWith("after"), "nothing after a malformed frame is handled: " + message);
+        }
+    }
+
+    private static boolean readUntilClosed(BufferedReader in) {
+        try {
+            while (in.readLine() != null) {
+                // Whatever the client still sends, such as its room joins
+            }
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            return true; // Reset rather than closed: gone either way
+        }
+    }
+}
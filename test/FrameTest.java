@@ -0,0 +1,125 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Tests for {@link Frame}: text parsing, binary encoding and decoding, and compression.
+ */
+final class FrameTest {
+
+    static void register(Tests tests) {
+        tests.run("frame.textForm", FrameTest::textForm);
+        tests.run("frame.unknownPrefixIsText", FrameTest::unknownPrefixIsText);
+        tests.run("frame.binaryRoundTrip", FrameTest::binaryRoundTrip);
+        tests.run("frame.binaryRejectsMalformed", FrameTest::binaryRejectsMalformed);
+        tests.run("frame.smallFramesStayUncompressed", FrameTest::smallFramesStayUncompressed);
+        tests.run("frame.compressedRoundTrip", FrameTest::compressedRoundTrip);
+        tests.run("frame.inflateCap", FrameTest::inflateCap);
+        tests.run("frame.corruptCompressedFrame", FrameTest::corruptCompressedFrame);
+    }
+
+    private static void textForm() throws IOException {
+        Frame frame = Frame.of("PRIVATE:bob:hi: there");
+        Tests.assertEquals(Opcode.PRIVATE, frame.opcode());
+        Tests.assertEquals("bob", frame.field(0));
+        Tests.assertEquals("hi: there", frame.field(1)); // The last field keeps its colons
+        Tests.assertEquals("PRIVATE:bob:hi: there\n", new String(bytes(frame), UTF_8));
+        Tests.assertEquals("USERJOIN:7:carol:10.0.0.1", Frame.of(Opcode.USERJOIN, "7", "carol:10.0.0.1").text());
+        Tests.assertEquals(Opcode.DISCONNECT, Frame.of("disconnect").opcode());
+    }
+
+    private static void unknownPrefixIsText() {
+        Frame frame = Frame.of("alice: hello");
+        Tests.assertEquals(Opcode.TEXT, frame.opcode());
+        Tests.assertEquals("alice: hello", frame.field(0));
+        // Built with an explicit opcode, a line that looks like a command stays a line
+        Frame line = Frame.of(Opcode.TEXT, "RECONNECT:0:evil:1");
+        Tests.assertEquals(Opcode.TEXT, line.opcode());
+        Tests.assertEquals(1, line.fieldCount());
+    }
+
+    private static void binaryRoundTrip() throws IOException {
+        Frame frame = Frame.of(Opcode.RESULTS, "12", "0", "\u00e9moji \u2713");
+        byte[] encoded = bytes(frame.binary());
+        Tests.assertEquals(encoded.length - 4, Frame.readInt(encoded, 0));
+        Tests.assertEquals(Opcode.RESULTS.code, encoded[4]);
+        Tests.assertEquals((byte) 3, encoded[5]);
+        Frame decoded = Frame.decode(encoded, 4, encoded.length - 4);
+        Tests.assertEquals(Opcode.RESULTS, decoded.opcode());
+        Tests.assertEquals("\u00e9moji \u2713", decoded.field(2));
+        Tests.assertEquals(frame.text(), decoded.text());
+        Tests.check(frame.binary() == frame.binary(), "the binary form is cached");
+    }
+
+    private static void binaryRejectsMalformed() throws IOException {
+        byte[] encoded = bytes(Frame.of(Opcode.PRIVATE, "bob", "hi").binary());
+        Tests.assertThrows(ProtocolException.class, () -> Frame.decode(encoded, 4, 1));
+        Tests.assertThrows(ProtocolException.class, () -> Frame.decode(encoded, 4, encoded.length - 5)); // Truncated field
+
+        byte[] unknown = encoded.clone();
+        unknown[4] = 99;
+        Tests.assertThrows(ProtocolException.class, () -> Frame.decode(unknown, 4, unknown.length - 4));
+
+        byte[] arity = encoded.clone();
+        arity[5] = 1;
+        Tests.assertThrows(ProtocolException.class, () -> Frame.decode(arity, 4, arity.length - 4));
+
+        byte[] length = encoded.clone();
+        length[6] = 0x7F; // The first field claims to be far longer than the frame
+        Tests.assertThrows(ProtocolException.class, () -> Frame.decode(length, 4, length.length - 4));
+    }
+
+    private static void smallFramesStayUncompressed() throws IOException {
+        Frame frame = Frame.of(Opcode.TEXT, "short");
+        Frame compressed = frame.compressed(null);
+        Tests.check(compressed == frame.binary(), "a frame below the threshold is sent as plain binary");
+        Tests.assertEquals(Opcode.TEXT.code, bytes(compressed)[4]);
+    }
+
+    private static void compressedRoundTrip() throws IOException {
+        String roster = "user:10.0.0.1,".repeat(200);
+        Frame frame = Frame.of(Opcode.USERSNAPSHOT, "42", roster);
+        long[] timed = new long[1];
+        Frame compressed = frame.compressed(started -> timed[0]++);
+        byte[] encoded = bytes(compressed);
+        Tests.assertEquals((byte) (Opcode.USERSNAPSHOT.code | 0x80), encoded[4]);
+        Tests.check(encoded.length < frame.binary().length() / 4, "a repetitive roster compresses well: " + encoded.length);
+        Tests.assertEquals(frame.binary().length(), compressed.uncompressedLength());
+        Tests.check(frame.compressed(null) == compressed, "the compressed form is cached");
+        Tests.assertEquals(1L, timed[0]);
+
+        Frame decoded = Frame.decode(encoded, 4, encoded.length - 4);
+        Tests.assertEquals(Opcode.USERSNAPSHOT, decoded.opcode());
+        Tests.assertEquals("42", decoded.field(0));
+        Tests.assertEquals(roster, decoded.field(1));
+    }
+
+    private static void inflateCap() throws IOException {
+        Frame frame = Frame.of(Opcode.TEXT, "a".repeat(200_000));
+        byte[] encoded = bytes(frame.compressed(null));
+        Tests.check(encoded.length < 2_000, "200 kB of one letter deflates to almost nothing: " + encoded.length);
+        ProtocolException e = Tests.assertThrows(ProtocolException.class, () -> Frame.decode(encoded, 4, encoded.length - 4, 65_536));
+        Tests.check(e.getMessage().contains("longer than"), e.getMessage());
+        Tests.assertEquals(200_000, Frame.decode(encoded, 4, encoded.length - 4, 300_000).field(0).length());
+    }
+
+    private static void corruptCompressedFrame() throws IOException {
+        byte[] encoded = bytes(Frame.of(Opcode.TEXT, "hello world ".repeat(100)).compressed(null));
+        byte[] corrupt = encoded.clone();
+        for (int i = 6; i < corrupt.length; i++) {
+            corrupt[i] ^= 0x5A;
+        }
+        Tests.assertThrows(ProtocolException.class, () -> Frame.decode(corrupt, 4, corrupt.length - 4));
+        byte[] truncated = Arrays.copyOf(encoded, encoded.length - 8);
+        Tests.assertThrows(ProtocolException.class, () -> Frame.decode(truncated, 4, truncated.length - 4));
+    }
+
+    private static byte[] bytes(Frame frame) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        frame.writeTo(out);
+        return out.toByteArray();
+    }
+}
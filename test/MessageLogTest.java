@@ -0,0 +1,215 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Tests for {@link MessageLog}: recovery of segments whose tail was torn or corrupted by a crash or a
+ * failed write, names too long to store, and reading history back.
+ */
+final class MessageLogTest {
+
+    static void register(Tests tests) {
+        tests.run("messageLog.reopenKeepsEverything", MessageLogTest::reopenKeepsEverything);
+        tests.run("messageLog.truncatesTornRecord", MessageLogTest::truncatesTornRecord);
+        tests.run("messageLog.dropsRecordWithBadChecksum", MessageLogTest::dropsRecordWithBadChecksum);
+        tests.run("messageLog.truncatesTornOlderSegment", MessageLogTest::truncatesTornOlderSegment);
+        tests.run("messageLog.dropsOverlongName", MessageLogTest::dropsOverlongName);
+        tests.run("messageLog.lastAndSince", MessageLogTest::lastAndSince);
+    }
+
+    private static void reopenKeepsEverything() throws Exception {
+        Path directory = Files.createTempDirectory("message-log-test");
+        try {
+            write(directory, 10);
+            MessageLog log = MessageLog.open(directory, config(), null);
+            List<MessageLog.Entry> entries = log.since(0, 100, entry -> true);
+            Tests.assertEquals(10, entries.size());
+            Tests.assertEquals(1L, entries.get(0).seq);
+            Tests.assertEquals("message 10", entries.get(9).text);
+            Tests.assertEquals(11L, log.append(MessageLog.PUBLIC, "general", "alice", "after reopening"));
+            log.close(5000);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static void truncatesTornRecord() throws Exception {
+        Path directory = Files.createTempDirectory("message-log-test");
+        try {
+            write(directory, 10);
+            Path segment = onlySegment(directory);
+            long intact = Files.size(segment);
+            try (FileChannel file = FileChannel.open(segment, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                file.write(ByteBuffer.wrap(new byte[] {0, 0, 0, 40, 1, 2, 3})); // A record cut off mid-header
+            }
+
+            MessageLog log = MessageLog.open(directory, config(), null);
+            Tests.assertEquals(intact, Files.size(segment));
+            Tests.assertEquals(10, log.since(0, 100, entry -> true).size());
+            Tests.assertEquals(11L, log.append(MessageLog.PUBLIC, "general", "alice", "after the crash"));
+            log.close(5000);
+
+            log = MessageLog.open(directory, config(), null);
+            List<MessageLog.Entry> entries = log.since(0, 100, entry -> true);
+            Tests.assertEquals(11, entries.size());
+            Tests.assertEquals("after the crash", entries.get(10).text);
+            log.close(5000);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static void dropsRecordWithBadChecksum() throws Exception {
+        Path directory = Files.createTempDirectory("message-log-test");
+        try {
+            write(directory, 10);
+            Path segment = onlySegment(directory);
+            try (FileChannel file = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer last = ByteBuffer.allocate(1);
+                file.read(last, file.size() - 1);
+                last.put(0, (byte) (last.get(0) ^ 1)); // One flipped bit in the last record's text
+                file.write(last.flip(), file.size() - 1);
+            }
+
+            MessageLog log = MessageLog.open(directory, config(), null);
+            List<MessageLog.Entry> entries = log.since(0, 100, entry -> true);
+            Tests.assertEquals(9, entries.size());
+            Tests.assertEquals("message 9", entries.get(8).text);
+            Tests.assertEquals(10L, log.append(MessageLog.PUBLIC, "general", "alice", "replaces the lost one"));
+            log.close(5000);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static void truncatesTornOlderSegment() throws Exception {
+        Path directory = Files.createTempDirectory("message-log-test");
+        try {
+            ServerConfig config = config();
+            config.logSegmentBytes = 1024; // About twenty records per segment
+            MessageLog log = MessageLog.open(directory, config, null);
+            for (int i = 1; i <= 30; i++) {
+                log.append(MessageLog.PUBLIC, "general", "alice", "message " + i);
+            }
+            log.close(5000);
+            List<Path> segments = segments(directory);
+            Tests.check(segments.size() > 1, "the log rolled to a second segment");
+            Path first = segments.get(0);
+            long intact = Files.size(first);
+            try (FileChannel file = FileChannel.open(first, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                file.write(ByteBuffer.wrap(new byte[] {0, 0, 0, 40, 1, 2, 3})); // Left behind by a failed write
+            }
+
+            log = MessageLog.open(directory, config, null);
+            Tests.assertEquals(intact, Files.size(first));
+            List<MessageLog.Entry> entries = log.since(0, 100, entry -> true);
+            Tests.assertEquals(30, entries.size());
+            Tests.assertEquals("message 30", entries.get(29).text);
+            log.close(5000);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static void dropsOverlongName() throws Exception {
+        Path directory = Files.createTempDirectory("message-log-test");
+        try {
+            MessageLog log = MessageLog.open(directory, config(), null);
+            Tests.assertEquals(-1L, log.append(MessageLog.PRIVATE, "x".repeat(70_000), "alice", "too long to store"));
+            Tests.assertEquals(-1L, log.append(MessageLog.PUBLIC, "general", "\u00e9".repeat(40_000), "too long in UTF-8"));
+            Tests.assertEquals(1L, log.append(MessageLog.PUBLIC, "general", "alice", "still written"));
+            log.close(5000);
+            log = MessageLog.open(directory, config(), null);
+            List<MessageLog.Entry> entries = log.since(0, 100, entry -> true);
+            Tests.assertEquals(1, entries.size());
+            Tests.assertEquals("still written", entries.get(0).text);
+            log.close(5000);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static void lastAndSince() throws Exception {
+        Path directory = Files.createTempDirectory("message-log-test");
+        try {
+            MessageLog log = MessageLog.open(directory, config(), null);
+            for (int i = 1; i <= 1000; i++) {
+                boolean direct = i % 3 == 0;
+                log.append(direct ? MessageLog.PRIVATE : MessageLog.PUBLIC, direct ? "bob" : "general", "alice", "message " + i);
+            }
+            log.close(5000);
+            log = MessageLog.open(directory, config(), null);
+            Predicate<MessageLog.Entry> everything = entry -> true;
+            Predicate<MessageLog.Entry> forBob = entry -> entry.kind == MessageLog.PRIVATE;
+            for (Predicate<MessageLog.Entry> visible : List.of(everything, forBob)) {
+                List<MessageLog.Entry> all = log.since(0, Integer.MAX_VALUE, visible);
+                for (int count : new int[] {1, 50, 64, 65, 200, 5000}) {
+                    Tests.assertEquals(seqs(all.subList(Math.max(0, all.size() - count), all.size())), seqs(log.last(count, visible)));
+                }
+                for (long after : new long[] {0, 63, 64, 65, 500, 999, 1000}) {
+                    List<MessageLog.Entry> expected = new ArrayList<>();
+                    for (MessageLog.Entry entry : all) {
+                        if (entry.seq > after && expected.size() < 10) expected.add(entry);
+                    }
+                    Tests.assertEquals(seqs(expected), seqs(log.since(after, 10, visible)));
+                }
+            }
+            log.close(5000);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static ServerConfig config() {
+        ServerConfig config = new ServerConfig();
+        config.logFsync = false; // Durability is not what is tested here
+        return config;
+    }
+
+    private static void write(Path directory, int count) throws Exception {
+        MessageLog log = MessageLog.open(directory, config(), null);
+        for (int i = 1; i <= count; i++) {
+            log.append(MessageLog.PUBLIC, "general", "alice", "message " + i);
+        }
+        log.close(5000);
+    }
+
+    private static Path onlySegment(Path directory) throws IOException {
+        List<Path> segments = segments(directory);
+        Tests.assertEquals(1, segments.size());
+        return segments.get(0);
+    }
+
+    /**
+     * Lists the segment files, oldest first.
+     */
+    private static List<Path> segments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> segments = new ArrayList<>();
+            files.filter(file -> file.toString().endsWith(".log")).sorted().forEach(segments::add);
+            return segments;
+        }
+    }
+
+    private static List<Long> seqs(List<MessageLog.Entry> entries) {
+        List<Long> seqs = new ArrayList<>();
+        for (MessageLog.Entry entry : entries) seqs.add(entry.seq);
+        return seqs;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
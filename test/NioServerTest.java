@@ -0,0 +1,113 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that a misbehaving client of an NIO server is closed without holding up the other clients served
+ * by the same event loop.
+ */
+final class NioServerTest {
+
+    static void register(Tests tests) {
+        tests.run("nio.zeroLengthFrameCloses", NioServerTest::zeroLengthFrameCloses);
+    }
+
+    private static void zeroLengthFrameCloses() throws Exception {
+        ChatServer server = new ChatServer();
+        int port = start(server);
+        try {
+            try (Socket bad = connect(port)) {
+                OutputStream out = bad.getOutputStream();
+                BufferedReader in = reader(bad);
+                out.write("CAPS:binary\n".getBytes(StandardCharsets.UTF_8));
+                Tests.assertEquals("CAPS:binary", in.readLine());
+                out.write(new byte[] {0, 0, 0, 0, 1, 2, 3}); // A length prefix of 0, then stray bytes
+                out.flush();
+                Tests.check(closed(bad.getInputStream()), "the client is closed");
+            }
+            try (Socket good = connect(port)) {
+                good.getOutputStream().write("NICKNAME:bob\nPING:still there\n".getBytes(StandardCharsets.UTF_8));
+                Tests.check(receives(reader(good), "PONG:still there"), "the event loop still serves its other clients");
+            }
+        } finally {
+            server.stop(1, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Starts an NIO server with one event loop and nothing on disk, and waits until it accepts.
+     *
+     * @return The port it listens on.
+     */
+    static int start(ChatServer server) throws Exception {
+        ServerConfig config = new ServerConfig();
+        try (ServerSocket probe = new ServerSocket(0)) {
+            config.port = probe.getLocalPort();
+        }
+        config.mode = ServerConfig.Mode.NIO;
+        config.eventLoops = 1; // So every client shares the loop a bad one could stall
+        config.logDir = "";
+        config.inboxDir = "";
+        config.heartbeatSeconds = 0;
+        Thread thread = new Thread(() -> server.start(config), "test-server");
+        thread.setDaemon(true);
+        thread.start();
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (true) {
+            try {
+                new Socket("localhost", config.port).close();
+                return config.port;
+            } catch (IOException e) {
+                if (System.nanoTime() - deadline > 0) throw e;
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    static Socket connect(int port) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        socket.setSoTimeout(5_000);
+        return socket;
+    }
+
+    static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads lines until the expected one arrives.
+     *
+     * @return {@code false} if the connection ends or goes quiet first.
+     */
+    static boolean receives(BufferedReader in, String expected) throws IOException {
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.equals(expected)) return true;
+            }
+            return false;
+        } catch (SocketTimeoutException e) {
+            return false;
+        }
+    }
+
+    private static boolean closed(InputStream in) throws IOException {
+        try {
+            while (in.read() >= 0) {
+                // Whatever the server sent before closing
+            }
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            return true; // Reset rather than closed: gone either way
+        }
+    }
+}
@@ -0,0 +1,133 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Tests for {@link OfflineInbox}: which nicknames may be sent messages, the limit on all inboxes together
+ * and inboxes of nicknames too long to name a file after.
+ */
+final class OfflineInboxTest {
+
+    static void register(Tests tests) {
+        tests.run("offlineInbox.onlyKnownNicknames", OfflineInboxTest::onlyKnownNicknames);
+        tests.run("offlineInbox.storedAndDelivered", OfflineInboxTest::storedAndDelivered);
+        tests.run("offlineInbox.totalSizeLimit", OfflineInboxTest::totalSizeLimit);
+        tests.run("offlineInbox.longNickname", OfflineInboxTest::longNickname);
+    }
+
+    private static void onlyKnownNicknames() throws Exception {
+        Path directory = Files.createTempDirectory("offline-inbox-test");
+        try {
+            ChatServer server = new ChatServer();
+            OfflineInbox inbox = new OfflineInbox(directory, new ServerConfig(), server);
+            Tests.check(!inbox.knows("bob"), "never seen");
+            leave(signIn(server, inbox, "bob"));
+            Tests.check(inbox.knows("bob"), "seen once");
+            Tests.check(!inbox.knows("bobb"), "a typo is not bob");
+            inbox.close(5000);
+
+            OfflineInbox reopened = new OfflineInbox(directory, new ServerConfig(), server);
+            Tests.check(reopened.knows("bob"), "still known after a restart");
+            reopened.close(5000);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static void storedAndDelivered() throws Exception {
+        Path directory = Files.createTempDirectory("offline-inbox-test");
+        try {
+            ChatServer server = new ChatServer();
+            OfflineInbox inbox = new OfflineInbox(directory, new ServerConfig(), server);
+            leave(signIn(server, inbox, "bob"));
+            RecordingConnection alice = new RecordingConnection();
+            ChatServer.ClientHandler sender = server.register(alice);
+            sender.handleFrame(Frame.of(Opcode.NICKNAME, "alice"));
+            inbox.store("bob", sender, "see you");
+            Tests.eventually(() -> alice.received(Opcode.TEXT, "bob is offline; the message will be delivered when they return."), "kept: " + alice.frames);
+
+            RecordingConnection bob = new RecordingConnection();
+            signIn(server, inbox, bob, "bob");
+            Tests.eventually(() -> bob.received(Opcode.PRIVATE, "PRIVATE:alice:see you"), "delivered: " + bob.frames);
+            inbox.close(5000);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static void totalSizeLimit() throws Exception {
+        Path directory = Files.createTempDirectory("offline-inbox-test");
+        try {
+            ServerConfig config = new ServerConfig();
+            config.inboxMaxBytes = 100;
+            ChatServer server = new ChatServer();
+            OfflineInbox inbox = new OfflineInbox(directory, config, server);
+            leave(signIn(server, inbox, "bob"));
+            leave(signIn(server, inbox, "carol"));
+            RecordingConnection alice = new RecordingConnection();
+            ChatServer.ClientHandler sender = server.register(alice);
+            sender.handleFrame(Frame.of(Opcode.NICKNAME, "alice"));
+            inbox.store("bob", sender, "x".repeat(60));
+            inbox.store("carol", sender, "x".repeat(60)); // Another inbox, but the same limit
+            Tests.eventually(() -> alice.received(Opcode.TEXT, "The offline inboxes are full; message to carol not delivered."),
+                    "refused: " + alice.frames);
+            Tests.assertEquals(1L, inbox.getStoredCount());
+            Tests.assertEquals(1L, inbox.getRejectedCount());
+
+            signIn(server, inbox, new RecordingConnection(), "bob"); // Delivering bob's frees the space
+            inbox.store("carol", sender, "x".repeat(60));
+            Tests.eventually(() -> inbox.getStoredCount() == 2, "kept once there is room");
+            inbox.close(5000);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static void longNickname() throws Exception {
+        Path directory = Files.createTempDirectory("offline-inbox-test");
+        try {
+            String name = "n".repeat(ChatServer.MAX_NAME_BYTES); // 510 hex digits would be too long a file name
+            ChatServer server = new ChatServer();
+            OfflineInbox inbox = new OfflineInbox(directory, new ServerConfig(), server);
+            leave(signIn(server, inbox, name));
+            ChatServer.ClientHandler sender = server.register(new RecordingConnection());
+            sender.handleFrame(Frame.of(Opcode.NICKNAME, "alice"));
+            inbox.store(name, sender, "hello");
+            Tests.eventually(() -> inbox.getStoredCount() == 1, "kept");
+
+            RecordingConnection recipient = new RecordingConnection();
+            signIn(server, inbox, recipient, name);
+            Tests.eventually(() -> recipient.received(Opcode.PRIVATE, "PRIVATE:alice:hello"), "delivered: " + recipient.frames);
+            inbox.close(5000);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static ChatServer.ClientHandler signIn(ChatServer server, OfflineInbox inbox, String name) {
+        return signIn(server, inbox, new RecordingConnection(), name);
+    }
+
+    /**
+     * Registers a client and hands it its inbox, as the server does when the inbox is enabled.
+     */
+    private static ChatServer.ClientHandler signIn(ChatServer server, OfflineInbox inbox, RecordingConnection connection, String name) {
+        ChatServer.ClientHandler handler = server.register(connection);
+        Tests.check(handler.handleFrame(Frame.of(Opcode.NICKNAME, name)), "registered");
+        inbox.deliver(handler);
+        return handler;
+    }
+
+    private static void leave(ChatServer.ClientHandler handler) {
+        handler.closeConnections();
+    }
+
+    private static void delete(Path directory) throws Exception {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Tests for {@link OutboundQueue}: the three policies for a full queue, closing and aborting.
+ */
+final class OutboundQueueTest {
+
+    static void register(Tests tests) {
+        tests.run("outboundQueue.fifo", OutboundQueueTest::fifo);
+        tests.run("outboundQueue.dropOldest", OutboundQueueTest::dropOldest);
+        tests.run("outboundQueue.coalesce", OutboundQueueTest::coalesce);
+        tests.run("outboundQueue.coalesceFallsBackToDropOldest", OutboundQueueTest::coalesceFallsBackToDropOldest);
+        tests.run("outboundQueue.disconnect", OutboundQueueTest::disconnect);
+        tests.run("outboundQueue.closeDrainsThenEnds", OutboundQueueTest::closeDrainsThenEnds);
+        tests.run("outboundQueue.discard", OutboundQueueTest::discard);
+    }
+
+    private static void fifo() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.Policy.DISCONNECT, new OutboundQueue.Counters());
+        queue.offer(line("a"));
+        queue.offer(line("b"));
+        Tests.assertEquals(2, queue.size());
+        Tests.assertEquals("a", queue.take().text());
+        Tests.assertEquals("b", queue.poll().text());
+        Tests.assertEquals(null, queue.poll());
+    }
+
+    private static void dropOldest() {
+        OutboundQueue.Counters counters = new OutboundQueue.Counters();
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.Policy.DROP_OLDEST, counters);
+        Tests.check(queue.offer(line("a")) && queue.offer(line("b")) && queue.offer(line("c")), "never asks for a disconnect");
+        Tests.assertEquals("b", queue.poll().text());
+        Tests.assertEquals("c", queue.poll().text());
+        Tests.assertEquals(1L, counters.dropped.sum());
+    }
+
+    private static void coalesce() {
+        OutboundQueue.Counters counters = new OutboundQueue.Counters();
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.Policy.COALESCE, counters);
+        queue.offer(Frame.of(Opcode.USERLIST, "alice:1.1.1.1"));
+        queue.offer(line("a"));
+        Tests.check(queue.offer(Frame.of(Opcode.USERLIST, "alice:1.1.1.1,bob:2.2.2.2")), "coalescing keeps the client");
+        Tests.assertEquals("a", queue.poll().text());
+        Tests.assertEquals("USERLIST:alice:1.1.1.1,bob:2.2.2.2", queue.poll().text()); // Only the newest list, at the back
+        Tests.assertEquals(1L, counters.coalesced.sum());
+        Tests.assertEquals(0L, counters.dropped.sum());
+    }
+
+    private static void coalesceFallsBackToDropOldest() {
+        OutboundQueue.Counters counters = new OutboundQueue.Counters();
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.Policy.COALESCE, counters);
+        queue.offer(line("a"));
+        queue.offer(line("b"));
+        Tests.check(queue.offer(line("c")), "nothing to coalesce with still keeps the client");
+        Tests.assertEquals("b", queue.poll().text());
+        Tests.assertEquals("c", queue.poll().text());
+        Tests.assertEquals(0L, counters.coalesced.sum());
+        Tests.assertEquals(1L, counters.dropped.sum());
+    }
+
+    private static void disconnect() {
+        OutboundQueue.Counters counters = new OutboundQueue.Counters();
+        OutboundQueue queue = new OutboundQueue(1, OutboundQueue.Policy.DISCONNECT, counters);
+        Tests.check(queue.offer(line("a")), "room for one");
+        Tests.check(!queue.offer(line("b")), "a full queue asks for a disconnect");
+        Tests.assertEquals(1, queue.size());
+        Tests.assertEquals(1L, counters.disconnected.sum());
+    }
+
+    private static void closeDrainsThenEnds() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.Policy.DISCONNECT, new OutboundQueue.Counters());
+        queue.offer(line("a"));
+        queue.close();
+        Tests.check(queue.offer(line("b")), "lines offered after close are ignored, not a reason to disconnect");
+        Tests.assertEquals("a", queue.take().text());
+        Tests.assertEquals(null, queue.take());
+    }
+
+    private static void discard() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.Policy.DISCONNECT, new OutboundQueue.Counters());
+        queue.offer(line("a"));
+        queue.offer(line("b"));
+        queue.discard();
+        Tests.assertEquals(0, queue.size());
+        Tests.assertEquals(null, queue.take());
+    }
+
+    private static Frame line(String text) {
+        return Frame.of(Opcode.TEXT, text);
+    }
+}
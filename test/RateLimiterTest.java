@@ -0,0 +1,79 @@
+/**
+ * Tests for {@link RateLimiter}. Time is passed in explicitly, so none of them sleep.
+ */
+final class RateLimiterTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    static void register(Tests tests) {
+        tests.run("rateLimiter.burstThenRefuse", RateLimiterTest::burstThenRefuse);
+        tests.run("rateLimiter.refillsAtRate", RateLimiterTest::refillsAtRate);
+        tests.run("rateLimiter.neverAboveCapacity", RateLimiterTest::neverAboveCapacity);
+        tests.run("rateLimiter.refusalTakesNothing", RateLimiterTest::refusalTakesNothing);
+        tests.run("rateLimiter.refund", RateLimiterTest::refund);
+        tests.run("rateLimiter.reserve", RateLimiterTest::reserve);
+    }
+
+    private static void burstThenRefuse() {
+        RateLimiter limiter = new RateLimiter(10, 5);
+        long now = 42 * SECOND;
+        for (int i = 0; i < 5; i++) {
+            Tests.check(limiter.tryAcquire(1, now), "token " + i + " of the burst");
+        }
+        Tests.check(!limiter.tryAcquire(1, now), "the sixth is refused");
+    }
+
+    private static void refillsAtRate() {
+        RateLimiter limiter = new RateLimiter(10, 5);
+        long now = 42 * SECOND;
+        for (int i = 0; i < 5; i++) limiter.tryAcquire(1, now);
+        Tests.check(!limiter.tryAcquire(1, now + SECOND / 20), "half a token later, still empty");
+        Tests.check(limiter.tryAcquire(1, now + SECOND / 10), "one token after a tenth of a second");
+        Tests.check(!limiter.tryAcquire(1, now + SECOND / 10), "and only one");
+    }
+
+    private static void neverAboveCapacity() {
+        RateLimiter limiter = new RateLimiter(10, 5);
+        long later = 3600 * SECOND; // An hour of quiet still allows only the burst
+        for (int i = 0; i < 5; i++) {
+            Tests.check(limiter.tryAcquire(1, later), "token " + i);
+        }
+        Tests.check(!limiter.tryAcquire(1, later), "capacity is the limit");
+        Tests.check(!new RateLimiter(10, 5).tryAcquire(6, later), "more than the capacity at once is never allowed");
+    }
+
+    private static void refusalTakesNothing() {
+        RateLimiter limiter = new RateLimiter(10, 5);
+        long now = 7 * SECOND;
+        Tests.check(!limiter.tryAcquire(8, now), "too many at once");
+        for (int i = 0; i < 5; i++) {
+            Tests.check(limiter.tryAcquire(1, now), "the refused request left token " + i);
+        }
+    }
+
+    private static void refund() {
+        RateLimiter limiter = new RateLimiter(10, 2);
+        long now = 9 * SECOND;
+        limiter.tryAcquire(1, now);
+        limiter.tryAcquire(1, now);
+        Tests.check(!limiter.tryAcquire(1, now), "empty");
+        limiter.refund(1);
+        Tests.check(limiter.tryAcquire(1, now), "the refunded token is back");
+
+        RateLimiter idle = new RateLimiter(10, 2);
+        idle.tryAcquire(1, now);
+        idle.refund(1);
+        idle.refund(1); // More back than was taken must not raise the capacity
+        Tests.check(idle.tryAcquire(1, now) && idle.tryAcquire(1, now), "full");
+        Tests.check(!idle.tryAcquire(1, now), "but no fuller than the capacity");
+    }
+
+    private static void reserve() {
+        RateLimiter limiter = new RateLimiter(10, 2);
+        long now = 5 * SECOND;
+        Tests.assertEquals(0L, limiter.reserve(1, now));
+        Tests.assertEquals(0L, limiter.reserve(1, now));
+        Tests.assertEquals(SECOND / 10, limiter.reserve(1, now)); // Owed: usable a tenth of a second from now
+        Tests.assertEquals(2 * SECOND / 10, limiter.reserve(1, now));
+    }
+}
@@ -0,0 +1,48 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A {@code ClientConnection} for tests that keeps every frame the server sends it instead of writing it.
+ */
+final class RecordingConnection implements ClientConnection {
+    final List<Frame> frames = new CopyOnWriteArrayList<>();
+
+    @Override
+    public boolean write(Frame frame) {
+        frames.add(frame);
+        return true;
+    }
+
+    @Override
+    public void useBinaryFrames() {
+    }
+
+    @Override
+    public void useCompression() {
+    }
+
+    @Override
+    public int queuedFrames() {
+        return 0;
+    }
+
+    @Override
+    public String getHostAddress() {
+        return "127.0.0.1";
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void abort() {
+    }
+
+    boolean received(Opcode opcode, String text) {
+        for (Frame frame : frames) {
+            if (frame.opcode() == opcode && frame.text().equals(text)) return true;
+        }
+        return false;
+    }
+}
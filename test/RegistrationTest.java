@@ -0,0 +1,42 @@
+/**
+ * Tests that a client must register a nickname before the server acts on anything it sends, apart from
+ * negotiating features, heartbeats and leaving.
+ */
+final class RegistrationTest {
+
+    static void register(Tests tests) {
+        tests.run("registration.commandsWaitForNickname", RegistrationTest::commandsWaitForNickname);
+        tests.run("registration.capsAndHeartbeatsBeforeNickname", RegistrationTest::capsAndHeartbeatsBeforeNickname);
+    }
+
+    private static void commandsWaitForNickname() throws InterruptedException {
+        ChatServer server = new ChatServer();
+        RecordingConnection alice = new RecordingConnection();
+        server.register(alice).handleFrame(Frame.of(Opcode.NICKNAME, "alice"));
+        RecordingConnection anonymous = new RecordingConnection();
+        ChatServer.ClientHandler handler = server.register(anonymous);
+
+        for (Frame frame : new Frame[] {Frame.of("hello"), Frame.of(Opcode.PRIVATE, "alice", "hi"), Frame.of(Opcode.MSG, "x"),
+                Frame.of(Opcode.JOIN, "dev"), Frame.of(Opcode.HISTORY, "last", "10"), Frame.of(Opcode.SEARCH, "0", "10", "hi")}) {
+            Tests.check(handler.handleFrame(frame), "refused, not disconnected: " + frame.text());
+        }
+        Tests.assertEquals(6L, anonymous.frames.stream().filter(frame -> frame.text().equals("Send a nickname first.")).count());
+        Tests.check(alice.frames.stream().noneMatch(frame -> frame.text().contains("hi") || frame.text().contains("hello")),
+                "nothing reached alice: " + alice.frames);
+
+        Tests.check(handler.handleFrame(Frame.of(Opcode.NICKNAME, "bob")), "a nickname is still accepted afterwards");
+        handler.handleFrame(Frame.of(Opcode.PRIVATE, "alice", "hi"));
+        Tests.eventually(() -> alice.received(Opcode.PRIVATE, "PRIVATE:bob:hi"), "and then bob can talk");
+    }
+
+    private static void capsAndHeartbeatsBeforeNickname() {
+        ChatServer server = new ChatServer();
+        RecordingConnection connection = new RecordingConnection();
+        ChatServer.ClientHandler handler = server.register(connection);
+        Tests.check(handler.handleFrame(Frame.of(Opcode.CAPS, "reconnect")), "caps");
+        Tests.check(handler.handleFrame(Frame.of(Opcode.PING, "1")), "ping");
+        Tests.check(connection.received(Opcode.CAPS, "CAPS:reconnect"), "negotiated: " + connection.frames);
+        Tests.check(connection.received(Opcode.PONG, "PONG:1"), "answered: " + connection.frames);
+        Tests.check(!handler.handleFrame(Frame.of("DISCONNECT")), "and may leave without a nickname");
+    }
+}
@@ -0,0 +1,23 @@
+/**
+ * The {@code TestSuite} class runs every test in {@code test/} and exits with status 1 if any failed.
+ *
+ * <p>Usage: {@code java TestSuite}, or {@code test/run-tests.sh} to compile and run in one step.
+ */
+public final class TestSuite {
+
+    public static void main(String[] args) {
+        Tests tests = new Tests();
+        FrameTest.register(tests);
+        OutboundQueueTest.register(tests);
+        RateLimiterTest.register(tests);
+        MessageLogTest.register(tests);
+        ControlFrameInjectionTest.register(tests);
+        RegistrationTest.register(tests);
+        OfflineInboxTest.register(tests);
+        ClusterTest.register(tests);
+        NioServerTest.register(tests);
+
+        System.out.println(tests.passed() + " passed, " + tests.failures().size() + " failed");
+        System.exit(tests.failures().isEmpty() ? 0 : 1);
+    }
+}
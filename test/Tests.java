@@ -0,0 +1,96 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The {@code Tests} class is a small test harness for the classes in {@code test/}. Each test is a method
+ * that throws on failure; the harness runs them one after another, reports each failure with its cause
+ * and counts the rest as passed. The static checks below are what the tests throw with.
+ */
+final class Tests {
+
+    /**
+     * A test body.
+     */
+    interface Body {
+        void run() throws Exception;
+    }
+
+    private final List<String> failures = new ArrayList<>();
+    private int passed;
+
+    /**
+     * Runs one test and records its outcome.
+     *
+     * @param name The test name, reported on failure.
+     * @param body The test.
+     */
+    void run(String name, Body body) {
+        try {
+            body.run();
+            passed++;
+        } catch (Exception | AssertionError e) {
+            failures.add(name);
+            System.out.println("FAIL " + name + ": " + e);
+            if (!(e instanceof AssertionError)) {
+                e.printStackTrace(System.out);
+            }
+        }
+    }
+
+    int passed() {
+        return passed;
+    }
+
+    List<String> failures() {
+        return failures;
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    static void assertEquals(Object expected, Object actual) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError("expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    /**
+     * Runs code that must fail.
+     *
+     * @param type The exception expected.
+     * @param body The code.
+     * @return The exception thrown.
+     */
+    static <T extends Throwable> T assertThrows(Class<T> type, Body body) {
+        try {
+            body.run();
+        } catch (Throwable e) {
+            if (type.isInstance(e)) {
+                return type.cast(e);
+            }
+            throw new AssertionError("expected " + type.getSimpleName() + " but got " + e, e);
+        }
+        throw new AssertionError("expected " + type.getSimpleName() + " but nothing was thrown");
+    }
+
+    /**
+     * Waits for a condition that another thread makes true.
+     *
+     * @param condition The condition.
+     * @param message   The failure message if it does not hold within five seconds.
+     */
+    static void eventually(BooleanSupplier condition, String message) throws InterruptedException {
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new AssertionError(message);
+            }
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,8 @@
+#!/bin/sh
+# Compiles the server and the tests and runs the test suite; exits with status 1 if a test fails.
+set -e
+root=$(cd "$(dirname "$0")/.." && pwd)
+classes="$root/test/build"
+mkdir -p "$classes"
+javac -d "$classes" "$root"/src/*.java "$root"/test/*.java
+exec java -cp "$classes" TestSuite "$@"